@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Encodes munin output straight into pooled direct buffers, which are then written to the
+ * channel using gathering writes. Munin output is ASCII, so characters are written as single
+ * bytes without going through a charset encoder. The odd non-ASCII character, e.g. in a
+ * configured label, is encoded as UTF-8.
+ *
+ * <p>Not thread-safe, each connection has its own encoder.
+ */
+class AsciiResponseEncoder implements MuninOutput {
+
+  private static final Logger LOG = Logger.getLogger(AsciiResponseEncoder.class);
+
+  private static final byte LINE_END = '\n';
+  private static final String MIN_LONG = Long.toString(Long.MIN_VALUE);
+
+  private final BufferPool pool;
+  private final ArrayDeque<ByteBuffer> flushed = new ArrayDeque<ByteBuffer>();
+  private final byte[] digits = new byte[20];
+  private final StringBuilder debugLine;
+
+  private ByteBuffer current;
+  private ByteBuffer[] gather = new ByteBuffer[8];
+
+  AsciiResponseEncoder(final BufferPool pool) {
+    this.pool = pool;
+    this.debugLine = LOG.isDebugEnabled() ? new StringBuilder() : null;
+  }
+
+  @Override
+  public MuninOutput append(final CharSequence s) {
+    for (int i = 0, n = s.length(); i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        put((byte) c);
+      } else if (c < 0x800) {
+        put((byte) (0xc0 | (c >> 6)));
+        put((byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < n
+                 && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        put((byte) (0xf0 | (codePoint >> 18)));
+        put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+        put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+        put((byte) (0x80 | (codePoint & 0x3f)));
+      } else if (Character.isSurrogate(c)) {
+        put((byte) '?');
+      } else {
+        put((byte) (0xe0 | (c >> 12)));
+        put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+    if (debugLine != null) {
+      debugLine.append(s);
+    }
+    return this;
+  }
+
+  @Override
+  public MuninOutput append(final char c) {
+    if (c < 0x80) {
+      put((byte) c);
+      if (debugLine != null) {
+        debugLine.append(c);
+      }
+      return this;
+    }
+    return append(String.valueOf(c));
+  }
+
+  @Override
+  public MuninOutput append(final long value) {
+    if (value == Long.MIN_VALUE) {
+      return append(MIN_LONG);
+    }
+
+    long remaining = value;
+    if (remaining < 0) {
+      put((byte) '-');
+      remaining = -remaining;
+    }
+    int pos = digits.length;
+    do {
+      digits[--pos] = (byte) ('0' + (remaining % 10));
+      remaining /= 10;
+    } while (remaining > 0);
+    for (; pos < digits.length; pos++) {
+      put(digits[pos]);
+    }
+
+    if (debugLine != null) {
+      debugLine.append(value);
+    }
+    return this;
+  }
+
+  @Override
+  public MuninOutput appendNumber(final Object value) {
+    NumberUtil.append(this, value);
+    return this;
+  }
+
+  @Override
+  public MuninOutput append(final byte[] bytes, final int offset, final int length) {
+    int end = offset + length;
+    for (int i = offset; i < end; ) {
+      if (current == null || !current.hasRemaining()) {
+        put(bytes[i++]);
+      } else {
+        int chunk = Math.min(current.remaining(), end - i);
+        current.put(bytes, i, chunk);
+        i += chunk;
+      }
+    }
+    if (debugLine != null) {
+      // binary output has no line end, log it as it is written
+      LOG.debug("< " + debugLine.append('<').append(length).append(" bytes>"));
+      debugLine.setLength(0);
+    }
+    return this;
+  }
+
+  @Override
+  public void endLine() {
+    put(LINE_END);
+    if (debugLine != null) {
+      LOG.debug("< " + debugLine);
+      debugLine.setLength(0);
+    }
+  }
+
+  /**
+   * Write as much of the pending output as the channel accepts. A blocking channel takes all of
+   * it.
+   *
+   * @return true if all output was written.
+   */
+  boolean writeTo(final GatheringByteChannel channel) throws IOException {
+    if (current != null && current.position() > 0) {
+      current.flip();
+      flushed.add(current);
+      current = null;
+    }
+
+    while (!flushed.isEmpty()) {
+      int count = flushed.size();
+      gather = flushed.toArray(gather);
+      long written = channel.write(gather, 0, count);
+
+      ByteBuffer head;
+      while ((head = flushed.peek()) != null && !head.hasRemaining()) {
+        pool.release(flushed.poll());
+      }
+      if (written == 0 && !flushed.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The number of bytes appended but not yet written.
+   */
+  long pendingBytes() {
+    long pending = current != null ? current.position() : 0;
+    for (ByteBuffer buffer : flushed) {
+      pending += buffer.remaining();
+    }
+    return pending;
+  }
+
+  boolean isEmpty() {
+    return (current == null || current.position() == 0) && flushed.isEmpty();
+  }
+
+  /**
+   * Return all buffers to the pool, dropping any pending output.
+   */
+  void release() {
+    if (current != null) {
+      pool.release(current);
+      current = null;
+    }
+    ByteBuffer buffer;
+    while ((buffer = flushed.poll()) != null) {
+      pool.release(buffer);
+    }
+  }
+
+  private void put(final byte b) {
+    if (current == null) {
+      current = pool.acquire();
+    } else if (!current.hasRemaining()) {
+      current.flip();
+      flushed.add(current);
+      current = pool.acquire();
+    }
+    current.put(b);
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+/**
+ * Builds the binary fetch response negotiated with the {@code binaryfetch} capability. A frame is
+ * a 4 byte big-endian payload length followed by one record per field: the field id announced
+ * with config as an unsigned LEB128 varint, a tag byte and the value. Integral values are tagged
+ * {@link #INTEGRAL} and written as a zigzag varint, other values are tagged {@link #DOUBLE} and
+ * written as 8 big-endian bytes of their IEEE-754 representation.
+ *
+ * <p>Not thread-safe, frames are reused by one thread at a time.
+ */
+class BinaryFrame {
+
+  static final byte INTEGRAL = 0;
+  static final byte DOUBLE = 1;
+
+  private static final byte[] EMPTY = new byte[4];
+
+  // room for the length, filled in when the frame is written
+  private byte[] bytes = new byte[256];
+  private int size = 4;
+
+  void reset() {
+    size = 4;
+  }
+
+  void add(final int fieldId, final Number value) {
+    if (value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      addLong(fieldId, value.longValue());
+    } else {
+      addDouble(fieldId, value.doubleValue());
+    }
+  }
+
+  void addLong(final int fieldId, final long value) {
+    putVarint(fieldId & 0xffffffffL);
+    put(INTEGRAL);
+    putVarint((value << 1) ^ (value >> 63));
+  }
+
+  void addDouble(final int fieldId, final double value) {
+    long bits = Double.doubleToRawLongBits(value);
+    putVarint(fieldId & 0xffffffffL);
+    put(DOUBLE);
+    ensure(8);
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      bytes[size++] = (byte) (bits >>> shift);
+    }
+  }
+
+  void writeTo(final MuninOutput out) {
+    int length = size - 4;
+    bytes[0] = (byte) (length >>> 24);
+    bytes[1] = (byte) (length >>> 16);
+    bytes[2] = (byte) (length >>> 8);
+    bytes[3] = (byte) length;
+    out.append(bytes, 0, size);
+  }
+
+  /**
+   * Write a frame without records, e.g. for an unknown service.
+   */
+  static void writeEmpty(final MuninOutput out) {
+    out.append(EMPTY, 0, EMPTY.length);
+  }
+
+  private void putVarint(long v) {
+    ensure(10);
+    while ((v & ~0x7fL) != 0) {
+      bytes[size++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    bytes[size++] = (byte) v;
+  }
+
+  private void put(final byte b) {
+    ensure(1);
+    bytes[size++] = b;
+  }
+
+  private void ensure(final int room) {
+    if (size + room > bytes.length) {
+      byte[] grown = new byte[Math.max(bytes.length * 2, size + room)];
+      System.arraycopy(bytes, 0, grown, 0, size);
+      bytes = grown;
+    }
+  }
+}
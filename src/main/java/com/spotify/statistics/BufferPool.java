@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of equally sized direct buffers shared by all connections of a server. Buffers are
+ * allocated on demand and at most {@code maxPooled} released buffers are kept for reuse.
+ */
+class BufferPool {
+
+  static final int DEFAULT_BUFFER_SIZE = 8192;
+  static final int DEFAULT_MAX_POOLED = 256;
+
+  private final int bufferSize;
+  private final int maxPooled;
+  private final ConcurrentLinkedQueue<ByteBuffer> pooled = new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicInteger pooledCount = new AtomicInteger();
+  private final AtomicLong bytesInUse = new AtomicLong();
+
+  BufferPool() {
+    this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+  }
+
+  BufferPool(final int bufferSize, final int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * @return A cleared buffer, ready for writing.
+   */
+  ByteBuffer acquire() {
+    bytesInUse.addAndGet(bufferSize);
+    ByteBuffer buffer = pooled.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    pooledCount.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Return a buffer to the pool. The buffer must not be used by the caller afterwards.
+   */
+  void release(final ByteBuffer buffer) {
+    bytesInUse.addAndGet(-bufferSize);
+    if (pooledCount.incrementAndGet() <= maxPooled) {
+      pooled.add(buffer);
+    } else {
+      pooledCount.decrementAndGet();
+    }
+  }
+
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * @return The size of all buffers acquired and not yet released.
+   */
+  long getBytesInUse() {
+    return bytesInUse.get();
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+/**
+ * Serves the hostname from a cached value, refreshed in the background, so that slow DNS never
+ * holds up a munin command. If resolving the hostname fails, the last good value is kept.
+ */
+public class CachingHostname implements Hostname {
+
+  private static final Logger LOG = Logger.getLogger(CachingHostname.class);
+
+  private static final long DEFAULT_REFRESH_MINUTES = 5;
+  // served until the hostname has been resolved once
+  private static final String FALLBACK = "localhost";
+
+  private final Hostname delegate;
+  private final ScheduledExecutorService scheduler;
+
+  private volatile String hostname;
+
+  /**
+   * Create a cached hostname resolved by reverse lookup of the local address, refreshed every 5
+   * minutes.
+   * @return The hostname
+   */
+  public static CachingHostname create() {
+    return new CachingHostname(new ReverseLookupHostname());
+  }
+
+  /**
+   * @param delegate The hostname to cache, refreshed every 5 minutes.
+   */
+  public CachingHostname(final Hostname delegate) {
+    this(delegate, DEFAULT_REFRESH_MINUTES, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Resolve the hostname once and then keep refreshing it in the background.
+   * @param delegate The hostname to cache.
+   * @param refreshInterval How often to refresh the hostname.
+   * @param unit The unit of the refresh interval.
+   */
+  public CachingHostname(final Hostname delegate, final long refreshInterval,
+                         final TimeUnit unit) {
+    Validate.notNull(delegate);
+    Validate.isTrue(refreshInterval > 0, "Refresh interval must be positive");
+    Validate.notNull(unit);
+    this.delegate = delegate;
+    this.hostname = FALLBACK;
+    refresh();
+
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        Thread thread = new Thread(r, "munin-hostname");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        refresh();
+      }
+    }, refreshInterval, refreshInterval, unit);
+  }
+
+  @Override
+  public String getHostname() {
+    return hostname;
+  }
+
+  /**
+   * Stop refreshing the hostname. The last value is still served.
+   */
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  private void refresh() {
+    try {
+      String resolved = delegate.getHostname();
+      if (resolved == null || resolved.isEmpty()) {
+        LOG.warn("Resolved an empty hostname, keeping " + hostname);
+        return;
+      }
+      hostname = resolved;
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to resolve hostname, keeping " + hostname, e);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+/**
+ * Optional protocol features negotiated using the {@code cap} command. A feature is used on a
+ * connection only if the client announced it.
+ */
+enum Capability {
+
+  /**
+   * Services can be multigraphs, answering config and fetch for many graphs at once.
+   */
+  MULTIGRAPH("multigraph"),
+
+  /**
+   * Config responses include the current values, sparing the master the fetch that would follow.
+   */
+  DIRTYCONFIG("dirtyconfig"),
+
+  /**
+   * The node keeps a history of samples, pulled by the master using {@code spoolfetch}. Only
+   * announced when spooling is enabled.
+   */
+  SPOOL("spool"),
+
+  /**
+   * Config announces an id per field and fetch answers with a {@link BinaryFrame} of field ids and
+   * raw values instead of text.
+   */
+  BINARY("binaryfetch");
+
+  private final String protocolName;
+
+  Capability(final String protocolName) {
+    this.protocolName = protocolName;
+  }
+
+  String getProtocolName() {
+    return protocolName;
+  }
+
+  /**
+   * @return The capability with the given protocol name, or null if it is not supported.
+   */
+  static Capability forProtocolName(final String name) {
+    for (Capability capability : values()) {
+      if (capability.protocolName.equals(name)) {
+        return capability;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rate limits connections and commands per client address, using a {@link TokenBucket} for
+ * each. Clients on unix domain sockets are not limited.
+ *
+ * <p>The buckets of the least recently seen addresses are forgotten above a bound. Connections
+ * look up the buckets of their address for every command rather than holding on to them, so an
+ * address never has two sets of buckets at once.
+ */
+class ClientRateLimiter {
+
+  // above this many tracked addresses, the least recently seen are forgotten
+  static final int MAX_TRACKED_CLIENTS = 4096;
+
+  private final double connectionRate;
+  private final int connectionBurst;
+  private final double commandRate;
+  private final int commandBurst;
+  private final MuninServerStats stats;
+  // guarded by itself
+  private final Map<InetAddress, Buckets> clients =
+      new LinkedHashMap<InetAddress, Buckets>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<InetAddress, Buckets> eldest) {
+          return size() > MAX_TRACKED_CLIENTS;
+        }
+      };
+
+  ClientRateLimiter(final double connectionRate, final int connectionBurst,
+                    final double commandRate, final int commandBurst,
+                    final MuninServerStats stats) {
+    this.connectionRate = connectionRate;
+    this.connectionBurst = connectionBurst;
+    this.commandRate = commandRate;
+    this.commandBurst = commandBurst;
+    this.stats = stats;
+  }
+
+  /**
+   * @return The limits of the channel's address, or null if the client is not limited.
+   */
+  Limits limits(final SocketChannel channel) {
+    if (connectionRate <= 0 && commandRate <= 0) {
+      return null;
+    }
+    final SocketAddress remote;
+    try {
+      remote = channel.getRemoteAddress();
+    } catch (IOException e) {
+      return null;
+    }
+    if (!(remote instanceof InetSocketAddress)) {
+      return null;
+    }
+    return limits(((InetSocketAddress) remote).getAddress());
+  }
+
+  /**
+   * @return The limits of a client address, or null if clients are not limited.
+   */
+  Limits limits(final InetAddress address) {
+    if (connectionRate <= 0 && commandRate <= 0) {
+      return null;
+    }
+    return new Limits(address);
+  }
+
+  /**
+   * @return The number of addresses with buckets.
+   */
+  int trackedClients() {
+    synchronized (clients) {
+      return clients.size();
+    }
+  }
+
+  private Buckets buckets(final InetAddress address) {
+    synchronized (clients) {
+      Buckets buckets = clients.get(address);
+      if (buckets == null) {
+        buckets = new Buckets();
+        clients.put(address, buckets);
+      }
+      return buckets;
+    }
+  }
+
+  /**
+   * The limits of one client address, checked against the buckets of the address.
+   */
+  final class Limits {
+
+    private final InetAddress address;
+
+    private Limits(final InetAddress address) {
+      this.address = address;
+    }
+
+    /**
+     * @return false if the client opens connections faster than allowed.
+     */
+    boolean tryConnect() {
+      if (connectionRate <= 0 || buckets(address).connections.tryAcquire()) {
+        return true;
+      }
+      stats.connectionThrottled();
+      return false;
+    }
+
+    /**
+     * @return false if the client sends commands faster than allowed.
+     */
+    boolean tryCommand() {
+      if (commandRate <= 0 || buckets(address).commands.tryAcquire()) {
+        return true;
+      }
+      stats.commandThrottled();
+      return false;
+    }
+  }
+
+  /**
+   * The buckets of one client address.
+   */
+  private final class Buckets {
+
+    private final TokenBucket connections =
+        connectionRate > 0 ? new TokenBucket(connectionRate, connectionBurst) : null;
+    private final TokenBucket commands =
+        commandRate > 0 ? new TokenBucket(commandRate, commandBurst) : null;
+  }
+}
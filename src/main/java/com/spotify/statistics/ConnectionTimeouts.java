@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Closes connections that stay idle, or open, for too long, and clients that take too long to
+ * read a response. All connections of a server share one
+ * {@link HashedWheelTimer}.
+ */
+class ConnectionTimeouts {
+
+  private static final Logger LOG = Logger.getLogger(ConnectionTimeouts.class);
+
+  private static final long TICK_MILLIS = 100;
+  private static final int TICKS_PER_WHEEL = 512;
+
+  /**
+   * A connection watched for timeouts.
+   */
+  interface Watched {
+
+    /**
+     * @return The {@link System#nanoTime()} at which the connection last read input or wrote
+     *         output, or the current time while it is serving a command.
+     */
+    long lastActivityNanos();
+
+    /**
+     * Close the connection because it timed out. Called from the timer thread.
+     */
+    void expire();
+  }
+
+  /**
+   * The timeouts of one connection.
+   */
+  interface Watch {
+
+    /**
+     * Start the write timeout, called when a response could not be written right away. Does
+     * nothing if the timeout is already running.
+     */
+    void writeStarted();
+
+    /**
+     * Stop the write timeout, called once all output is written.
+     */
+    void writeFinished();
+
+    /**
+     * Stop watching the connection, called once it is closed.
+     */
+    void cancel();
+  }
+
+  private static final Watch NOT_WATCHED = new Watch() {
+    @Override
+    public void writeStarted() {
+    }
+
+    @Override
+    public void writeFinished() {
+    }
+
+    @Override
+    public void cancel() {
+    }
+  };
+
+  private final long idleTimeoutNanos;
+  private final long sessionTimeoutNanos;
+  private final long writeTimeoutNanos;
+  private final MuninServerStats stats;
+  private final HashedWheelTimer timer;
+
+  ConnectionTimeouts(final long idleTimeoutMillis, final long sessionTimeoutMillis,
+                     final long writeTimeoutMillis, final MuninServerStats stats) {
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    this.sessionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sessionTimeoutMillis);
+    this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+    this.stats = stats;
+    this.timer = idleTimeoutNanos > 0 || sessionTimeoutNanos > 0 || writeTimeoutNanos > 0
+        ? new HashedWheelTimer("munin-timer", TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL)
+        : null;
+  }
+
+  /**
+   * Start watching a newly accepted connection.
+   */
+  Watch watch(final Watched connection) {
+    if (timer == null) {
+      return NOT_WATCHED;
+    }
+    return new ConnectionWatch(connection);
+  }
+
+  /**
+   * Stop the timer, once all connections are closed.
+   */
+  void stop() {
+    if (timer != null) {
+      timer.stop();
+    }
+  }
+
+  private final class ConnectionWatch implements Watch {
+
+    private final Watched connection;
+    private final HashedWheelTimer.Timeout sessionTimeout;
+    private volatile HashedWheelTimer.Timeout idleTimeout;
+    private volatile HashedWheelTimer.Timeout writeTimeout;
+    private volatile boolean done = false;
+
+    private ConnectionWatch(final Watched connection) {
+      this.connection = connection;
+      this.sessionTimeout = sessionTimeoutNanos > 0
+          ? timer.newTimeout(new Runnable() {
+              @Override
+              public void run() {
+                expire("open for more than " + TimeUnit.NANOSECONDS.toMillis(sessionTimeoutNanos)
+                       + " ms", false);
+              }
+            }, sessionTimeoutNanos, TimeUnit.NANOSECONDS)
+          : null;
+      if (idleTimeoutNanos > 0) {
+        scheduleIdleCheck(idleTimeoutNanos);
+      }
+    }
+
+    // rather than rescheduling on every read, the check reschedules itself until the connection
+    // has really been idle for the whole timeout
+    private void scheduleIdleCheck(final long delayNanos) {
+      idleTimeout = timer.newTimeout(new Runnable() {
+        @Override
+        public void run() {
+          long idleNanos = System.nanoTime() - connection.lastActivityNanos();
+          if (idleNanos >= idleTimeoutNanos) {
+            expire("idle for more than " + TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) + " ms",
+                   false);
+          } else if (!done) {
+            scheduleIdleCheck(idleTimeoutNanos - idleNanos);
+          }
+        }
+      }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void writeStarted() {
+      if (writeTimeoutNanos > 0 && writeTimeout == null) {
+        writeTimeout = timer.newTimeout(new Runnable() {
+          @Override
+          public void run() {
+            expire("not reading its response for more than "
+                   + TimeUnit.NANOSECONDS.toMillis(writeTimeoutNanos) + " ms", true);
+          }
+        }, writeTimeoutNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    @Override
+    public void writeFinished() {
+      HashedWheelTimer.Timeout timeout = writeTimeout;
+      if (timeout != null) {
+        writeTimeout = null;
+        timeout.cancel();
+      }
+    }
+
+    private synchronized void expire(final String reason, final boolean slowClient) {
+      if (done) {
+        return;
+      }
+      LOG.debug("Closing munin connection " + reason);
+      if (slowClient) {
+        stats.slowClientDropped();
+      } else {
+        stats.connectionTimedOut();
+      }
+      connection.expire();
+      cancel();
+    }
+
+    @Override
+    public void cancel() {
+      done = true;
+      if (sessionTimeout != null) {
+        sessionTimeout.cancel();
+      }
+      HashedWheelTimer.Timeout timeout = idleTimeout;
+      if (timeout != null) {
+        timeout.cancel();
+      }
+      writeFinished();
+    }
+  }
+}
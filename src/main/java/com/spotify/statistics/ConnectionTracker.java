@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of open connections and enforces the configured connection limit. All connections
+ * are counted, connections served by handler threads are also registered so that they can be
+ * drained and closed on shutdown.
+ */
+class ConnectionTracker {
+
+  private final int maxConnections;
+  private final MuninServerStats stats;
+  private final AtomicInteger active;
+  private final Set<MuninConnection> registered =
+      Collections.newSetFromMap(new ConcurrentHashMap<MuninConnection, Boolean>());
+
+  /**
+   * @param maxConnections The maximum number of concurrent connections, 0 for no limit.
+   * @param stats Where to count accepted and rejected connections.
+   */
+  ConnectionTracker(final int maxConnections, final MuninServerStats stats) {
+    this.maxConnections = maxConnections;
+    this.stats = stats;
+    this.active = stats.activeConnections();
+  }
+
+  /**
+   * Reserve room for a newly accepted connection. Every successful call must be paired with a
+   * call to {@link #release()} when the connection closes.
+   *
+   * @return false if the node is at its connection limit and the connection must be rejected.
+   */
+  boolean tryAcquire() {
+    int current = active.incrementAndGet();
+    if (maxConnections > 0 && current > maxConnections) {
+      active.decrementAndGet();
+      stats.connectionRejected();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Mark a connection acquired using {@link #tryAcquire()} as handed over to be served.
+   */
+  void accepted() {
+    stats.connectionAccepted();
+  }
+
+  void release() {
+    active.decrementAndGet();
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  void register(final MuninConnection connection) {
+    registered.add(connection);
+  }
+
+  void unregister(final MuninConnection connection) {
+    registered.remove(connection);
+  }
+
+  /**
+   * Ask all registered connections to finish what they are doing and close.
+   */
+  void drainAll() {
+    for (MuninConnection connection : registered) {
+      connection.drain();
+    }
+  }
+
+  /**
+   * Close all registered connections right away.
+   */
+  void closeAll() {
+    for (MuninConnection connection : registered) {
+      connection.close();
+    }
+  }
+
+  /**
+   * Wait for all connections, registered or not, to close.
+   *
+   * @return true if all connections closed before the timeout.
+   */
+  synchronized boolean awaitIdle(final long timeout, final TimeUnit unit)
+    throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (active.get() > 0) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Undo a {@link #tryAcquire()} for a connection that could not be served after all, e.g.
+   * because the handler executor refused it.
+   */
+  void reject() {
+    release();
+    stats.connectionRejected();
+  }
+}
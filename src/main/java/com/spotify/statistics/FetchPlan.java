@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Sampling;
+import com.spotify.statistics.Property.HistogramProperty;
+import com.spotify.statistics.Property.TimerProperty;
+
+/**
+ * A graph compiled for serving: the fields it has in the registry, each with its metric, property
+ * and munin name resolved once. Plans are immutable, and replaced by
+ * {@link MetricsCommandProcessor} when metrics are added to or removed from the registry or the
+ * graph provider serves another graph by the same name.
+ */
+final class FetchPlan {
+
+  private final MuninGraph graph;
+  private final int generation;
+  private final List<Field> fields;
+  private final boolean sampling;
+
+  FetchPlan(final MuninGraph graph, final int generation, final List<Field> fields) {
+    this.graph = graph;
+    this.generation = generation;
+    this.fields = Collections.unmodifiableList(fields);
+    boolean anySampling = false;
+    for (Field field : fields) {
+      anySampling |= field.sampling;
+    }
+    this.sampling = anySampling;
+  }
+
+  MuninGraph getGraph() {
+    return graph;
+  }
+
+  /**
+   * @return The registry generation the plan was compiled at.
+   */
+  int getGeneration() {
+    return generation;
+  }
+
+  List<Field> getFields() {
+    return fields;
+  }
+
+  /**
+   * @return True if any field needs a snapshot.
+   */
+  boolean hasSampling() {
+    return sampling;
+  }
+
+  /**
+   * A field of the graph, for a metric present in the registry.
+   */
+  static final class Field {
+
+    final MuninDataSource dataSource;
+    final String metricName;
+    final Metric metric;
+    final Property property;
+    // whether the field reads the shared snapshot of its metric
+    final boolean sampling;
+    // the escaped munin name
+    final String name;
+    final String label;
+    final String type;
+    // "<name>.value ", for fetch
+    final String valuePrefix;
+    // the binary fetch id
+    final int id;
+
+    Field(final MuninDataSource dataSource, final String metricName, final Metric metric,
+          final Property property, final String name, final String label, final int id) {
+      this.dataSource = dataSource;
+      this.metricName = metricName;
+      this.metric = metric;
+      this.property = property;
+      this.sampling = metric instanceof Sampling && usesSnapshot(property);
+      this.name = name;
+      this.label = label;
+      this.type = property.getType().name();
+      this.valuePrefix = name + ".value ";
+      this.id = id;
+    }
+
+    private static boolean usesSnapshot(final Property property) {
+      if (property instanceof TimerProperty) {
+        return ((TimerProperty) property).usesSnapshot();
+      } else if (property instanceof HistogramProperty) {
+        return ((HistogramProperty) property).usesSnapshot();
+      }
+      // custom properties may read any snapshot
+      return true;
+    }
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs timeouts from a single thread, keeping them in a wheel of buckets, one per tick. Adding
+ * and cancelling a timeout is constant time, which keeps timeouts cheap for tens of thousands
+ * of connections, at the cost of firing up to a tick late.
+ */
+class HashedWheelTimer {
+
+  private static final Logger LOG = Logger.getLogger(HashedWheelTimer.class);
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+  private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+  private final long startNanos = System.nanoTime();
+  private final Thread worker;
+
+  private volatile boolean stopped = false;
+  // only accessed by the worker thread
+  private long tick = 0;
+
+  /**
+   * @param name The name of the timer thread.
+   * @param tickDuration How often the timer checks for expired timeouts.
+   * @param unit The unit of the tick duration.
+   * @param ticksPerWheel The number of buckets, rounded up to a power of two.
+   */
+  HashedWheelTimer(final String name, final long tickDuration, final TimeUnit unit,
+                   final int ticksPerWheel) {
+    Validate.isTrue(tickDuration > 0, "Tick duration must be positive");
+    Validate.isTrue(ticksPerWheel > 0 && ticksPerWheel <= 1 << 30,
+                    "Ticks per wheel must be between 1 and 2^30");
+    this.tickNanos = unit.toNanos(tickDuration);
+
+    int size = Integer.highestOneBit(ticksPerWheel);
+    if (size < ticksPerWheel) {
+      size <<= 1;
+    }
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    this.mask = size - 1;
+
+    this.worker = new Thread(new Worker(), name);
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  /**
+   * Run a task once the delay has passed. The task runs on the timer thread and should be quick.
+   * Can be called from any thread.
+   */
+  Timeout newTimeout(final Runnable task, final long delay, final TimeUnit unit) {
+    Validate.notNull(task);
+    long deadline = System.nanoTime() - startNanos + unit.toNanos(Math.max(delay, 0));
+    Timeout timeout = new Timeout(task, deadline);
+    added.add(timeout);
+    return timeout;
+  }
+
+  /**
+   * Stop the timer thread, dropping all pending timeouts.
+   */
+  void stop() {
+    stopped = true;
+    worker.interrupt();
+    if (worker != Thread.currentThread()) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private final class Worker implements Runnable {
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        if (!awaitTick()) {
+          break;
+        }
+        removeCancelled();
+        transferAdded();
+        wheel[(int) (tick & mask)].expire();
+        tick++;
+      }
+    }
+
+    private boolean awaitTick() {
+      long deadline = tickNanos * (tick + 1);
+      while (true) {
+        long sleepNanos = deadline - (System.nanoTime() - startNanos);
+        if (sleepNanos <= 0) {
+          return true;
+        }
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          if (stopped) {
+            return false;
+          }
+        }
+      }
+    }
+
+    private void removeCancelled() {
+      Timeout timeout;
+      while ((timeout = cancelled.poll()) != null) {
+        if (timeout.bucket != null) {
+          timeout.bucket.remove(timeout);
+        }
+      }
+    }
+
+    private void transferAdded() {
+      Timeout timeout;
+      while ((timeout = added.poll()) != null) {
+        if (timeout.state.get() != Timeout.PENDING) {
+          continue;
+        }
+        // timeouts already due go into the current bucket
+        long ticks = Math.max(timeout.deadline / tickNanos, tick);
+        timeout.remainingRounds = (ticks - tick) / wheel.length;
+        wheel[(int) (ticks & mask)].add(timeout);
+      }
+    }
+  }
+
+  /**
+   * A scheduled task that has not run yet.
+   */
+  final class Timeout {
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    // only accessed by the worker thread
+    private long remainingRounds;
+    private Bucket bucket;
+    private Timeout next;
+    private Timeout prev;
+
+    private Timeout(final Runnable task, final long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Cancel the timeout. Can be called from any thread.
+     *
+     * @return false if the task has already run or the timeout was already cancelled.
+     */
+    boolean cancel() {
+      if (!state.compareAndSet(PENDING, CANCELLED)) {
+        return false;
+      }
+      cancelled.add(this);
+      return true;
+    }
+
+    private void expire() {
+      if (!state.compareAndSet(PENDING, EXPIRED)) {
+        return;
+      }
+      try {
+        task.run();
+      } catch (Throwable t) {
+        LOG.warn("Timeout task failed", t);
+      }
+    }
+  }
+
+  /**
+   * The timeouts due in one slot of the wheel, as a doubly linked list.
+   */
+  private static final class Bucket {
+
+    private Timeout head;
+    private Timeout tail;
+
+    private void add(final Timeout timeout) {
+      timeout.bucket = this;
+      if (head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+
+    private void expire() {
+      Timeout timeout = head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.remainingRounds <= 0) {
+          remove(timeout);
+          timeout.expire();
+        } else {
+          timeout.remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+
+    private void remove(final Timeout timeout) {
+      if (timeout.bucket != this) {
+        return;
+      }
+      if (timeout.prev != null) {
+        timeout.prev.next = timeout.next;
+      } else {
+        head = timeout.next;
+      }
+      if (timeout.next != null) {
+        timeout.next.prev = timeout.prev;
+      } else {
+        tail = timeout.prev;
+      }
+      timeout.prev = null;
+      timeout.next = null;
+      timeout.bucket = null;
+    }
+  }
+}
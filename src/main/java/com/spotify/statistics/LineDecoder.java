@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits bytes read from a channel into munin command lines. Commands are plain ASCII, so each
+ * byte is taken as one character. Partial lines are kept until the rest arrives.
+ */
+class LineDecoder {
+
+  static final int MAX_LINE_LENGTH = 8192;
+
+  private final StringBuilder line = new StringBuilder();
+
+  /**
+   * Consume bytes from the buffer up to and including the next line terminator.
+   *
+   * @param in A buffer ready for reading.
+   * @return The next complete line without its terminator, or null if the buffer ran out before
+   *         a complete line was seen.
+   * @throws IOException If a line exceeds {@link #MAX_LINE_LENGTH}.
+   */
+  String decode(final ByteBuffer in) throws IOException {
+    while (in.hasRemaining()) {
+      byte b = in.get();
+      if (b == '\n') {
+        String result = line.toString();
+        line.setLength(0);
+        return result;
+      } else if (b != '\r') {
+        if (line.length() >= MAX_LINE_LENGTH) {
+          throw new IOException("Line exceeds " + MAX_LINE_LENGTH + " bytes");
+        }
+        line.append((char) (b & 0xff));
+      }
+    }
+    return null;
+  }
+}
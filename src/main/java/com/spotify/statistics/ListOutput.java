@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects output as one string per line.
+ */
+class ListOutput implements MuninOutput {
+
+  private final List<String> lines = new ArrayList<String>();
+  private final StringBuilder line = new StringBuilder();
+
+  @Override
+  public MuninOutput append(final CharSequence s) {
+    line.append(s);
+    return this;
+  }
+
+  @Override
+  public MuninOutput append(final char c) {
+    line.append(c);
+    return this;
+  }
+
+  @Override
+  public MuninOutput append(final long value) {
+    line.append(value);
+    return this;
+  }
+
+  @Override
+  public MuninOutput appendNumber(final Object value) {
+    line.append(NumberUtil.toString(value));
+    return this;
+  }
+
+  @Override
+  public MuninOutput append(final byte[] bytes, final int offset, final int length) {
+    throw new UnsupportedOperationException("Binary output is only written to connections");
+  }
+
+  @Override
+  public void endLine() {
+    lines.add(line.toString());
+    line.setLength(0);
+  }
+
+  List<String> getLines() {
+    return lines;
+  }
+}
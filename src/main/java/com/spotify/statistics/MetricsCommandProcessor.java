@@ -15,26 +15,48 @@
  */
 package com.spotify.statistics;
 
-import static java.lang.String.format;
-import static java.util.Arrays.asList;
-
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
 
 import com.codahale.metrics.Metric;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
 import com.codahale.metrics.Sampling;
 import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
 import com.spotify.statistics.Property.PropertyFactory;
 
-public class MetricsCommandProcessor {
+public class MetricsCommandProcessor implements MuninCommandProcessor {
+
+  private static final Logger LOG = Logger.getLogger(MetricsCommandProcessor.class);
+
+  private static final ThreadLocal<BinaryFrame> FRAMES = new ThreadLocal<BinaryFrame>() {
+    @Override
+    protected BinaryFrame initialValue() {
+      return new BinaryFrame();
+    }
+  };
 
   private final MetricRegistry registry;
   private final MuninGraphProvider muninGraphProvider;
@@ -42,6 +64,34 @@ public class MetricsCommandProcessor {
   private final TimeUnit rateUnit;
   private final TimeUnit durationUnit;
 
+  // hostname -> node, for further registries served as virtual munin nodes
+  private final ConcurrentMap<String, MetricsCommandProcessor> virtualNodes =
+      new ConcurrentSkipListMap<String, MetricsCommandProcessor>();
+
+  // graph -> field -> id, for binary fetch. Ids are never reused by this processor, so a client
+  // holding ids from an older config never gets the value of another field. The ids of fields that
+  // are gone are released, a field added again gets a new id. Ids start over when the process
+  // does, so clients learn them again on every connection.
+  private final ConcurrentMap<String, ConcurrentMap<String, Integer>> fieldIds =
+      new ConcurrentHashMap<String, ConcurrentMap<String, Integer>>();
+  private final AtomicInteger nextFieldId = new AtomicInteger();
+
+  // graph name -> compiled plan, replaced when stale, see plan()
+  private final ConcurrentMap<String, FetchPlan> plans = new ConcurrentHashMap<String, FetchPlan>();
+  // bumped on every metric added to or removed from the registry, making all plans stale
+  private final AtomicInteger registryGeneration = new AtomicInteger();
+  private final MetricRegistryListener registryListener = new RegistryListener();
+  // the listener is added when the first plan is compiled, and removed by close()
+  private volatile boolean listening;
+  private boolean closed;
+
+  // the values of the last sample, served by fetch when sampling, see sampleFrame()
+  private volatile SampledFrame sampledFrame;
+
+  private volatile MuninSpool spool;
+  // the time of the previous spool sample, only touched by the sampling thread
+  private long lastSampleTime = Long.MIN_VALUE;
+
   public MetricsCommandProcessor(final MetricRegistry registry,
                                  final MuninGraphProvider muninGraphProvider,
                                  final Hostname hostname,
@@ -53,19 +103,118 @@ public class MetricsCommandProcessor {
     this.durationUnit = durationUnit;
   }
 
+  /**
+   * Stop following changes to the registry, of this node and all virtual nodes. Plans are then
+   * compiled on every use.
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+      if (listening) {
+        registry.removeListener(registryListener);
+        listening = false;
+      }
+    }
+    invalidatePlans();
+    for (MetricsCommandProcessor node : virtualNodes.values()) {
+      node.close();
+    }
+  }
+
+  /**
+   * Start following changes to the registry, unless closed.
+   *
+   * @return True if plans can be cached.
+   */
+  private boolean listen() {
+    if (!listening) {
+      synchronized (this) {
+        if (!listening && !closed) {
+          registry.addListener(registryListener);
+          listening = true;
+        }
+      }
+    }
+    return listening;
+  }
+
+  @Override
+  public Hostname getHostname() {
+    return hostname;
+  }
+
+  /**
+   * Serve a further registry as a virtual munin node, announced by {@code nodes} and selected with
+   * {@code list <hostname>}. The node uses the rate and duration units of this processor.
+   *
+   * @return The command processor of the node.
+   */
+  MetricsCommandProcessor addNode(final String nodeHostname, final MetricRegistry nodeRegistry,
+                                  final MuninGraphProvider nodeGraphProvider) {
+    Validate.notEmpty(nodeHostname);
+    Validate.notNull(nodeRegistry);
+    Validate.notNull(nodeGraphProvider);
+    MetricsCommandProcessor node = new MetricsCommandProcessor(
+        nodeRegistry, nodeGraphProvider, new Hostname() {
+          @Override
+          public String getHostname() {
+            return nodeHostname;
+          }
+        }, rateUnit, durationUnit);
+    Validate.isTrue(virtualNodes.putIfAbsent(nodeHostname, node) == null,
+                    "Node already exists: " + nodeHostname);
+    return node;
+  }
+
+  void removeNode(final String nodeHostname) {
+    MetricsCommandProcessor node = virtualNodes.remove(nodeHostname);
+    if (node != null) {
+      node.close();
+    }
+  }
+
+  @Override
+  public MetricsCommandProcessor getNode(final String nodeHostname) {
+    MetricsCommandProcessor node = virtualNodes.get(nodeHostname);
+    if (node != null) {
+      return node;
+    }
+    return nodeHostname.equals(hostname.getHostname()) ? this : null;
+  }
+
+  /**
+   * Serve {@code spoolfetch} from a spool, filled by {@link #sampleSpool(long)}.
+   */
+  void setSpool(final MuninSpool spool) {
+    this.spool = spool;
+  }
+
   public List<String> processCommand(final String command, final List<String> args)
     throws QuitException, UnknownCommandException {
+    ListOutput output = new ListOutput();
+    processCommand(command, args, EnumSet.noneOf(Capability.class), output);
+    return output.getLines();
+  }
+
+  @Override
+  public void processCommand(final String command, final List<String> args,
+                             final Set<Capability> capabilities, final MuninOutput out)
+    throws QuitException, UnknownCommandException {
 
     if (command.equals("list")) {
-      return processListCommand();
+      processListCommand(args, capabilities, out);
     } else if (command.equals("fetch")) {
-      return processFetchCommand(args);
+      processFetchCommand(args, capabilities, out);
     } else if (command.equals("config")) {
-      return processConfigCommand(args);
+      processConfigCommand(args, capabilities, out);
+    } else if (command.equals("spoolfetch") && spool != null) {
+      processSpoolfetchCommand(args, capabilities, out);
+    } else if (command.equals("cap")) {
+      processCapCommand(args, capabilities, out);
     } else if (command.equals("nodes")) {
-      return processNodesCommand();
+      processNodesCommand(out);
     } else if (command.equals("version")) {
-      return processVersionCommand();
+      processVersionCommand(out);
     } else if (command.equals("quit")) {
       throw new QuitException();
     } else {
@@ -73,138 +222,654 @@ public class MetricsCommandProcessor {
     }
   }
 
-  private List<String> processConfigCommand(final List<String> args) {
-    if (args.size() < 1) {
-      return unknownService();
+  private void processCapCommand(final List<String> args, final Set<Capability> capabilities,
+                                 final MuninOutput out) {
+    // the client lists what it supports, we answer with all we support
+    capabilities.clear();
+    for (String arg : args) {
+      Capability capability = Capability.forProtocolName(arg);
+      if (capability != null) {
+        capabilities.add(capability);
+      }
     }
 
-    String service = args.get(0);
-    MuninGraph graph = muninGraphProvider.getGraphs().get(service);
+    out.append("cap");
+    for (Capability capability : Capability.values()) {
+      if (capability != Capability.SPOOL || spool != null) {
+        out.append(' ').append(capability.getProtocolName());
+      }
+    }
+    out.endLine();
+  }
+
+  private void processConfigCommand(final List<String> args, final Set<Capability> capabilities,
+                                    final MuninOutput out) {
+    MuninGraph graph = findGraph(args, capabilities);
     if (graph == null) {
-      return unknownService();
+      unknownService(out);
+      return;
     }
 
-    List<String> output = new ArrayList<String>();
+    final List<FetchPlan> graphPlans = plans(graphsOf(graph));
+
+    // with dirtyconfig, values are written along with the config of each field
+    final boolean dirty = capabilities.contains(Capability.DIRTYCONFIG);
+    final SampledFrame sampled = dirty ? sampledFrame : null;
+    Map<String, Snapshot> snapshots = null;
+    if (dirty) {
+      snapshots = sampled != null ? Collections.<String, Snapshot>emptyMap()
+                                  : collectSnapshots(graphPlans);
+    }
 
-    output.add(format("graph_title %s", graph.getTitle()));
-    output.add(format("graph_category %s", graph.getCategory()));
+    for (FetchPlan plan : graphPlans) {
+      if (graph instanceof MuninMultigraph) {
+        out.append("multigraph ").append(plan.getGraph().getName()).endLine();
+      }
+      writeConfig(plan, sampled, snapshots, capabilities, out);
+    }
+
+    out.append('.').endLine();
+  }
+
+  /**
+   * @param sampled The sampled values to write, or null.
+   * @param snapshots The snapshots to write values from when not sampled, or null to write the
+   *                  config only.
+   * @param capabilities The capabilities of the connection. Field ids are announced for binary
+   *                     fetch, update rates only to spooling masters.
+   */
+  private void writeConfig(final FetchPlan plan, final SampledFrame sampled,
+                           final Map<String, Snapshot> snapshots,
+                           final Set<Capability> capabilities, final MuninOutput out) {
+    final boolean withIds = capabilities.contains(Capability.BINARY);
+    final MuninGraph graph = plan.getGraph();
+    out.append("graph_title ").append(graph.getTitle()).endLine();
+    out.append("graph_category ").append(graph.getCategory()).endLine();
 
     if (graph.getArgs() != null && graph.getArgs().length() > 0) {
-      output.add(format("graph_args %s", graph.getArgs()));
+      out.append("graph_args ").append(graph.getArgs()).endLine();
     }
-    output.add(format("graph_vlabel %s", graph.getVlabel()));
+    out.append("graph_vlabel ").append(graph.getVlabel()).endLine();
 
-    for (MuninDataSource dataSource : graph.getDataSources()) {
-      List<String> names = dataSource.getMetricNames(registry);
+    // the master only gets samples at the update rate when it pulls them with spoolfetch
+    if (graph.getUpdateRate() > 0 && spool != null && capabilities.contains(Capability.SPOOL)) {
+      out.append("update_rate ").append(graph.getUpdateRate()).endLine();
+    }
 
-      for (String name : names) {
-        Metric metric = registry.getMetrics().get(name);
-        if (metric != null) {
-          Property property = PropertyFactory.getProperty(dataSource.getPropertyOrNull(), metric);
+    final int sampledGraph = sampled != null ? sampled.graph(graph.getName()) : -1;
+    final List<FetchPlan.Field> fields = plan.getFields();
+    for (int i = 0; i < fields.size(); i++) {
+      FetchPlan.Field field = fields.get(i);
+      MuninDataSource dataSource = field.dataSource;
+      String fieldName = field.name;
 
-          String muninName = dataSource.getName(name);
+      out.append(fieldName).append(".label ").append(field.label).endLine();
+      out.append(fieldName).append(".type ").append(field.type).endLine();
+      out.append(fieldName).append(".min ").append(dataSource.getMin()).endLine();
 
-          output.add(format("%s.label %s", escapeName(muninName, property), dataSource.getLabel(name)));
-          output.add(format("%s.type %s", escapeName(muninName, property), property.getType()));
-          output.add(format("%s.min %d", escapeName(muninName, property), dataSource.getMin()));
+      if (dataSource.getCdef() != null) {
+        out.append(fieldName).append(".cdef ").append(dataSource.getCdef()).endLine();
+      }
 
-          if (dataSource.getCdef() != null) {
-            output.add(format("%s.cdef %s", escapeName(muninName, property), dataSource.getCdef()));
-          }
+      if (dataSource.getColor() != null) {
+        out.append(fieldName).append(".color ").append(String.valueOf(dataSource.getCdef())).endLine();
+      }
 
-          if (dataSource.getColor() != null) {
-            output.add(format("%s.color %s", escapeName(muninName, property), dataSource.getCdef()));
-          }
+      if (dataSource.getDraw() != null) {
+        out.append(fieldName).append(".draw ").append(dataSource.getDraw()).endLine();
+      }
 
-          if (dataSource.getDraw() != null) {
-            output.add(format("%s.draw %s", escapeName(muninName, property), dataSource.getDraw()));
-          }
+      if (dataSource.getLine() != null) {
+        out.append(fieldName).append(".line ").append(dataSource.getLine()).endLine();
+      }
 
-          if (dataSource.getLine() != null) {
-            output.add(format("%s.line %s", escapeName(muninName, property), dataSource.getLine()));
-          }
+      if (dataSource.getStack() != null) {
+        out.append(fieldName).append(".stack ").append(dataSource.getStack()).endLine();
+      }
 
-          if (dataSource.getStack() != null) {
-            output.add(format("%s.stack %s", escapeName(muninName, property), dataSource.getStack()));
+      if (withIds) {
+        out.append(fieldName).append(".id ").append(field.id).endLine();
+      }
+
+      if (snapshots != null) {
+        int slot = sampled != null ? sampled.slot(sampledGraph, i, field.id) : -1;
+        out.append(fieldName).append(".value ")
+            .appendNumber(value(field, sampled, slot, snapshots)).endLine();
+      }
+    }
+  }
+
+  private void processFetchCommand(final List<String> args, final Set<Capability> capabilities,
+                                   final MuninOutput out) {
+    final boolean binary = capabilities.contains(Capability.BINARY);
+    MuninGraph graph = findGraph(args, capabilities);
+    if (graph == null) {
+      if (binary) {
+        BinaryFrame.writeEmpty(out);
+      } else {
+        unknownService(out);
+      }
+      return;
+    }
+
+    final List<FetchPlan> graphPlans = plans(graphsOf(graph));
+
+    // when sampling, values are served from the last sample, all from the same point in time.
+    // Otherwise collect all snapshots so that data sources that work against the same snapshot,
+    // will sample from the exact same snapshot, also across the graphs of a multigraph.
+    final SampledFrame sampled = sampledFrame;
+    final Map<String, Snapshot> snapshots = sampled != null
+        ? Collections.<String, Snapshot>emptyMap()
+        : collectSnapshots(graphPlans);
+
+    if (binary) {
+      // field ids are unique across graphs, so multigraphs need no markers
+      BinaryFrame frame = FRAMES.get();
+      frame.reset();
+      for (FetchPlan plan : graphPlans) {
+        final int sampledGraph = sampled != null ? sampled.graph(plan.getGraph().getName()) : -1;
+        final List<FetchPlan.Field> fields = plan.getFields();
+        for (int i = 0; i < fields.size(); i++) {
+          FetchPlan.Field field = fields.get(i);
+          int slot = sampled != null ? sampled.slot(sampledGraph, i, field.id) : -1;
+          if (slot < 0) {
+            frame.add(field.id, value(field, snapshots));
+          } else if (sampled.isIntegral(slot)) {
+            frame.addLong(field.id, sampled.getLong(slot));
+          } else {
+            frame.addDouble(field.id, sampled.getDouble(slot));
           }
         }
       }
+      frame.writeTo(out);
+      return;
+    }
+
+    for (FetchPlan plan : graphPlans) {
+      if (graph instanceof MuninMultigraph) {
+        out.append("multigraph ").append(plan.getGraph().getName()).endLine();
+      }
+      final int sampledGraph = sampled != null ? sampled.graph(plan.getGraph().getName()) : -1;
+      final List<FetchPlan.Field> fields = plan.getFields();
+      for (int i = 0; i < fields.size(); i++) {
+        FetchPlan.Field field = fields.get(i);
+        int slot = sampled != null ? sampled.slot(sampledGraph, i, field.id) : -1;
+        out.append(field.valuePrefix);
+        if (slot < 0) {
+          out.appendNumber(value(field, snapshots));
+        } else if (sampled.isIntegral(slot)) {
+          out.append(sampled.getLong(slot));
+        } else {
+          NumberUtil.append(out, sampled.getDouble(slot));
+        }
+        out.endLine();
+      }
     }
 
-    output.add(".");
-    return output;
+    // mark end of output
+    out.append('.').endLine();
   }
 
-  private List<String> processFetchCommand(final List<String> args) {
-    if (args.size() < 1) {
-      return unknownService();
+  private void processSpoolfetchCommand(final List<String> args,
+                                        final Set<Capability> capabilities,
+                                        final MuninOutput out) {
+    long since;
+    try {
+      since = args.isEmpty() ? 0 : Long.parseLong(args.get(0));
+    } catch (NumberFormatException e) {
+      out.append("# invalid timestamp").endLine();
+      out.append('.').endLine();
+      return;
     }
 
-    String service = args.get(0);
-    MuninGraph graph = muninGraphProvider.getGraphs().get(service);
-    if (graph == null) {
-      return unknownService();
+    // spooled output is always in multigraph format, with the config of every graph
+    for (FetchPlan plan : plans(allGraphs())) {
+      String name = plan.getGraph().getName();
+      out.append("multigraph ").append(name).endLine();
+      writeConfig(plan, null, null, capabilities, out);
+      spool.writeSince(name, since, out);
     }
 
-    // collect all snapshots so that data sources that work against the same snapshot,
-    // will sample from the exact same snapshot.
-    Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
-    for (MuninDataSource dataSource : graph.getDataSources()) {
-      List<String> names = dataSource.getMetricNames(registry);
+    out.append('.').endLine();
+  }
 
-      for (String name : names) {
-        Metric metric = registry.getMetrics().get(name);
+  /**
+   * Record the values of the graphs due at a point in time in the spool, sharing snapshots across
+   * graphs like fetch. A graph is due each time a multiple of its update rate has passed since
+   * the epoch, so that graphs with the same rate are always sampled together.
+   *
+   * @param time The time of the sample, in seconds since the epoch.
+   */
+  void sampleSpool(final long time) {
+    final MuninSpool spool = this.spool;
+    if (spool == null) {
+      return;
+    }
 
-        if (metric instanceof Sampling) {
-          snapshots.put(name, ((Sampling) metric).getSnapshot());
+    final long last = lastSampleTime;
+    lastSampleTime = time;
+
+    final List<MuninGraph> allGraphs = allGraphs();
+    final Set<String> names = new HashSet<String>();
+    final List<MuninGraph> graphs = new ArrayList<MuninGraph>();
+    for (MuninGraph graph : allGraphs) {
+      names.add(graph.getName());
+      long rate = graph.getUpdateRate() > 0 ? graph.getUpdateRate() : spool.getDefaultRate();
+      if (last == Long.MIN_VALUE || time / rate != last / rate) {
+        graphs.add(graph);
+      }
+    }
+    spool.retainGraphs(names);
+    retainGraphs(allGraphs);
+    if (graphs.isEmpty()) {
+      return;
+    }
+
+    final List<FetchPlan> graphPlans = plans(graphs);
+    final Map<String, Snapshot> snapshots = collectSnapshots(graphPlans);
+    for (FetchPlan plan : graphPlans) {
+      String graphName = plan.getGraph().getName();
+      for (FetchPlan.Field field : plan.getFields()) {
+        try {
+          spool.record(graphName, field.name, time, value(field, snapshots).doubleValue());
+        } catch (RuntimeException e) {
+          LOG.debug("Failed to sample " + field.metricName + " for spooling", e);
         }
       }
+      spool.evictBefore(graphName, time);
     }
+  }
 
-    List<String> output = new ArrayList<String>();
-    for (MuninDataSource dataSource : graph.getDataSources()) {
-      List<String> names = dataSource.getMetricNames(registry);
+  /**
+   * Sample all graphs at once, from one set of snapshots, and publish the values to be served by
+   * fetch until the next sample. Fetch then costs the same no matter how expensive gauges or
+   * reservoirs are to read, and all values served are from the same point in time. Fields added
+   * since the last sample are read when fetched. Virtual nodes are sampled as well.
+   *
+   * <p>Must be called from a single thread.
+   */
+  void sampleFrame() {
+    final List<MuninGraph> allGraphs = allGraphs();
+    retainGraphs(allGraphs);
+    final List<FetchPlan> graphPlans = plans(allGraphs);
+    final Map<String, Snapshot> snapshots = collectSnapshots(graphPlans);
+
+    int fieldCount = 0;
+    for (FetchPlan plan : graphPlans) {
+      fieldCount += plan.getFields().size();
+    }
+    // a new frame every time, as readers may still hold the previous one
+    final SampledFrame frame = new SampledFrame(graphPlans.size(), fieldCount);
+    for (FetchPlan plan : graphPlans) {
+      frame.startGraph(plan.getGraph().getName());
+      for (FetchPlan.Field field : plan.getFields()) {
+        Number value = null;
+        try {
+          value = value(field, snapshots);
+        } catch (RuntimeException e) {
+          LOG.debug("Failed to sample " + field.metricName, e);
+        }
+        frame.put(field.id, value);
+      }
+    }
+    sampledFrame = frame;
 
-      for (String name : names) {
-        Metric metric = registry.getMetrics().get(name);
+    for (MetricsCommandProcessor node : virtualNodes.values()) {
+      node.sampleFrame();
+    }
+  }
 
+  /**
+   * @return All graphs, with multigraphs replaced by the graphs they contain. Graphs that are
+   *         also part of a multigraph are included once.
+   */
+  private List<MuninGraph> allGraphs() {
+    Map<String, MuninGraph> graphs = new LinkedHashMap<String, MuninGraph>();
+    for (MuninGraph graph : muninGraphProvider.getGraphs().values()) {
+      for (MuninGraph contained : graphsOf(graph)) {
+        if (!graphs.containsKey(contained.getName())) {
+          graphs.put(contained.getName(), contained);
+        }
+      }
+    }
+    return new ArrayList<MuninGraph>(graphs.values());
+  }
+
+  /**
+   * Receives the values of graphs, graph by graph and field by field.
+   */
+  interface ValueVisitor {
+
+    void graph(MuninGraph graph);
+
+    void value(String fieldName, String label, Property property, Number value);
+  }
+
+  /**
+   * Find the graphs to visit with {@link #visitValues}.
+   *
+   * @param service A graph or multigraph, or null for all graphs.
+   * @return The graphs, or null if there is no such graph.
+   */
+  List<MuninGraph> findGraphs(final String service) {
+    if (service == null) {
+      return allGraphs();
+    }
+    MuninGraph graph = findGraph(Collections.singletonList(service),
+                                 EnumSet.of(Capability.MULTIGRAPH));
+    return graph != null ? new ArrayList<MuninGraph>(graphsOf(graph)) : null;
+  }
+
+  /**
+   * Sample graphs like fetch, sharing snapshots across all of them, e.g. to serve them in another
+   * format than the munin protocol.
+   */
+  void visitValues(final List<MuninGraph> graphs, final ValueVisitor visitor) {
+    final List<FetchPlan> graphPlans = plans(graphs);
+    final SampledFrame sampled = sampledFrame;
+    final Map<String, Snapshot> snapshots = sampled != null
+        ? Collections.<String, Snapshot>emptyMap()
+        : collectSnapshots(graphPlans);
+    for (FetchPlan plan : graphPlans) {
+      visitor.graph(plan.getGraph());
+      final int sampledGraph = sampled != null ? sampled.graph(plan.getGraph().getName()) : -1;
+      final List<FetchPlan.Field> fields = plan.getFields();
+      for (int i = 0; i < fields.size(); i++) {
+        FetchPlan.Field field = fields.get(i);
+        int slot = sampled != null ? sampled.slot(sampledGraph, i, field.id) : -1;
+        visitor.value(field.name, field.label, field.property,
+                      value(field, sampled, slot, snapshots));
+      }
+    }
+  }
+
+  private static Collection<MuninGraph> graphsOf(final MuninGraph graph) {
+    return graph instanceof MuninMultigraph
+        ? ((MuninMultigraph) graph).getGraphs().values()
+        : Collections.singletonList(graph);
+  }
+
+  /**
+   * @return The plans of the graphs, compiling those that are missing or stale.
+   */
+  private List<FetchPlan> plans(final Collection<MuninGraph> graphs) {
+    List<FetchPlan> graphPlans = new ArrayList<FetchPlan>(graphs.size());
+    for (MuninGraph graph : graphs) {
+      graphPlans.add(plan(graph));
+    }
+    return graphPlans;
+  }
+
+  private FetchPlan plan(final MuninGraph graph) {
+    final boolean cached = listen();
+    // read before compiling, so that a plan compiled during a registry change is stale at once
+    final int generation = registryGeneration.get();
+    FetchPlan plan = plans.get(graph.getName());
+    if (plan != null && plan.getGraph() == graph && plan.getGeneration() == generation) {
+      return plan;
+    }
+
+    final Map<String, Metric> metrics = registry.getMetrics();
+    final List<FetchPlan.Field> fields = new ArrayList<FetchPlan.Field>();
+    for (MuninDataSource dataSource : graph.getDataSources()) {
+      for (String name : dataSource.getMetricNames(registry)) {
+        Metric metric = metrics.get(name);
         if (metric != null) {
           Property property = PropertyFactory.getProperty(dataSource.getPropertyOrNull(), metric);
+          String fieldName = escapeName(dataSource.getName(name), property);
+          fields.add(new FetchPlan.Field(dataSource, name, metric, property, fieldName,
+                                         dataSource.getLabel(name),
+                                         fieldId(graph.getName(), fieldName)));
+        }
+      }
+    }
+    releaseFieldIds(graph.getName(), fields);
+    plan = new FetchPlan(graph, generation, fields);
+    if (cached) {
+      plans.put(graph.getName(), plan);
+    }
+    return plan;
+  }
 
-          String muninName = dataSource.getName(name);
-
-          output.add(format("%s.value %s", escapeName(muninName, property),
-            NumberUtil.toString(property.getNumber(metric, snapshots.get(name), rateUnit, durationUnit))));
+  /**
+   * @return One snapshot per sampling metric of the plans, shared by all its fields.
+   */
+  private static Map<String, Snapshot> collectSnapshots(final List<FetchPlan> graphPlans) {
+    Map<String, Snapshot> snapshots = null;
+    for (FetchPlan plan : graphPlans) {
+      if (!plan.hasSampling()) {
+        continue;
+      }
+      if (snapshots == null) {
+        snapshots = new HashMap<String, Snapshot>();
+      }
+      for (FetchPlan.Field field : plan.getFields()) {
+        if (field.sampling && !snapshots.containsKey(field.metricName)) {
+          snapshots.put(field.metricName, ((Sampling) field.metric).getSnapshot());
         }
       }
     }
+    return snapshots != null ? snapshots : Collections.<String, Snapshot>emptyMap();
+  }
 
-    // mark end of output
-    output.add(".");
+  private Number value(final FetchPlan.Field field, final Map<String, Snapshot> snapshots) {
+    return field.property.getNumber(field.metric,
+                                    field.sampling ? snapshots.get(field.metricName) : null,
+                                    rateUnit, durationUnit);
+  }
+
+  /**
+   * @param slot The slot of the field in the sampled frame, or -1 if not sampled.
+   * @return The sampled value of the field if there is one, else its current value.
+   */
+  private Number value(final FetchPlan.Field field, final SampledFrame sampled, final int slot,
+                       final Map<String, Snapshot> snapshots) {
+    if (slot >= 0) {
+      return sampled.get(slot);
+    }
+    return value(field, snapshots);
+  }
+
+  /**
+   * @return The binary fetch id of a field, assigned the first time the field is seen.
+   */
+  private int fieldId(final String graphName, final String fieldName) {
+    ConcurrentMap<String, Integer> graphIds = fieldIds.get(graphName);
+    if (graphIds == null) {
+      ConcurrentMap<String, Integer> created = new ConcurrentHashMap<String, Integer>();
+      graphIds = fieldIds.putIfAbsent(graphName, created);
+      if (graphIds == null) {
+        graphIds = created;
+      }
+    }
+    Integer id = graphIds.get(fieldName);
+    if (id == null) {
+      Integer assigned = nextFieldId.getAndIncrement();
+      id = graphIds.putIfAbsent(fieldName, assigned);
+      if (id == null) {
+        id = assigned;
+      }
+    }
+    return id;
+  }
+
+  /**
+   * Release the ids of the fields no longer in a graph.
+   */
+  private void releaseFieldIds(final String graphName, final List<FetchPlan.Field> fields) {
+    ConcurrentMap<String, Integer> graphIds = fieldIds.get(graphName);
+    if (graphIds != null) {
+      Set<String> names = new HashSet<String>();
+      for (FetchPlan.Field field : fields) {
+        names.add(field.name);
+      }
+      graphIds.keySet().retainAll(names);
+    }
+  }
 
-    return output;
+  /**
+   * Release the ids and plans of graphs no longer served.
+   */
+  private void retainGraphs(final Collection<MuninGraph> graphs) {
+    Set<String> names = new HashSet<String>();
+    for (MuninGraph graph : graphs) {
+      names.add(graph.getName());
+    }
+    fieldIds.keySet().retainAll(names);
+    plans.keySet().retainAll(names);
   }
 
-  private List<String> processListCommand() {
-    List<String> sortedMuninNames = new ArrayList<String>(muninGraphProvider.getGraphs().keySet());
-    Collections.sort(sortedMuninNames);
+  private void processListCommand(final List<String> args, final Set<Capability> capabilities,
+                                  final MuninOutput out) {
+    // hostnames that are not a virtual node list this node, as masters may know it by an alias
+    if (!args.isEmpty()) {
+      MetricsCommandProcessor node = virtualNodes.get(args.get(0));
+      if (node != null) {
+        node.processListCommand(Collections.<String>emptyList(), capabilities, out);
+        return;
+      }
+    }
+
+    Set<String> sortedMuninNames = new TreeSet<String>();
+    for (MuninGraph graph : muninGraphProvider.getGraphs().values()) {
+      if (!(graph instanceof MuninMultigraph)) {
+        sortedMuninNames.add(graph.getName());
+      } else if (capabilities.contains(Capability.MULTIGRAPH)) {
+        sortedMuninNames.add(graph.getName());
+      } else {
+        // masters without multigraph support get the graphs one by one
+        sortedMuninNames.addAll(((MuninMultigraph) graph).getGraphs().keySet());
+      }
+    }
 
-    return Collections.singletonList(StringUtils.join(sortedMuninNames, ' '));
+    boolean first = true;
+    for (String name : sortedMuninNames) {
+      if (!first) {
+        out.append(' ');
+      }
+      out.append(name);
+      first = false;
+    }
+    out.endLine();
   }
 
-  private List<String> processNodesCommand() {
-    return asList(hostname.getHostname(), ".");
+  /**
+   * Find the graph of a config or fetch command. Multigraphs are only served to clients that
+   * announced multigraph support, the graphs they contain are served to anyone.
+   */
+  private MuninGraph findGraph(final List<String> args, final Set<Capability> capabilities) {
+    if (args.size() < 1) {
+      return null;
+    }
+    String service = args.get(0);
+    Map<String, MuninGraph> graphs = muninGraphProvider.getGraphs();
+    MuninGraph graph = graphs.get(service);
+    if (graph instanceof MuninMultigraph) {
+      return capabilities.contains(Capability.MULTIGRAPH) ? graph : null;
+    } else if (graph != null) {
+      return graph;
+    }
+
+    for (MuninGraph candidate : graphs.values()) {
+      if (candidate instanceof MuninMultigraph) {
+        MuninGraph subGraph = ((MuninMultigraph) candidate).getGraphs().get(service);
+        if (subGraph != null) {
+          return subGraph;
+        }
+      }
+    }
+    return null;
   }
 
-  private List<String> processVersionCommand() {
-    return asList("metrics-munin-reporter munin node on " + hostname.getHostname());
+  private void processNodesCommand(final MuninOutput out) {
+    out.append(hostname.getHostname()).endLine();
+    for (String node : virtualNodes.keySet()) {
+      out.append(node).endLine();
+    }
+    out.append('.').endLine();
   }
 
-  private List<String> unknownService() {
-    return Arrays.asList("# unknown service", ".");
+  private void processVersionCommand(final MuninOutput out) {
+    out.append("metrics-munin-reporter munin node on ").append(hostname.getHostname()).endLine();
+  }
+
+  private void unknownService(final MuninOutput out) {
+    out.append("# unknown service").endLine();
+    out.append('.').endLine();
   }
 
   private String escapeName(final String name, final Property property) {
     return MuninUtil.escapeMuninName(name + "__" + property.name());
   }
+
+  /**
+   * Recompile all graphs on next use, e.g. after graph providers were added or removed. Graphs
+   * replaced by the provider are recompiled anyway.
+   */
+  void graphsChanged() {
+    invalidatePlans();
+    retainGraphs(allGraphs());
+  }
+
+  private void invalidatePlans() {
+    registryGeneration.incrementAndGet();
+    plans.clear();
+  }
+
+  /**
+   * Makes all plans stale whenever a metric is added or removed, as both can change the fields of
+   * any graph.
+   */
+  private final class RegistryListener implements MetricRegistryListener {
+
+    @Override
+    public void onGaugeAdded(final String name, final Gauge<?> gauge) {
+      invalidatePlans();
+    }
+
+    @Override
+    public void onGaugeRemoved(final String name) {
+      invalidatePlans();
+    }
+
+    @Override
+    public void onCounterAdded(final String name, final Counter counter) {
+      invalidatePlans();
+    }
+
+    @Override
+    public void onCounterRemoved(final String name) {
+      invalidatePlans();
+    }
+
+    @Override
+    public void onHistogramAdded(final String name, final Histogram histogram) {
+      invalidatePlans();
+    }
+
+    @Override
+    public void onHistogramRemoved(final String name) {
+      invalidatePlans();
+    }
+
+    @Override
+    public void onMeterAdded(final String name, final Meter meter) {
+      invalidatePlans();
+    }
+
+    @Override
+    public void onMeterRemoved(final String name) {
+      invalidatePlans();
+    }
+
+    @Override
+    public void onTimerAdded(final String name, final Timer timer) {
+      invalidatePlans();
+    }
+
+    @Override
+    public void onTimerRemoved(final String name) {
+      invalidatePlans();
+    }
+  }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Serves the commands of a munin node, read from connections by the transports of
+ * {@link MuninServer}.
+ */
+interface MuninCommandProcessor {
+
+  Hostname getHostname();
+
+  /**
+   * @return The node with the hostname, this processor for its own hostname, or null if there is
+   *         no such node.
+   */
+  MuninCommandProcessor getNode(String nodeHostname);
+
+  /**
+   * Process a command, appending the response to the output as it is produced.
+   *
+   * @param capabilities The capabilities negotiated on the connection, updated by {@code cap}.
+   */
+  void processCommand(String command, List<String> args, Set<Capability> capabilities,
+                      MuninOutput out)
+    throws QuitException, UnknownCommandException;
+}
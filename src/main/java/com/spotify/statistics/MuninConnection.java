@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+/**
+ * An open munin connection, as seen by the server when shutting down.
+ */
+interface MuninConnection {
+
+  /**
+   * Stop accepting commands. An idle connection is closed right away, a connection in the middle
+   * of a command is closed as soon as its response is written.
+   */
+  void drain();
+
+  /**
+   * Close the connection right away, whatever it is doing.
+   */
+  void close();
+}
@@ -30,6 +30,7 @@ public class MuninGraph {
   private final String vlabel;
   private final String args;
   private final List<MuninDataSource> dataSources;
+  private final int updateRate;
 
   public MuninGraph(final String name, final String category, final String title) {
     this(name, category, title, new ArrayList<MuninDataSource>());
@@ -47,6 +48,16 @@ public class MuninGraph {
 
   public MuninGraph(final String name, final String category, final String title,
                     final List<MuninDataSource> dataSources, final String vlabel, final String args) {
+    this(name, category, title, dataSources, vlabel, args, 0);
+  }
+
+  /**
+   * @param updateRate How often the graph is sampled when spooling, in seconds, or 0 for the
+   *                   spool's default interval.
+   */
+  public MuninGraph(final String name, final String category, final String title,
+                    final List<MuninDataSource> dataSources, final String vlabel, final String args,
+                    final int updateRate) {
     Validate.notNull(name);
     Validate.notNull(category);
     Validate.notNull(title);
@@ -58,6 +69,8 @@ public class MuninGraph {
     this.dataSources = dataSources;
     this.vlabel = vlabel;
     this.args = args;
+    Validate.isTrue(updateRate >= 0, "Update rate must not be negative");
+    this.updateRate = updateRate;
   }
 
   public String getName() {
@@ -84,6 +97,14 @@ public class MuninGraph {
     return dataSources;
   }
 
+  /**
+   * The munin update_rate of the graph, how often it is sampled when spooling.
+   * @return The update rate in seconds, or 0 if not set
+   */
+  public int getUpdateRate() {
+    return updateRate;
+  }
+
   @Override
   public boolean equals(final Object o) {
     if (this == o) {
@@ -113,6 +134,9 @@ public class MuninGraph {
     if (!vlabel.equals(that.vlabel)) {
       return false;
     }
+    if (updateRate != that.updateRate) {
+      return false;
+    }
 
     return true;
   }
@@ -125,6 +149,7 @@ public class MuninGraph {
     result = 31 * result + vlabel.hashCode();
     result = 31 * result + (args != null ? args.hashCode() : 0);
     result = 31 * result + dataSources.hashCode();
+    result = 31 * result + updateRate;
     return result;
   }
 
@@ -137,6 +162,7 @@ public class MuninGraph {
       + ", vlabel='" + vlabel + '\''
       + ", args='" + args + '\''
       + ", dataSources=" + dataSources
+      + ", updateRate=" + updateRate
       + '}';
   }
 
@@ -146,6 +172,7 @@ public class MuninGraph {
     private String vlabel;
     private String muninName;
     private String args;
+    private int updateRate;
     private final List<MuninDataSource> dataSources = new ArrayList<MuninDataSource>();
     private final MuninDataSourceFactory dataSourceFactory;
 
@@ -218,6 +245,18 @@ public class MuninGraph {
       return this;
     }
 
+    /**
+     * Sample the graph at a finer resolution than munin's 5 minutes. The samples are served
+     * with {@code spoolfetch}, see {@link MuninReporter#startSpooling(MuninSpoolConfig)}.
+     * @param seconds How often to sample the graph
+     * @return This builder
+     */
+    public Builder updateRate(final int seconds) {
+      Validate.isTrue(seconds > 0, "Update rate must be positive");
+      this.updateRate = seconds;
+      return this;
+    }
+
     public String getCategory() {
       return category;
     }
@@ -242,8 +281,12 @@ public class MuninGraph {
       return dataSources;
     }
 
+    public int getUpdateRate() {
+      return updateRate;
+    }
+
     public MuninGraph build() {
-      return new MuninGraph(muninName, category, title, dataSources, vlabel, args);
+      return new MuninGraph(muninName, category, title, dataSources, vlabel, args, updateRate);
     }
   }
 
@@ -15,101 +15,206 @@
  */
 package com.spotify.statistics;
 
-import static java.util.Arrays.asList;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
-public class MuninHandler extends Thread {
+/**
+ * Serves a single connection using blocking reads and writes. Run by the handler executor
+ * configured in {@link MuninServerConfig}. After STARTTLS, reads and writes go through a
+ * {@link TlsChannel} instead of the plain channel.
+ */
+public class MuninHandler implements Runnable, MuninConnection, ConnectionTimeouts.Watched {
 
     private static final Logger LOG = Logger.getLogger(MuninHandler.class);
 
-  private static final String LINE_END = "\n";
+  private static final int IDLE = 0;
+  private static final int BUSY = 1;
+  private static final int CLOSED = 2;
+
+  private final SocketChannel channel;
+  private final BufferPool bufferPool;
+  private final MuninSession session;
+  private final ConnectionTimeouts timeouts;
+  private final int outputHighWaterMark;
+  private final MuninTls tls;
+  private final AtomicInteger state = new AtomicInteger(IDLE);
 
-  private final Socket socket;
-  private final MetricsCommandProcessor commandProcessor;
+  // set once STARTTLS has secured the connection, only used by the handler thread
+  private TlsChannel tlsChannel;
 
-  public MuninHandler(final Socket socket, final MetricsCommandProcessor commandProcessor) {
-    this.socket = socket;
-    this.commandProcessor = commandProcessor;
+  private volatile boolean draining = false;
+  private volatile long lastActivityNanos = System.nanoTime();
+  private ConnectionTimeouts.Watch watch;
 
-    // XXX we don't need to run this thread as a daemon
-    // setDaemon(true);
+  public MuninHandler(final SocketChannel channel, final MetricsCommandProcessor commandProcessor) {
+    this(channel, commandProcessor, new BufferPool(),
+         new ConnectionTimeouts(0, 0, 0, new MuninServerStats()), 0, null, null);
+  }
+
+  /**
+   * @param tls How to serve STARTTLS, or null if it is not supported.
+   */
+  MuninHandler(final SocketChannel channel, final MuninCommandProcessor commandProcessor,
+               final BufferPool bufferPool, final ConnectionTimeouts timeouts,
+               final int outputHighWaterMark, final ClientRateLimiter.Limits limits,
+               final MuninTls tls) {
+    this.channel = channel;
+    this.bufferPool = bufferPool;
+    this.timeouts = timeouts;
+    this.outputHighWaterMark = outputHighWaterMark;
+    this.tls = tls;
+    this.session = new MuninSession(commandProcessor, limits);
+    if (tls != null) {
+      session.offerTls(tls.isRequired());
+    }
   }
 
   @Override
   public void run() {
+    final ByteBuffer in = bufferPool.acquire();
+    final AsciiResponseEncoder out = new AsciiResponseEncoder(bufferPool);
+    watch = timeouts.watch(this);
     try {
-      final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      final Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-
-      InetAddress addr = InetAddress.getLocalHost();
-      String hostname = addr.getHostName();
-
-      write(out, "# Spotify munin node at " + hostname);
-      out.flush();
+      session.banner(out);
+      write(out);
 
       processInput(in, out);
     } catch (QuitException ignore) {
-    } catch (SocketException e) {
+    } catch (IOException e) {
       LOG.debug("Connection error, closing.", e);
     } catch (Exception e) {
       LOG.error("MuninHandler failed", e);
       throw new RuntimeException(e);
     } finally {
-      try {
-        socket.close();
-      } catch (IOException ignored) {
-      }
+      watch.cancel();
+      state.set(CLOSED);
+      closeTls();
+      closeChannel();
+      out.release();
+      bufferPool.release(in);
     }
   }
 
-  private void processInput(final BufferedReader in, final Writer out)
+  /**
+   * Stop serving commands, closing the connection now if idle or else once the command in
+   * progress is answered.
+   */
+  @Override
+  public void drain() {
+    draining = true;
+    if (state.compareAndSet(IDLE, CLOSED)) {
+      closeChannel();
+    }
+  }
+
+  /**
+   * Close the connection, interrupting any command in progress.
+   */
+  @Override
+  public void close() {
+    state.set(CLOSED);
+    closeChannel();
+  }
+
+  @Override
+  public long lastActivityNanos() {
+    return state.get() == BUSY ? System.nanoTime() : lastActivityNanos;
+  }
+
+  @Override
+  public void expire() {
+    close();
+  }
+
+  private void processInput(final ByteBuffer in, final AsciiResponseEncoder out)
     throws IOException, QuitException {
-    String line = in.readLine();
-    while (line != null) {
-      line = line.trim();
-      LOG.debug("> " + line);
-      if (line.length() > 0) {
-        processLine(out, line);
+    LineDecoder decoder = new LineDecoder();
+    while (read(in) >= 0) {
+      lastActivityNanos = System.nanoTime();
+      in.flip();
+      if (!state.compareAndSet(IDLE, BUSY)) {
+        // drained or closed while waiting for input
+        return;
+      }
+      boolean startTls = processBatch(decoder, in, out);
+      state.compareAndSet(BUSY, IDLE);
+      if (draining) {
+        return;
+      }
+      in.clear();
+      if (startTls) {
+        // anything sent in plain text after STARTTLS is dropped, not taken as sent over TLS
+        decoder = new LineDecoder();
+        tlsChannel = tls.start(channel);
+        lastActivityNanos = System.nanoTime();
       }
-      line = in.readLine();
     }
   }
 
-  private void processLine(final Writer out, final String line)
-    throws IOException, QuitException {
-    String[] lineTokens = line.split(" ");
-    String command = lineTokens[0];
-    List<String> args = new ArrayList<String>();
-    if (lineTokens.length > 1) {
-      args = asList(lineTokens).subList(1, lineTokens.length);
+  private int read(final ByteBuffer in) throws IOException {
+    return tlsChannel != null ? tlsChannel.read(in) : channel.read(in);
+  }
+
+  /**
+   * Run all complete commands read so far, in order, and write all their responses at once.
+   * Clients pipelining commands thereby get a single write per batch rather than one per command.
+   *
+   * @return True if the batch ended with STARTTLS being accepted.
+   */
+  private boolean processBatch(final LineDecoder decoder, final ByteBuffer in,
+                               final AsciiResponseEncoder out) throws IOException, QuitException {
+    try {
+      String line;
+      while ((line = decoder.decode(in)) != null) {
+        session.processLine(line, out);
+        if (session.takeStartTls()) {
+          return true;
+        }
+        if (outputHighWaterMark > 0 && out.pendingBytes() > outputHighWaterMark) {
+          write(out);
+        }
+      }
+      return false;
+    } finally {
+      // on quit, still answer the commands sent before it
+      write(out);
     }
+  }
 
+  /**
+   * Write all pending output, blocking until the client has taken it or the write timeout closes
+   * the channel.
+   */
+  private void write(final AsciiResponseEncoder out) throws IOException {
+    if (out.isEmpty()) {
+      return;
+    }
+    watch.writeStarted();
     try {
-      List<String> output = commandProcessor.processCommand(command, args);
-      for (String outline : output) {
-        write(out, outline);
+      out.writeTo(tlsChannel != null ? tlsChannel : channel);
+    } finally {
+      watch.writeFinished();
+    }
+    lastActivityNanos = System.nanoTime();
+  }
+
+  private void closeTls() {
+    if (tlsChannel != null) {
+      try {
+        tlsChannel.close();
+      } catch (IOException ignored) {
       }
-    } catch (UnknownCommandException e) {
-      write(out, "# Unknown command. Try list, config, fetch or quit");
     }
-    out.flush();
   }
 
-  private void write(final Writer out, final String str) throws IOException {
-    out.write(str + LINE_END);
-    LOG.debug("< " + str);
+  private void closeChannel() {
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+    }
   }
 }
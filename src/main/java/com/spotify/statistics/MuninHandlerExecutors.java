@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Executors for running {@link MuninHandler}s, i.e. serving connections on the
+ * {@link MuninTransport#BLOCKING} transport.
+ *
+ * <p>The executor services created here belong to the {@link MuninServer} they are configured
+ * for, which shuts them down when it is shut down. They must therefore not be shared between
+ * servers. Executors from elsewhere are left to the caller to shut down.
+ */
+public final class MuninHandlerExecutors {
+
+  private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+
+  // the executor services created here, to be shut down along with their server
+  private static final Set<ExecutorService> OWNED = Collections.synchronizedSet(
+      Collections.newSetFromMap(new WeakHashMap<ExecutorService, Boolean>()));
+
+  /**
+   * Start a new platform thread for every connection. This is the default.
+   * @return The executor
+   */
+  public static Executor threadPerConnection() {
+    final ThreadFactory threadFactory = namedThreadFactory("munin-handler");
+    return new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        threadFactory.newThread(command).start();
+      }
+    };
+  }
+
+  /**
+   * Serve connections from a fixed pool of platform threads. Connections accepted while all
+   * threads are busy wait for a thread to become available.
+   * @param threads The number of threads in the pool
+   * @return The executor
+   */
+  public static ExecutorService fixedPool(final int threads) {
+    Validate.isTrue(threads > 0, "At least one handler thread is required");
+    return owned(Executors.newFixedThreadPool(threads, namedThreadFactory("munin-handler")));
+  }
+
+  /**
+   * Serve connections from a pool of at most {@code maxThreads} platform threads. Idle threads
+   * are kept around for reuse for a minute. Connections accepted while all threads are busy are
+   * rejected rather than queued, see {@link MuninServerStats#getRejectedConnections()}.
+   * @param maxThreads The maximum number of threads in the pool
+   * @return The executor
+   */
+  public static ExecutorService boundedPool(final int maxThreads) {
+    Validate.isTrue(maxThreads > 0, "At least one handler thread is required");
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        maxThreads, maxThreads, 1, TimeUnit.MINUTES, new SynchronousQueue<Runnable>(),
+        namedThreadFactory("munin-handler"));
+    executor.allowCoreThreadTimeOut(true);
+    return owned(executor);
+  }
+
+  /**
+   * Start a new virtual thread for every connection. Requires a JVM with virtual thread support
+   * (Java 21 or later).
+   * @return The executor
+   * @throws UnsupportedOperationException If the JVM does not support virtual threads
+   */
+  public static ExecutorService virtualThreads() {
+    if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+      throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+    }
+    try {
+      return owned((ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null));
+    } catch (Exception e) {
+      throw new RuntimeException("Failed to create virtual thread executor", e);
+    }
+  }
+
+  /**
+   * @return true if {@link #virtualThreads()} is available on this JVM
+   */
+  public static boolean isVirtualThreadsSupported() {
+    return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+  }
+
+  private static ExecutorService owned(final ExecutorService executor) {
+    OWNED.add(executor);
+    return executor;
+  }
+
+  /**
+   * Shut down an executor if it was created here, see {@link MuninHandlerExecutors}.
+   */
+  static void shutdownOwned(final Executor executor) {
+    if (executor instanceof ExecutorService && OWNED.remove(executor)) {
+      ((ExecutorService) executor).shutdown();
+    }
+  }
+
+  static ThreadFactory namedThreadFactory(final String prefix) {
+    final AtomicInteger counter = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        // XXX we don't need to run these threads as daemons
+        return new Thread(r, prefix + "-" + counter.incrementAndGet());
+      }
+    };
+  }
+
+  private static Method findVirtualThreadExecutorFactory() {
+    // looked up reflectively to keep running on JVMs before virtual threads
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private MuninHandlerExecutors() {
+    // don't allow initialization
+  }
+}
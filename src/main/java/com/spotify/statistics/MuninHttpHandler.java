@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves the values of graphs over HTTP, as JSON or in the Prometheus text exposition format.
+ * {@code /graphs} serves all graphs, {@code /graphs/<name>} a single graph or multigraph. The
+ * format is picked by the {@code format} query parameter ({@code json} or {@code prometheus}),
+ * or else by the Accept header, defaulting to Prometheus.
+ */
+class MuninHttpHandler implements HttpHandler {
+
+  private static final Logger LOG = Logger.getLogger(MuninHttpHandler.class);
+
+  static final String PATH = "/graphs";
+
+  private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+  private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final MetricsCommandProcessor processor;
+
+  MuninHttpHandler(final MetricsCommandProcessor processor) {
+    this.processor = processor;
+  }
+
+  @Override
+  public void handle(final HttpExchange exchange) throws IOException {
+    try {
+      if (!exchange.getRequestMethod().equals("GET")) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+
+      String path = exchange.getRequestURI().getPath();
+      String service = null;
+      if (path.startsWith(PATH + "/") && path.length() > PATH.length() + 1) {
+        service = path.substring(PATH.length() + 1);
+      } else if (!path.equals(PATH) && !path.equals(PATH + "/")) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+
+      List<MuninGraph> graphs = processor.findGraphs(service);
+      if (graphs == null) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+
+      boolean json = isJsonRequested(exchange);
+      exchange.getResponseHeaders().set("Content-Type",
+                                        json ? JSON_CONTENT_TYPE : PROMETHEUS_CONTENT_TYPE);
+      // streamed in chunks as the values are sampled
+      exchange.sendResponseHeaders(200, 0);
+
+      WriterOutput out = new WriterOutput(new BufferedWriter(
+          new OutputStreamWriter(exchange.getResponseBody(), MuninSession.CHARSET)));
+      if (json) {
+        JsonVisitor visitor = new JsonVisitor(out);
+        visitor.begin(processor.getHostname().getHostname());
+        processor.visitValues(graphs, visitor);
+        visitor.end();
+      } else {
+        PrometheusVisitor visitor = new PrometheusVisitor(out);
+        processor.visitValues(graphs, visitor);
+        visitor.end();
+      }
+      out.flush();
+    } catch (RuntimeException e) {
+      // the response may be partly sent, all we can do is cut it short
+      LOG.warn("Failed to serve " + exchange.getRequestURI(), e);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static boolean isJsonRequested(final HttpExchange exchange) {
+    String query = exchange.getRequestURI().getQuery();
+    if (query != null) {
+      for (String param : query.split("&")) {
+        if (param.equals("format=json")) {
+          return true;
+        } else if (param.equals("format=prometheus")) {
+          return false;
+        }
+      }
+    }
+    String accept = exchange.getRequestHeaders().getFirst("Accept");
+    return accept != null && accept.contains("application/json");
+  }
+
+  private static boolean isFinite(final Number value) {
+    double d = value.doubleValue();
+    return !Double.isNaN(d) && !Double.isInfinite(d);
+  }
+
+  /**
+   * Writes graphs as {@code {"hostname":..., "graphs":[{"name":..., "fields":[...]}]}}, one
+   * graph per line.
+   */
+  private static class JsonVisitor implements MetricsCommandProcessor.ValueVisitor {
+
+    private final MuninOutput out;
+    private boolean firstGraph = true;
+    private boolean firstField;
+
+    JsonVisitor(final MuninOutput out) {
+      this.out = out;
+    }
+
+    void begin(final String hostname) {
+      out.append("{\"hostname\":");
+      appendString(hostname);
+      out.append(",\"graphs\":[");
+    }
+
+    @Override
+    public void graph(final MuninGraph graph) {
+      if (!firstGraph) {
+        out.append("]},").endLine();
+      } else {
+        out.endLine();
+      }
+      firstGraph = false;
+      firstField = true;
+
+      out.append("{\"name\":");
+      appendString(graph.getName());
+      out.append(",\"title\":");
+      appendString(graph.getTitle());
+      out.append(",\"category\":");
+      appendString(graph.getCategory());
+      out.append(",\"vlabel\":");
+      appendString(graph.getVlabel());
+      out.append(",\"fields\":[");
+    }
+
+    @Override
+    public void value(final String fieldName, final String label, final Property property,
+                      final Number value) {
+      if (!firstField) {
+        out.append(',');
+      }
+      firstField = false;
+
+      out.append("{\"name\":");
+      appendString(fieldName);
+      out.append(",\"label\":");
+      appendString(label);
+      out.append(",\"type\":\"").append(property.getType().name()).append("\",\"value\":");
+      if (isFinite(value)) {
+        out.appendNumber(value);
+      } else {
+        out.append("null");
+      }
+      out.append('}');
+    }
+
+    void end() {
+      if (!firstGraph) {
+        out.append("]}").endLine();
+      }
+      out.append("]}").endLine();
+    }
+
+    private void appendString(final String s) {
+      if (s == null) {
+        out.append("null");
+        return;
+      }
+      out.append('"');
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c == '"' || c == '\\') {
+          out.append('\\').append(c);
+        } else if (c < 0x20) {
+          out.append(String.format("\\u%04x", (int) c));
+        } else {
+          out.append(c);
+        }
+      }
+      out.append('"');
+    }
+  }
+
+  /**
+   * Writes all fields as two metrics, {@code munin_counter_total} for counts and
+   * {@code munin_gauge} for all other fields, labelled by graph and field. Names built from graph
+   * and field names could collide, e.g. graph {@code a_b} with field {@code c} and graph {@code a}
+   * with field {@code b_c}, and Prometheus rejects a scrape with a metric defined twice.
+   *
+   * <p>The samples of a metric must be written together, so counters are streamed as they are
+   * sampled while gauges are kept until {@link #end()}.
+   */
+  private static class PrometheusVisitor implements MetricsCommandProcessor.ValueVisitor {
+
+    static final String COUNTER = "munin_counter_total";
+    static final String GAUGE = "munin_gauge";
+
+    private final MuninOutput out;
+    private final StringWriter gauges = new StringWriter();
+    private final WriterOutput gaugeOut = new WriterOutput(gauges);
+    private boolean anyCounter;
+    private boolean anyGauge;
+    private MuninGraph graph;
+
+    PrometheusVisitor(final MuninOutput out) {
+      this.out = out;
+    }
+
+    @Override
+    public void graph(final MuninGraph graph) {
+      this.graph = graph;
+    }
+
+    @Override
+    public void value(final String fieldName, final String label, final Property property,
+                      final Number value) {
+      final MuninOutput target;
+      if (isCounter(property)) {
+        if (!anyCounter) {
+          out.append("# HELP " + COUNTER + " Munin fields counting events.").endLine();
+          out.append("# TYPE " + COUNTER + " counter").endLine();
+          anyCounter = true;
+        }
+        target = out.append(COUNTER);
+      } else {
+        anyGauge = true;
+        target = gaugeOut.append(GAUGE);
+      }
+
+      target.append("{graph=\"");
+      appendLabelValue(target, graph.getName());
+      target.append("\",field=\"");
+      appendLabelValue(target, fieldName);
+      target.append("\",label=\"");
+      appendLabelValue(target, label);
+      target.append("\"} ");
+      double d = value.doubleValue();
+      if (Double.isNaN(d)) {
+        target.append("NaN");
+      } else if (Double.isInfinite(d)) {
+        target.append(d > 0 ? "+Inf" : "-Inf");
+      } else {
+        target.appendNumber(value);
+      }
+      target.endLine();
+    }
+
+    void end() {
+      if (anyGauge) {
+        out.append("# HELP " + GAUGE + " Munin fields that may go up and down.").endLine();
+        out.append("# TYPE " + GAUGE + " gauge").endLine();
+        out.append(gauges.getBuffer());
+      }
+    }
+
+    private static void appendLabelValue(final MuninOutput target, final String s) {
+      String value = String.valueOf(s);
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '\\' || c == '"') {
+          target.append('\\').append(c);
+        } else if (c == '\n') {
+          target.append("\\n");
+        } else {
+          target.append(c);
+        }
+      }
+    }
+
+    /**
+     * Only counts are counters, munin DERIVE fields of e.g. gauges may decrease.
+     */
+    private static boolean isCounter(final Property property) {
+      return property == Property.CounterProperty.COUNT || property == Property.MeterProperty.COUNT
+             || property == Property.TimerProperty.COUNT
+             || property == Property.HistogramProperty.COUNT;
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP listener serving graphs using {@link MuninHttpHandler}, each request on its own
+ * thread, so that a slow scraper does not hold up others.
+ */
+class MuninHttpServer {
+
+  private final HttpServer server;
+  private final ExecutorService executor =
+      Executors.newCachedThreadPool(MuninHandlerExecutors.namedThreadFactory("munin-http"));
+
+  MuninHttpServer(final MetricsCommandProcessor processor, final InetSocketAddress address)
+      throws IOException {
+    this.server = HttpServer.create(address, 0);
+    server.createContext(MuninHttpHandler.PATH, new MuninHttpHandler(processor));
+    server.setExecutor(executor);
+  }
+
+  void start() {
+    server.start();
+  }
+
+  void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return The port listened on, e.g. when binding to port 0.
+   */
+  int getPort() {
+    return server.getAddress().getPort();
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * A service answering config and fetch for many graphs at once, using munin's multigraph
+ * capability. This saves a munin master one round trip per graph and samples all graphs from
+ * the same set of snapshots.
+ *
+ * <p>Masters that do not support multigraph see the contained graphs as separate services
+ * instead.
+ */
+public class MuninMultigraph extends MuninGraph {
+
+  private final MuninGraphProvider graphs;
+
+  /**
+   * @param name The name of the service.
+   * @param graphs The graphs to include.
+   */
+  public MuninMultigraph(final String name, final List<MuninGraph> graphs) {
+    this(name, new StaticMuninGraphProvider(graphs));
+  }
+
+  /**
+   * @param name The name of the service.
+   * @param graphs The provider of the graphs to include, asked on every request.
+   */
+  public MuninMultigraph(final String name, final MuninGraphProvider graphs) {
+    super(MuninUtil.validateMuninName(name), "multigraph", name);
+    Validate.notNull(graphs);
+    this.graphs = graphs;
+  }
+
+  /**
+   * @return The included graphs by name, sorted by name.
+   */
+  public Map<String, MuninGraph> getGraphs() {
+    Map<String, MuninGraph> sorted = new TreeMap<String, MuninGraph>();
+    for (Map.Entry<String, MuninGraph> entry : graphs.getGraphs().entrySet()) {
+      // nested multigraphs are not supported
+      if (!(entry.getValue() instanceof MuninMultigraph)) {
+        sorted.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return Collections.unmodifiableMap(sorted);
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    return super.equals(o) && graphs.equals(((MuninMultigraph) o).graphs);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * super.hashCode() + graphs.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "MuninMultigraph{"
+      + "name='" + getName() + '\''
+      + ", graphs=" + graphs.getGraphs().keySet()
+      + '}';
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+/**
+ * Sink for munin protocol output. Responses are appended piece by piece, so implementations can
+ * encode straight into their target without building intermediate strings.
+ */
+interface MuninOutput {
+
+  MuninOutput append(CharSequence s);
+
+  MuninOutput append(char c);
+
+  MuninOutput append(long value);
+
+  /**
+   * Append a value formatted the way munin expects numbers, see {@link NumberUtil#toString(Object)}.
+   */
+  MuninOutput appendNumber(Object value);
+
+  /**
+   * Append raw bytes, e.g. a binary fetch frame. Only supported by outputs writing to a
+   * connection.
+   */
+  MuninOutput append(byte[] bytes, int offset, int length);
+
+  /**
+   * Terminate the current line.
+   */
+  void endLine();
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.Validate;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * An aggregating munin node, serving the services of several munin nodes, e.g. the reporters of
+ * all JVMs on a host, from one port. A munin master then polls a single node per host.
+ *
+ * <p>The nodes are polled over persistent connections. Listing the services fetches the values
+ * of all nodes concurrently, config is cached per node. Services are passed through as the nodes
+ * serve them to multigraph capable masters, other masters are not served multigraph services.
+ * If several nodes serve a service with the same name, the first node configured wins. Connections
+ * are served by the {@link MuninTransport#BLOCKING} transport, as serving a command waits for
+ * the nodes.
+ */
+public class MuninProxy {
+
+  private final MuninServer server;
+  private final List<ProxyChild> children = new ArrayList<ProxyChild>();
+  private final ExecutorService executor;
+  private final CachingHostname hostname = CachingHostname.create();
+  private final MetricRegistry metrics = new MetricRegistry();
+
+  /**
+   * @param port        The port to bind on.
+   * @param bindAddress The address to bind on.
+   * @param nodes       The addresses of the munin nodes to aggregate.
+   */
+  public MuninProxy(final int port, final InetAddress bindAddress,
+                    final List<InetSocketAddress> nodes) {
+    this(port, bindAddress, nodes, new MuninProxyConfig(), new MuninServerConfig());
+  }
+
+  /**
+   * @param port         The port to bind on.
+   * @param bindAddress  The address to bind on.
+   * @param nodes        The addresses of the munin nodes to aggregate.
+   * @param config       How to poll the nodes.
+   * @param serverConfig How connections to the proxy are accepted and served.
+   */
+  public MuninProxy(final int port, final InetAddress bindAddress,
+                    final List<InetSocketAddress> nodes, final MuninProxyConfig config,
+                    final MuninServerConfig serverConfig) {
+    Validate.notEmpty(nodes);
+    Validate.notNull(config);
+    // serving a command waits for the nodes, which would stall a whole event loop
+    if (serverConfig.getTransport() != MuninTransport.BLOCKING) {
+      throw new UnsupportedOperationException(
+          "The proxy is only supported by the " + MuninTransport.BLOCKING + " transport");
+    }
+
+    for (InetSocketAddress node : nodes) {
+      children.add(new ProxyChild(node, config.getClientConfig(), metrics));
+    }
+    final AtomicInteger threads = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(nodes.size(), new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        Thread thread = new Thread(r, "munin-proxy-" + threads.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.server = new MuninServer(
+        new ProxyCommandProcessor(hostname, children, executor, config.getPrefetchWindowMillis()),
+        port, bindAddress, serverConfig);
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  /**
+   * Stop the proxy, closing the listening socket and all connections to the nodes.
+   */
+  public void stop() {
+    server.shutdown();
+    executor.shutdownNow();
+    for (ProxyChild child : children) {
+      child.close();
+    }
+    hostname.stop();
+  }
+
+  /**
+   * Latency and errors polling each node, as timers and meters named
+   * {@code munin-proxy.<host>:<port>.latency} and {@code munin-proxy.<host>:<port>.errors}.
+   *
+   * @return The metrics
+   */
+  public MetricRegistry getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return The stats of the connections served by the proxy.
+   */
+  public MuninServerStats getServerStats() {
+    return server.getStats();
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.Validate;
+
+import com.spotify.statistics.client.MuninClientConfig;
+
+/**
+ * Configuration for how a {@link MuninProxy} polls the munin nodes behind it.
+ *
+ */
+public class MuninProxyConfig {
+
+  private static final int DEFAULT_CONNECTIONS_PER_NODE = 2;
+  private static final long DEFAULT_PREFETCH_WINDOW_MILLIS = 10000;
+
+  private MuninClientConfig clientConfig;
+  private long prefetchWindowMillis;
+
+  public MuninProxyConfig() {
+    this.clientConfig = new MuninClientConfig().withMaxConnections(DEFAULT_CONNECTIONS_PER_NODE);
+    this.prefetchWindowMillis = DEFAULT_PREFETCH_WINDOW_MILLIS;
+  }
+
+  /**
+   * Get how each node is connected to. Defaults to at most 2 connections per node
+   * @return The client config
+   */
+  public MuninClientConfig getClientConfig() {
+    return clientConfig;
+  }
+
+  /**
+   * Set how each node is connected to, e.g. the number of connections kept open per node.
+   * @param clientConfig The client config
+   * @return This config
+   */
+  public MuninProxyConfig withClientConfig(final MuninClientConfig clientConfig) {
+    Validate.notNull(clientConfig);
+    this.clientConfig = clientConfig;
+    return this;
+  }
+
+  /**
+   * Get how long values prefetched when listing services are served. Defaults to 10 seconds
+   * @return The window in milliseconds
+   */
+  public long getPrefetchWindowMillis() {
+    return prefetchWindowMillis;
+  }
+
+  /**
+   * Set how long values prefetched when listing services are served. Fetches after the window
+   * go to the node directly.
+   * @param window The window, 0 to never serve prefetched values
+   * @param unit The unit of the window
+   * @return This config
+   */
+  public MuninProxyConfig withPrefetchWindow(final long window, final TimeUnit unit) {
+    Validate.isTrue(window >= 0, "Prefetch window must not be negative");
+    Validate.notNull(unit);
+    this.prefetchWindowMillis = unit.toMillis(window);
+    return this;
+  }
+}
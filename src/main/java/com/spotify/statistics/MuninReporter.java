@@ -17,11 +17,15 @@ package com.spotify.statistics;
 
 import static java.util.Arrays.asList;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
 import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.lang.Validate;
 import org.apache.log4j.Logger;
 
 import com.codahale.metrics.Counter;
@@ -58,7 +62,12 @@ public class MuninReporter extends ScheduledReporter {
   private static final com.codahale.metrics.MetricFilter DEFAULT_FILTER = com.codahale.metrics.MetricFilter.ALL;
   
   private final MuninServer server;
+  private final MetricsCommandProcessor processor;
   private final MergingMuninGraphProvider mergingGraphProvider;
+  private final CachingHostname hostname;
+  private MuninSpool spool;
+  private MuninHttpServer httpServer;
+  private volatile boolean sampling;
   
   
   /**
@@ -141,16 +150,101 @@ public class MuninReporter extends ScheduledReporter {
   public MuninReporter(final MetricRegistry registry, final int port,
                        final InetAddress bindAddress, final MetricFilter filter, final TimeUnit rateUnit, final TimeUnit durationUnit,
                        final Iterable<MuninGraphProvider> providers) {
+    this(registry, port, bindAddress, filter, rateUnit, durationUnit, new MuninServerConfig(), providers);
+  }
+
+  /**
+   * Create a new reporter with multiple graph providers.
+   *
+   * @param registry      The {@link MetricRegistry} to get metrics from.
+   * @param port          The port to bind on.
+   * @param bindAddress   The address to bind on.
+   * @param filter        The filter for which metrics to report.
+   * @param rateUnit      A unit of time.
+   * @param durationUnit  A unit of time.
+   * @param serverConfig  The configuration for how connections are accepted and served.
+   * @param providers     The {@link MuninGraphProvider} providers to get graph definitions from.
+   */
+  public MuninReporter(final MetricRegistry registry, final int port,
+                       final InetAddress bindAddress, final MetricFilter filter, final TimeUnit rateUnit, final TimeUnit durationUnit,
+                       final MuninServerConfig serverConfig,
+                       final Iterable<MuninGraphProvider> providers) {
+    this(registry, port, bindAddress, filter, rateUnit, durationUnit, serverConfig,
+         new ReverseLookupHostname(), providers);
+  }
+
+  /**
+   * Create a new reporter with multiple graph providers.
+   *
+   * @param registry      The {@link MetricRegistry} to get metrics from.
+   * @param port          The port to bind on.
+   * @param bindAddress   The address to bind on.
+   * @param filter        The filter for which metrics to report.
+   * @param rateUnit      A unit of time.
+   * @param durationUnit  A unit of time.
+   * @param serverConfig  The configuration for how connections are accepted and served.
+   * @param hostname      How to resolve the hostname of the node, e.g. {@link ProcHostname}
+   *                      rather than the default {@link ReverseLookupHostname}. Resolved in the
+   *                      background every 5 minutes.
+   * @param providers     The {@link MuninGraphProvider} providers to get graph definitions from.
+   */
+  public MuninReporter(final MetricRegistry registry, final int port,
+                       final InetAddress bindAddress, final MetricFilter filter, final TimeUnit rateUnit, final TimeUnit durationUnit,
+                       final MuninServerConfig serverConfig, final Hostname hostname,
+                       final Iterable<MuninGraphProvider> providers) {
     super(registry, "munin-reporter", filter, rateUnit, durationUnit); 
       
+    this.hostname = new CachingHostname(hostname);
     this.mergingGraphProvider = new MergingMuninGraphProvider(providers);
-
-    final MetricsCommandProcessor metricsCommandProcessor =
-        new MetricsCommandProcessor(registry, mergingGraphProvider, new ReverseLookupHostname(), rateUnit, durationUnit);
-    this.server = new MuninServer(metricsCommandProcessor,
-                                  port, bindAddress);
+    this.processor = newCommandProcessor(registry, rateUnit, durationUnit);
+    this.server = new MuninServer(processor, port, bindAddress, serverConfig);
   }  
 
+  /**
+   * Create a new reporter serving munin on a unix domain socket instead of TCP, for a munin node
+   * or proxy on the same host. Requires Java 16 or later.
+   *
+   * @param registry   The {@link MetricRegistry} to get metrics from.
+   * @param socketPath The path of the socket file to listen on.
+   * @param providers  The {@link MuninGraphProvider} providers to get graph definitions from.
+   */
+  public MuninReporter(final MetricRegistry registry, final Path socketPath,
+                       final Iterable<MuninGraphProvider> providers) {
+    this(registry, socketPath, DEFAULT_FILTER, DEFAULT_RATE_UNIT, DEFAULT_DURATION_UNIT,
+         new MuninServerConfig(), providers);
+  }
+
+  /**
+   * Create a new reporter serving munin on a unix domain socket instead of TCP, for a munin node
+   * or proxy on the same host. Requires Java 16 or later.
+   *
+   * @param registry      The {@link MetricRegistry} to get metrics from.
+   * @param socketPath    The path of the socket file to listen on.
+   * @param filter        The filter for which metrics to report.
+   * @param rateUnit      A unit of time.
+   * @param durationUnit  A unit of time.
+   * @param serverConfig  The configuration for how connections are accepted and served.
+   * @param providers     The {@link MuninGraphProvider} providers to get graph definitions from.
+   */
+  public MuninReporter(final MetricRegistry registry, final Path socketPath,
+                       final MetricFilter filter, final TimeUnit rateUnit, final TimeUnit durationUnit,
+                       final MuninServerConfig serverConfig,
+                       final Iterable<MuninGraphProvider> providers) {
+    super(registry, "munin-reporter", filter, rateUnit, durationUnit);
+
+    this.hostname = CachingHostname.create();
+    this.mergingGraphProvider = new MergingMuninGraphProvider(providers);
+    this.processor = newCommandProcessor(registry, rateUnit, durationUnit);
+    this.server = new MuninServer(processor, socketPath, serverConfig);
+  }
+
+  private MetricsCommandProcessor newCommandProcessor(final MetricRegistry registry,
+                                                      final TimeUnit rateUnit,
+                                                      final TimeUnit durationUnit) {
+    return new MetricsCommandProcessor(registry, mergingGraphProvider, hostname,
+                                       rateUnit, durationUnit);
+  }
+
   /**
    * Start the munin reporter.
    */  
@@ -158,17 +252,105 @@ public class MuninReporter extends ScheduledReporter {
       server.start();
   }
   
+  /**
+   * Start sampling all graphs in the background, keeping a history of values that a munin master
+   * can pull using {@code spoolfetch}, e.g. to graph at a finer resolution than it polls. Graphs
+   * are sampled at their update rate, all graphs due at the same time from the same snapshots.
+   *
+   * @param config How often to sample and how much history to keep.
+   */
+  public synchronized void startSpooling(final MuninSpoolConfig config) {
+    Validate.isTrue(spool == null, "Spooling already started");
+    spool = new MuninSpool(config);
+    processor.setSpool(spool);
+    spool.start(new Runnable() {
+      @Override
+      public void run() {
+        processor.sampleSpool(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+      }
+    });
+  }
+
+  /**
+   * Serve the graphs over HTTP as well, as JSON or in the Prometheus text format, from
+   * {@code http://<bindAddress>:<port>/graphs} for all graphs or {@code /graphs/<name>} for one.
+   * The format is picked with the {@code format=json} or {@code format=prometheus} query
+   * parameter, or else the Accept header.
+   *
+   * @param port        The port to bind on.
+   * @param bindAddress The address to bind on.
+   * @throws IOException If the port could not be bound.
+   */
+  public synchronized void startHttp(final int port, final InetAddress bindAddress)
+      throws IOException {
+    Validate.isTrue(httpServer == null, "HTTP already started");
+    httpServer = new MuninHttpServer(processor, new InetSocketAddress(bindAddress, port));
+    httpServer.start();
+  }
+
+  /**
+   * Sample all graphs on a schedule, so that {@code fetch} serves the values of the last sample
+   * rather than reading every metric while the munin master waits. A poll then costs the same no
+   * matter how expensive gauges or reservoirs are to read, and all values of a poll are from the
+   * same point in time. Values are at most one period old, so the period should be well below
+   * munin's poll interval.
+   *
+   * @param period How often to sample.
+   * @param unit   The unit of the period.
+   */
+  public synchronized void startSampling(final long period, final TimeUnit unit) {
+    Validate.isTrue(!sampling, "Sampling already started");
+    Validate.isTrue(period > 0, "Sampling period must be positive");
+    sampling = true;
+    super.start(period, unit);
+  }
+
   @Override
   public void start(long period, TimeUnit unit) {
-      // nothing to do here
+      // nothing to do here, see startSampling()
+  }
+
+  /**
+   * Sample all graphs, when started with {@link #startSampling(long, TimeUnit)}. Unlike other
+   * scheduled reporters, the metrics of the registry are not collected up front, as only the
+   * graphed ones are read.
+   */
+  @Override
+  public void report() {
+    if (sampling) {
+      processor.sampleFrame();
+    }
   }
 
   /**
-   * Stop the munin reporter.
+   * Stop the munin reporter. Blocks until the listening socket is closed and all connections have
+   * finished, or were closed after the shutdown timeout configured in {@link MuninServerConfig}.
    */
   @Override
   public void stop() {
     server.shutdown();
+    hostname.stop();
+    super.stop();
+    synchronized (this) {
+      if (spool != null) {
+        spool.stop();
+      }
+      if (httpServer != null) {
+        httpServer.stop();
+      }
+    }
+    // no longer pinned by the registry
+    processor.close();
+  }
+
+  /**
+   * Counters describing the connections served by the munin node, e.g. to size the connection
+   * limit. Can be registered with a {@link MetricRegistry} to graph them.
+   *
+   * @return The server stats
+   */
+  public MuninServerStats getServerStats() {
+    return server.getStats();
   }
 
   /**
@@ -178,6 +360,7 @@ public class MuninReporter extends ScheduledReporter {
    */
   public void addGraphs(final MuninGraphProvider provider) {
     mergingGraphProvider.addProvider(provider);
+    processor.graphsChanged();
   }
 
   /**
@@ -187,6 +370,31 @@ public class MuninReporter extends ScheduledReporter {
    */
   public void removeGraphs(final MuninGraphProvider provider) {
     mergingGraphProvider.removeProvider(provider);
+    processor.graphsChanged();
+  }
+
+  /**
+   * Serve a further registry as a virtual munin node with its own hostname, on the same port,
+   * threads and buffers as this reporter. The node is announced by the {@code nodes} command, a
+   * munin master selects it with {@code list <hostname>}. Can be called after starting the
+   * reporter.
+   *
+   * @param hostname  The hostname of the node, as configured on the munin master.
+   * @param registry  The {@link MetricRegistry} to get the node's metrics from.
+   * @param providers The {@link MuninGraphProvider} providers to get the node's graphs from.
+   */
+  public void addNode(final String hostname, final MetricRegistry registry,
+                      final MuninGraphProvider... providers) {
+    processor.addNode(hostname, registry, new MergingMuninGraphProvider(asList(providers)));
+  }
+
+  /**
+   * Stop serving a virtual node added with {@link #addNode}.
+   *
+   * @param hostname The hostname of the node.
+   */
+  public void removeNode(final String hostname) {
+    processor.removeNode(hostname);
   }
 
   @Override
@@ -15,30 +15,133 @@
  */
 package com.spotify.statistics;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.lang.Validate;
 import org.apache.log4j.Logger;
 
 
 public class MuninServer extends Thread {
   private static final Logger LOG = Logger.getLogger(MuninServer.class);
-  private static final int DEFAULT_BACKLOG = 0;
+  private static final byte[] TOO_MANY_CONNECTIONS =
+      "# Too many connections, try again later\n".getBytes(MuninSession.CHARSET);
+  private static final byte[] RATE_LIMITED =
+      "# Connection rate limit exceeded, try again later\n".getBytes(MuninSession.CHARSET);
+  private static final SocketOption<Boolean> SO_REUSEPORT = findReusePortOption();
 
-  private final MetricsCommandProcessor commandProcessor;
+  private final MuninCommandProcessor commandProcessor;
   private final InetAddress bindAddress;
   private final int port;
+  private final Path socketPath;
+  private final MuninServerConfig config;
+  private final Executor handlerExecutor;
+  private final ConnectionTracker connections;
+  private final ConnectionTimeouts timeouts;
+  private final ClientRateLimiter rateLimiter;
+  private final MuninTls tls;
+  private final BufferPool bufferPool = new BufferPool();
+  private final MuninServerStats stats = new MuninServerStats(bufferPool);
+  private final List<Closeable> listeners = new CopyOnWriteArrayList<Closeable>();
+  private final List<SelectorEventLoop> eventLoops = new CopyOnWriteArrayList<SelectorEventLoop>();
+  private final List<Thread> eventLoopThreads = new CopyOnWriteArrayList<Thread>();
+  private final List<Thread> acceptorThreads = new CopyOnWriteArrayList<Thread>();
+  private final AtomicInteger nextEventLoop = new AtomicInteger();
 
-  private boolean stopped = false;
+  // whether this server created its socket file, and the identity of the file, which may be null,
+  // see UnixDomainSockets.unlink()
+  private volatile boolean socketFileCreated;
+  private volatile Object socketFileKey;
+
+  private volatile boolean stopped = false;
 
   public MuninServer(final MetricsCommandProcessor commandProcessor, final int port,
                      final InetAddress bindAddress) {
+    this(commandProcessor, port, bindAddress, new MuninServerConfig());
+  }
+
+  public MuninServer(final MetricsCommandProcessor commandProcessor, final int port,
+                     final InetAddress bindAddress, final MuninServerConfig config) {
+    this(commandProcessor, port, bindAddress, null, config);
+  }
+
+  /**
+   * Create a server serving any command processor, e.g. that of a {@link MuninProxy}.
+   */
+  MuninServer(final MuninCommandProcessor commandProcessor, final int port,
+              final InetAddress bindAddress, final MuninServerConfig config) {
+    this(commandProcessor, port, bindAddress, null, config);
+  }
+
+  /**
+   * Create a server listening on a unix domain socket rather than TCP, for munin nodes or proxies
+   * running on the same host. Requires Java 16 or later, see {@link #isUnixDomainSocketSupported()}.
+   *
+   * @param socketPath The path of the socket file. A socket file left behind by a server that did
+   *                   not shut down cleanly is replaced. The server fails to bind if the path holds
+   *                   anything else, or a socket another server is still listening on.
+   */
+  public MuninServer(final MetricsCommandProcessor commandProcessor, final Path socketPath,
+                     final MuninServerConfig config) {
+    this(commandProcessor, 0, null, checkSocketPath(socketPath, config), config);
+  }
+
+  private static Path checkSocketPath(final Path socketPath, final MuninServerConfig config) {
+    Validate.notNull(socketPath);
+    if (!isUnixDomainSocketSupported()) {
+      throw new UnsupportedOperationException("Unix domain sockets are not supported by this JVM");
+    }
+    Validate.isTrue(config.getAcceptors() == 1,
+                    "Multiple acceptors are not supported on unix domain sockets");
+    return socketPath;
+  }
+
+  private MuninServer(final MuninCommandProcessor commandProcessor, final int port,
+                      final InetAddress bindAddress, final Path socketPath,
+                      final MuninServerConfig config) {
     super("munin-node");
 
     this.commandProcessor = commandProcessor;
     this.bindAddress = bindAddress;
     this.port = port;
+    this.socketPath = socketPath;
+    this.config = config;
+    this.handlerExecutor = config.getHandlerExecutor() != null
+        ? config.getHandlerExecutor() : MuninHandlerExecutors.threadPerConnection();
+    this.connections = new ConnectionTracker(config.getMaxConnections(), stats);
+    this.timeouts = new ConnectionTimeouts(config.getIdleTimeoutMillis(),
+                                           config.getSessionTimeoutMillis(),
+                                           config.getWriteTimeoutMillis(), stats);
+    this.rateLimiter = new ClientRateLimiter(config.getConnectionRateLimit(),
+                                             config.getConnectionBurst(),
+                                             config.getCommandRateLimit(),
+                                             config.getCommandBurst(), stats);
+
+    if (config.getTls() != null && config.getTransport() != MuninTransport.BLOCKING) {
+      throw new UnsupportedOperationException(
+          "STARTTLS is only supported by the " + MuninTransport.BLOCKING + " transport");
+    }
+    this.tls = config.getTls() != null ? new MuninTls(config.getTls(), stats) : null;
+
+    if (config.getAcceptors() > 1 && socketPath == null && !isReusePortSupported()) {
+      throw new UnsupportedOperationException(
+          "Multiple acceptors require SO_REUSEPORT, which is not supported on this platform");
+    }
 
     // XXX we don't need to run this thread as a daemon
     // this.setDaemon(true);
@@ -47,28 +150,322 @@ public class MuninServer extends Thread {
 
   @Override
   public void run() {
-      LOG.debug("run()"); 
-      try {
-        ServerSocket ss = new ServerSocket(port, DEFAULT_BACKLOG, bindAddress);
+      LOG.debug("run()");
+      final List<ServerSocketChannel> acceptors = new ArrayList<ServerSocketChannel>();
+      for (int i = 0; i < config.getAcceptors(); i++) {
+        final ServerSocketChannel ssc = bind();
+        acceptors.add(ssc);
+        if (!addListener(ssc)) {
+          for (ServerSocketChannel acceptor : acceptors) {
+            closeQuietly(acceptor);
+          }
+          return;
+        }
+      }
+
+      if (config.getTransport() == MuninTransport.SELECTOR) {
+        startEventLoops();
+        if (stopped) {
+          // shutdown() ran after the listeners were added, and may have missed the new loops
+          try {
+            stopEventLoops();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return;
+        }
+      }
 
-        try {
-          while (!stopped) {
-            new MuninHandler(ss.accept(), commandProcessor).start();
+      // this thread serves the first listener, additional ones get a thread each
+      for (int i = 1; i < acceptors.size(); i++) {
+        final ServerSocketChannel ssc = acceptors.get(i);
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            accept(ssc);
           }
+        }, getName() + "-acceptor-" + i);
+        acceptorThreads.add(thread);
+        thread.start();
+      }
+      accept(acceptors.get(0));
+  }
 
-          ss.close();
-        } catch (IOException e) {
-          LOG.error("Failed to accept on munin socket", e);
-          throw new RuntimeException(e);
+  private void accept(final ServerSocketChannel ssc) {
+      try {
+        while (!stopped) {
+          SocketChannel channel = accepted(ssc.accept());
+          ClientRateLimiter.Limits limits = rateLimiter.limits(channel);
+          if (limits != null && !limits.tryConnect()) {
+            reject(channel, RATE_LIMITED);
+          } else if (config.getTransport() == MuninTransport.SELECTOR) {
+            register(channel, limits);
+          } else {
+            dispatch(channel, limits);
+          }
         }
-      } catch (IOException e1) {
-        LOG.error("Failed to bind Munin server socket on address " + bindAddress + ":" + port, e1);
-        throw new RuntimeException("Failed to bind Munin server socket on address " + bindAddress + ":" + port, e1);
+      } catch (IOException e) {
+        acceptFailed(e);
+      } finally {
+        closeQuietly(ssc);
+      }
+  }
+
+  private ServerSocketChannel bind() {
+    try {
+      if (socketPath != null) {
+        ServerSocketChannel ssc = UnixDomainSockets.bind(socketPath, config.getBacklog());
+        socketFileKey = UnixDomainSockets.fileKey(socketPath);
+        socketFileCreated = true;
+        return ssc;
+      }
+      ServerSocketChannel ssc = ServerSocketChannel.open();
+      if (config.getAcceptors() > 1) {
+        ssc.setOption(SO_REUSEPORT, true);
       }
+      ssc.bind(new InetSocketAddress(bindAddress, port), config.getBacklog());
+      return ssc;
+    } catch (IOException e1) {
+      throw bindFailed(e1);
+    }
   }
 
-  public void shutdown() {
-    LOG.debug("shutdown()"); 
+  private void startEventLoops() {
+    for (int i = 0; i < config.getEventLoops(); i++) {
+      final SelectorEventLoop eventLoop;
+      try {
+        eventLoop = new SelectorEventLoop(commandProcessor, connections, bufferPool, timeouts,
+                                          config.getOutputHighWaterMark(), stats);
+      } catch (IOException e) {
+        throw new RuntimeException("Failed to open selector for munin event loop", e);
+      }
+      eventLoops.add(eventLoop);
+
+      Thread thread = new Thread(eventLoop, getName() + "-loop-" + i);
+      eventLoopThreads.add(thread);
+      thread.start();
+    }
+  }
+
+  /**
+   * Stop the event loops and wait for them to finish. Safe to call more than once.
+   */
+  private void stopEventLoops() throws InterruptedException {
+    for (SelectorEventLoop eventLoop : eventLoops) {
+      eventLoop.shutdown();
+    }
+    for (Thread thread : eventLoopThreads) {
+      thread.join();
+    }
+  }
+
+  /**
+   * Register a listening socket so that shutdown can close it to interrupt accept().
+   *
+   * @return false if the server was shut down while binding, the listener is then closed.
+   */
+  private boolean addListener(final Closeable listener) {
+    listeners.add(listener);
+    if (stopped) {
+      closeQuietly(listener);
+      removeSocketFile();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Responses are written in one go per batch of commands, so there is nothing to gain from
+   * Nagle's algorithm delaying them.
+   */
+  private static SocketChannel accepted(final SocketChannel channel) {
+    try {
+      // not available on unix domain sockets
+      if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      }
+    } catch (IOException e) {
+      LOG.debug("Failed to set TCP_NODELAY on munin connection", e);
+    }
+    return channel;
+  }
+
+  private void register(final SocketChannel channel, final ClientRateLimiter.Limits limits) {
+    if (!connections.tryAcquire()) {
+      reject(channel, TOO_MANY_CONNECTIONS);
+      return;
+    }
+    int next = (nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.size();
+    eventLoops.get(next).register(channel, limits);
+    connections.accepted();
+  }
+
+  private void dispatch(final SocketChannel channel, final ClientRateLimiter.Limits limits) {
+    if (!connections.tryAcquire()) {
+      reject(channel, TOO_MANY_CONNECTIONS);
+      return;
+    }
+
+    final MuninHandler handler = new MuninHandler(channel, commandProcessor, bufferPool, timeouts,
+                                                  config.getOutputHighWaterMark(), limits, tls);
+    connections.register(handler);
+    try {
+      handlerExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            handler.run();
+          } finally {
+            connections.unregister(handler);
+            connections.release();
+          }
+        }
+      });
+      connections.accepted();
+    } catch (RejectedExecutionException e) {
+      connections.unregister(handler);
+      connections.reject();
+      reject(channel, TOO_MANY_CONNECTIONS);
+    }
+  }
+
+  private void reject(final SocketChannel channel, final byte[] message) {
+    try {
+      LOG.debug("Rejecting connection from " + channel.getRemoteAddress());
+      channel.write(ByteBuffer.wrap(message));
+    } catch (IOException ignored) {
+    } finally {
+      closeQuietly(channel);
+    }
+  }
+
+  private void acceptFailed(final IOException e) {
+    if (stopped) {
+      // the listener was closed by shutdown()
+      return;
+    }
+    LOG.error("Failed to accept on munin socket", e);
+    throw new RuntimeException(e);
+  }
+
+  private RuntimeException bindFailed(final IOException cause) {
+    String message = socketPath != null
+        ? "Failed to bind Munin server socket on path " + socketPath
+        : "Failed to bind Munin server socket on address " + bindAddress + ":" + port;
+    LOG.error(message, cause);
+    return new RuntimeException(message, cause);
+  }
+
+  /**
+   * Remove the socket file this server created, if any.
+   */
+  private void removeSocketFile() {
+    if (socketFileCreated) {
+      try {
+        UnixDomainSockets.unlink(socketPath, socketFileKey);
+      } catch (IOException e) {
+        LOG.warn("Failed to remove munin socket file " + socketPath, e);
+      }
+    }
+  }
+
+  private static void closeQuietly(final Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * @return true if this platform supports binding several listening sockets to the same port,
+   *         as required by {@link MuninServerConfig#withAcceptors(int)}
+   */
+  public static boolean isReusePortSupported() {
+    if (SO_REUSEPORT == null) {
+      return false;
+    }
+    try {
+      ServerSocketChannel ssc = ServerSocketChannel.open();
+      try {
+        return ssc.supportedOptions().contains(SO_REUSEPORT);
+      } finally {
+        ssc.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if this JVM supports serving munin over unix domain sockets (Java 16 or later)
+   */
+  public static boolean isUnixDomainSocketSupported() {
+    return UnixDomainSockets.isSupported();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> findReusePortOption() {
+    // looked up reflectively to keep running on JVMs before Java 9
+    try {
+      return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return Counters describing the connections served by this server
+   */
+  public MuninServerStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Shut down the server and wait for it to finish. The listening socket is closed right away.
+   * Connections are then given until the configured shutdown timeout to finish the command they
+   * are serving, after which any remaining connections are closed.
+   */
+  public synchronized void shutdown() {
+    LOG.debug("shutdown()");
+    if (stopped) {
+      return;
+    }
+    final long start = System.nanoTime();
     this.stopped = true;
+
+    for (Closeable listener : listeners) {
+      closeQuietly(listener);
+    }
+    removeSocketFile();
+
+    connections.drainAll();
+    for (SelectorEventLoop eventLoop : eventLoops) {
+      eventLoop.drain();
+    }
+
+    try {
+      if (!connections.awaitIdle(config.getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+        int remaining = stats.getActiveConnections();
+        LOG.warn("Munin connections did not finish in time, closing " + remaining + " connections");
+        stats.connectionsForciblyClosed(remaining);
+        connections.closeAll();
+      }
+
+      stopEventLoops();
+      for (Thread thread : acceptorThreads) {
+        thread.join();
+      }
+      if (this != Thread.currentThread()) {
+        join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    timeouts.stop();
+    MuninHandlerExecutors.shutdownOwned(handlerExecutor);
+
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    stats.shutdownCompleted(millis);
+    LOG.info("Munin server shut down in " + millis + " ms");
   }
 }
@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Configuration for how the munin node accepts and serves connections.
+ *
+ */
+public class MuninServerConfig {
+
+  private static final MuninTransport DEFAULT_TRANSPORT = MuninTransport.BLOCKING;
+  private static final int DEFAULT_EVENT_LOOPS = 1;
+  private static final int DEFAULT_ACCEPTORS = 1;
+  private static final int DEFAULT_BACKLOG = 0;
+  private static final int DEFAULT_MAX_CONNECTIONS = 0;
+  private static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 5000;
+  private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 0;
+  private static final long DEFAULT_SESSION_TIMEOUT_MILLIS = 0;
+  private static final int DEFAULT_OUTPUT_HIGH_WATER_MARK = 0;
+  private static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 0;
+
+  private MuninTransport transport;
+  private int eventLoops;
+  private int acceptors;
+  private Executor handlerExecutor;
+  private int backlog;
+  private int maxConnections;
+  private long shutdownTimeoutMillis;
+  private long idleTimeoutMillis;
+  private long sessionTimeoutMillis;
+  private int outputHighWaterMark;
+  private long writeTimeoutMillis;
+  private double connectionRateLimit;
+  private int connectionBurst;
+  private double commandRateLimit;
+  private int commandBurst;
+  private MuninTlsConfig tls;
+
+  public MuninServerConfig() {
+    this.transport = DEFAULT_TRANSPORT;
+    this.eventLoops = DEFAULT_EVENT_LOOPS;
+    this.acceptors = DEFAULT_ACCEPTORS;
+    this.handlerExecutor = null;
+    this.backlog = DEFAULT_BACKLOG;
+    this.maxConnections = DEFAULT_MAX_CONNECTIONS;
+    this.shutdownTimeoutMillis = DEFAULT_SHUTDOWN_TIMEOUT_MILLIS;
+    this.idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    this.sessionTimeoutMillis = DEFAULT_SESSION_TIMEOUT_MILLIS;
+    this.outputHighWaterMark = DEFAULT_OUTPUT_HIGH_WATER_MARK;
+    this.writeTimeoutMillis = DEFAULT_WRITE_TIMEOUT_MILLIS;
+    this.connectionRateLimit = 0;
+    this.connectionBurst = 0;
+    this.commandRateLimit = 0;
+    this.commandBurst = 0;
+  }
+
+  /**
+   * Get the transport used to serve connections. Defaults to {@link MuninTransport#BLOCKING}
+   * @return The transport
+   */
+  public MuninTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Set the transport used to serve connections.
+   * @param transport The transport
+   * @return The config
+   */
+  public MuninServerConfig withTransport(final MuninTransport transport) {
+    Validate.notNull(transport);
+    this.transport = transport;
+    return this;
+  }
+
+  /**
+   * Get the number of event loop threads used by the {@link MuninTransport#SELECTOR} transport.
+   * Defaults to 1
+   * @return The number of event loops
+   */
+  public int getEventLoops() {
+    return eventLoops;
+  }
+
+  /**
+   * Set the number of event loop threads used by the {@link MuninTransport#SELECTOR} transport.
+   * Connections are spread over the event loops round-robin.
+   * @param eventLoops The number of event loops, at least 1
+   * @return The config
+   */
+  public MuninServerConfig withEventLoops(final int eventLoops) {
+    Validate.isTrue(eventLoops > 0, "At least one event loop is required");
+    this.eventLoops = eventLoops;
+    return this;
+  }
+
+  /**
+   * Get the number of listening sockets accepting connections. Defaults to 1
+   * @return The number of acceptors
+   */
+  public int getAcceptors() {
+    return acceptors;
+  }
+
+  /**
+   * Set the number of listening sockets accepting connections. With more than one, each socket is
+   * bound to the same port using SO_REUSEPORT and gets its own accept thread, letting the kernel
+   * spread bursts of new connections over them. Requires SO_REUSEPORT support, see
+   * {@link MuninServer#isReusePortSupported()}.
+   * @param acceptors The number of acceptors, at least 1
+   * @return The config
+   */
+  public MuninServerConfig withAcceptors(final int acceptors) {
+    Validate.isTrue(acceptors > 0, "At least one acceptor is required");
+    this.acceptors = acceptors;
+    return this;
+  }
+
+  /**
+   * Get the executor running connection handlers for the {@link MuninTransport#BLOCKING}
+   * transport. Defaults to {@link MuninHandlerExecutors#threadPerConnection()}
+   * @return The executor, or null for the default
+   */
+  public Executor getHandlerExecutor() {
+    return handlerExecutor;
+  }
+
+  /**
+   * Set the executor running connection handlers for the {@link MuninTransport#BLOCKING}
+   * transport, e.g. one from {@link MuninHandlerExecutors}. Each task serves one connection
+   * for as long as it stays open. Executors from {@link MuninHandlerExecutors} are shut down along
+   * with the server, any other executor is left to the caller to shut down.
+   * @param handlerExecutor The executor
+   * @return The config
+   */
+  public MuninServerConfig withHandlerExecutor(final Executor handlerExecutor) {
+    Validate.notNull(handlerExecutor);
+    this.handlerExecutor = handlerExecutor;
+    return this;
+  }
+
+  /**
+   * Get the accept backlog of the listening socket. Defaults to 0, which leaves the choice to the
+   * JVM
+   * @return The backlog
+   */
+  public int getBacklog() {
+    return backlog;
+  }
+
+  /**
+   * Set the accept backlog of the listening socket, i.e. how many connections the OS queues
+   * before they are accepted.
+   * @param backlog The backlog, 0 to use the JVM default
+   * @return The config
+   */
+  public MuninServerConfig withBacklog(final int backlog) {
+    Validate.isTrue(backlog >= 0, "Backlog can not be negative");
+    this.backlog = backlog;
+    return this;
+  }
+
+  /**
+   * Get the maximum number of connections served at the same time. Defaults to 0, meaning no
+   * limit
+   * @return The connection limit
+   */
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Set the maximum number of connections served at the same time. Connections over the limit
+   * get a protocol comment saying so and are closed right away, see
+   * {@link MuninServerStats#getRejectedConnections()}.
+   * @param maxConnections The connection limit, 0 for no limit
+   * @return The config
+   */
+  public MuninServerConfig withMaxConnections(final int maxConnections) {
+    Validate.isTrue(maxConnections >= 0, "Connection limit can not be negative");
+    this.maxConnections = maxConnections;
+    return this;
+  }
+
+  /**
+   * Get how long a shutdown waits for connections to finish their current command before closing
+   * them. Defaults to 5 seconds
+   * @return The timeout in milliseconds
+   */
+  public long getShutdownTimeoutMillis() {
+    return shutdownTimeoutMillis;
+  }
+
+  /**
+   * Set how long a shutdown waits for connections to finish their current command before closing
+   * them.
+   * @param timeout The timeout
+   * @param unit The unit of the timeout
+   * @return The config
+   */
+  public MuninServerConfig withShutdownTimeout(final long timeout, final TimeUnit unit) {
+    Validate.isTrue(timeout >= 0, "Shutdown timeout can not be negative");
+    Validate.notNull(unit);
+    this.shutdownTimeoutMillis = unit.toMillis(timeout);
+    return this;
+  }
+
+  /**
+   * Get how long a connection may go without sending a command or reading a response before it
+   * is closed. Defaults to 0, meaning no timeout
+   * @return The timeout in milliseconds
+   */
+  public long getIdleTimeoutMillis() {
+    return idleTimeoutMillis;
+  }
+
+  /**
+   * Set how long a connection may go without sending a command or reading a response before it
+   * is closed, e.g. to get rid of half-open connections from crashed masters. Closed connections
+   * are counted in {@link MuninServerStats#getTimedOutConnections()}.
+   * @param timeout The timeout, 0 for no timeout
+   * @param unit The unit of the timeout
+   * @return The config
+   */
+  public MuninServerConfig withIdleTimeout(final long timeout, final TimeUnit unit) {
+    Validate.isTrue(timeout >= 0, "Idle timeout can not be negative");
+    Validate.notNull(unit);
+    this.idleTimeoutMillis = unit.toMillis(timeout);
+    return this;
+  }
+
+  /**
+   * Get how long a connection may stay open in total before it is closed. Defaults to 0, meaning
+   * no timeout
+   * @return The timeout in milliseconds
+   */
+  public long getSessionTimeoutMillis() {
+    return sessionTimeoutMillis;
+  }
+
+  /**
+   * Set how long a connection may stay open in total before it is closed, however active it is.
+   * A munin master connects, runs its commands and quits, so this bounds the time spent on a
+   * whole poll. Closed connections are counted in
+   * {@link MuninServerStats#getTimedOutConnections()}.
+   * @param timeout The timeout, 0 for no timeout
+   * @param unit The unit of the timeout
+   * @return The config
+   */
+  public MuninServerConfig withSessionTimeout(final long timeout, final TimeUnit unit) {
+    Validate.isTrue(timeout >= 0, "Session timeout can not be negative");
+    Validate.notNull(unit);
+    this.sessionTimeoutMillis = unit.toMillis(timeout);
+    return this;
+  }
+
+  /**
+   * Get how many bytes of responses a connection may buffer before they have to be written.
+   * Defaults to 0, meaning no limit
+   * @return The high-water mark in bytes
+   */
+  public int getOutputHighWaterMark() {
+    return outputHighWaterMark;
+  }
+
+  /**
+   * Set how many bytes of responses a connection may buffer before they have to be written. Once
+   * a connection buffers more, no further commands are read from it until its output is written.
+   * With the {@link MuninTransport#SELECTOR} transport, a client that is reported writable but
+   * takes none of the output is dropped, see {@link MuninServerStats#getDroppedSlowClients()}.
+   * Clients that stop reading are dropped by the write timeout.
+   * @param bytes The high-water mark, 0 for no limit
+   * @return The config
+   */
+  public MuninServerConfig withOutputHighWaterMark(final int bytes) {
+    Validate.isTrue(bytes >= 0, "Output high-water mark can not be negative");
+    this.outputHighWaterMark = bytes;
+    return this;
+  }
+
+  /**
+   * Get how long writing a response may take before the client is dropped. Defaults to 0, meaning
+   * no timeout
+   * @return The timeout in milliseconds
+   */
+  public long getWriteTimeoutMillis() {
+    return writeTimeoutMillis;
+  }
+
+  /**
+   * Set how long writing a response may take before the client is dropped, so that a client not
+   * reading its responses does not tie up a handler thread or buffers. No further commands are
+   * read from a connection while its output is being written. Dropped clients are counted in
+   * {@link MuninServerStats#getDroppedSlowClients()}.
+   * @param timeout The timeout, 0 for no timeout
+   * @param unit The unit of the timeout
+   * @return The config
+   */
+  public MuninServerConfig withWriteTimeout(final long timeout, final TimeUnit unit) {
+    Validate.isTrue(timeout >= 0, "Write timeout can not be negative");
+    Validate.notNull(unit);
+    this.writeTimeoutMillis = unit.toMillis(timeout);
+    return this;
+  }
+
+  /**
+   * Get how many connections per second a single client address may open. Defaults to 0, meaning
+   * no limit
+   * @return The connection rate limit
+   */
+  public double getConnectionRateLimit() {
+    return connectionRateLimit;
+  }
+
+  /**
+   * Get how many connections a single client address may open at once before the connection rate
+   * limit applies.
+   * @return The connection burst
+   */
+  public int getConnectionBurst() {
+    return connectionBurst;
+  }
+
+  /**
+   * Limit how often a single client address may connect. Connections over the limit get a
+   * protocol comment saying so and are closed right away, see
+   * {@link MuninServerStats#getThrottledConnections()}.
+   * @param perSecond The number of connections per second, 0 for no limit
+   * @param burst The number of connections allowed at once, at least 1
+   * @return The config
+   */
+  public MuninServerConfig withConnectionRateLimit(final double perSecond, final int burst) {
+    Validate.isTrue(perSecond >= 0, "Connection rate limit can not be negative");
+    Validate.isTrue(burst > 0, "Connection burst must be at least 1");
+    this.connectionRateLimit = perSecond;
+    this.connectionBurst = burst;
+    return this;
+  }
+
+  /**
+   * Get how many commands per second a single client address may send. Defaults to 0, meaning no
+   * limit
+   * @return The command rate limit
+   */
+  public double getCommandRateLimit() {
+    return commandRateLimit;
+  }
+
+  /**
+   * Get how many commands a single client address may send at once before the command rate limit
+   * applies.
+   * @return The command burst
+   */
+  public int getCommandBurst() {
+    return commandBurst;
+  }
+
+  /**
+   * Limit how often a single client address may send commands, over all its connections, e.g. to
+   * protect the application from a misconfigured poller fetching in a tight loop. Commands over
+   * the limit are answered with a protocol comment instead, see
+   * {@link MuninServerStats#getThrottledCommands()}.
+   * @param perSecond The number of commands per second, 0 for no limit
+   * @param burst The number of commands allowed at once, at least 1
+   * @return The config
+   */
+  public MuninServerConfig withCommandRateLimit(final double perSecond, final int burst) {
+    Validate.isTrue(perSecond >= 0, "Command rate limit can not be negative");
+    Validate.isTrue(burst > 0, "Command burst must be at least 1");
+    this.commandRateLimit = perSecond;
+    this.commandBurst = burst;
+    return this;
+  }
+
+  /**
+   * Get how STARTTLS is served. Defaults to null, meaning STARTTLS is not supported
+   * @return The TLS config, or null
+   */
+  public MuninTlsConfig getTls() {
+    return tls;
+  }
+
+  /**
+   * Serve munin's STARTTLS command, so that masters polling across untrusted networks can secure
+   * the connection without a TLS tunnel in front of the node. Only supported by the
+   * {@link MuninTransport#BLOCKING} transport. Handshakes are counted in
+   * {@link MuninServerStats#getTlsHandshakes()}.
+   * @param tls The TLS config, or null to not support STARTTLS
+   * @return The config
+   */
+  public MuninServerConfig withTls(final MuninTlsConfig tls) {
+    this.tls = tls;
+    return this;
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+
+/**
+ * Counters describing how the munin node serves its connections. Can be registered with a
+ * {@link MetricRegistry} using {@link MetricRegistry#registerAll(MetricSet)}, which makes it
+ * possible to graph the munin node itself.
+ */
+public class MuninServerStats implements MetricSet {
+
+  private final AtomicLong acceptedConnections = new AtomicLong();
+  private final AtomicLong rejectedConnections = new AtomicLong();
+  private final AtomicInteger activeConnections = new AtomicInteger();
+  private final AtomicLong forciblyClosedConnections = new AtomicLong();
+  private final AtomicLong timedOutConnections = new AtomicLong();
+  private final AtomicLong droppedSlowClients = new AtomicLong();
+  private final AtomicLong throttledConnections = new AtomicLong();
+  private final AtomicLong throttledCommands = new AtomicLong();
+  // meters rather than counters, to graph handshake and resumption rates
+  private final Meter tlsHandshakes = new Meter();
+  private final Meter tlsResumptions = new Meter();
+  private final AtomicLong tlsHandshakeFailures = new AtomicLong();
+  private final BufferPool bufferPool;
+  private volatile long lastShutdownMillis = -1;
+
+  public MuninServerStats() {
+    this(new BufferPool());
+  }
+
+  MuninServerStats(final BufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * @return The number of connections accepted and served since start
+   */
+  public long getAcceptedConnections() {
+    return acceptedConnections.get();
+  }
+
+  /**
+   * @return The number of connections turned away because the node was at its connection limit
+   */
+  public long getRejectedConnections() {
+    return rejectedConnections.get();
+  }
+
+  /**
+   * @return The number of connections currently open
+   */
+  public int getActiveConnections() {
+    return activeConnections.get();
+  }
+
+  /**
+   * @return The number of connections closed by a shutdown before they had finished
+   */
+  public long getForciblyClosedConnections() {
+    return forciblyClosedConnections.get();
+  }
+
+  /**
+   * @return The number of connections closed for staying idle or open longer than the timeouts
+   *         configured in {@link MuninServerConfig}
+   */
+  public long getTimedOutConnections() {
+    return timedOutConnections.get();
+  }
+
+  /**
+   * @return The number of connections closed for not reading their responses fast enough, see
+   *         {@link MuninServerConfig#withOutputHighWaterMark(int)} and
+   *         {@link MuninServerConfig#withWriteTimeout(long, java.util.concurrent.TimeUnit)}
+   */
+  public long getDroppedSlowClients() {
+    return droppedSlowClients.get();
+  }
+
+  /**
+   * @return The number of connections turned away because their client address connected more
+   *         often than {@link MuninServerConfig#withConnectionRateLimit(double, int)} allows
+   */
+  public long getThrottledConnections() {
+    return throttledConnections.get();
+  }
+
+  /**
+   * @return The number of commands not served because their client address sent more commands
+   *         than {@link MuninServerConfig#withCommandRateLimit(double, int)} allows
+   */
+  public long getThrottledCommands() {
+    return throttledCommands.get();
+  }
+
+  /**
+   * @return The number of TLS handshakes completed after STARTTLS, including resumed sessions
+   */
+  public long getTlsHandshakes() {
+    return tlsHandshakes.getCount();
+  }
+
+  /**
+   * @return The number of TLS handshakes that resumed an earlier session rather than doing a full
+   *         handshake, see {@link MuninTlsConfig#withSessionCacheSize(int)}
+   */
+  public long getTlsResumptions() {
+    return tlsResumptions.getCount();
+  }
+
+  /**
+   * @return The number of TLS handshakes that failed
+   */
+  public long getTlsHandshakeFailures() {
+    return tlsHandshakeFailures.get();
+  }
+
+  /**
+   * @return The number of bytes of buffer memory currently held by connections for reading
+   *         commands and writing responses
+   */
+  public long getBufferedBytes() {
+    return bufferPool.getBytesInUse();
+  }
+
+  /**
+   * @return How long the last shutdown took to close the listener and drain all connections in
+   *         milliseconds, or -1 if the server has not been shut down
+   */
+  public long getLastShutdownMillis() {
+    return lastShutdownMillis;
+  }
+
+  AtomicInteger activeConnections() {
+    return activeConnections;
+  }
+
+  void connectionAccepted() {
+    acceptedConnections.incrementAndGet();
+  }
+
+  void connectionRejected() {
+    rejectedConnections.incrementAndGet();
+  }
+
+  void connectionsForciblyClosed(final int count) {
+    forciblyClosedConnections.addAndGet(count);
+  }
+
+  void connectionTimedOut() {
+    timedOutConnections.incrementAndGet();
+  }
+
+  void slowClientDropped() {
+    droppedSlowClients.incrementAndGet();
+  }
+
+  void connectionThrottled() {
+    throttledConnections.incrementAndGet();
+  }
+
+  void commandThrottled() {
+    throttledCommands.incrementAndGet();
+  }
+
+  void tlsHandshakeCompleted(final boolean resumed) {
+    tlsHandshakes.mark();
+    if (resumed) {
+      tlsResumptions.mark();
+    }
+  }
+
+  void tlsHandshakeFailed() {
+    tlsHandshakeFailures.incrementAndGet();
+  }
+
+  void shutdownCompleted(final long millis) {
+    lastShutdownMillis = millis;
+  }
+
+  @Override
+  public Map<String, Metric> getMetrics() {
+    final Map<String, Metric> metrics = new HashMap<String, Metric>();
+    metrics.put(MetricRegistry.name("munin", "connections", "accepted"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getAcceptedConnections();
+      }
+    });
+    metrics.put(MetricRegistry.name("munin", "connections", "rejected"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getRejectedConnections();
+      }
+    });
+    metrics.put(MetricRegistry.name("munin", "connections", "active"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return getActiveConnections();
+      }
+    });
+    metrics.put(MetricRegistry.name("munin", "connections", "timed-out"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getTimedOutConnections();
+      }
+    });
+    metrics.put(MetricRegistry.name("munin", "connections", "dropped-slow"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getDroppedSlowClients();
+      }
+    });
+    metrics.put(MetricRegistry.name("munin", "connections", "throttled"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getThrottledConnections();
+      }
+    });
+    metrics.put(MetricRegistry.name("munin", "commands", "throttled"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getThrottledCommands();
+      }
+    });
+    metrics.put(MetricRegistry.name("munin", "buffers", "bytes"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getBufferedBytes();
+      }
+    });
+    metrics.put(MetricRegistry.name("munin", "tls", "handshakes"), tlsHandshakes);
+    metrics.put(MetricRegistry.name("munin", "tls", "resumptions"), tlsResumptions);
+    metrics.put(MetricRegistry.name("munin", "tls", "failures"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return getTlsHandshakeFailures();
+      }
+    });
+    return Collections.unmodifiableMap(metrics);
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import static java.util.Arrays.asList;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The protocol side of a single munin connection, independent of the transport serving it.
+ */
+class MuninSession {
+
+  private static final Logger LOG = Logger.getLogger(MuninSession.class);
+
+  static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private static final String UNKNOWN_COMMAND = "# Unknown command. Try cap, list, config, fetch or quit";
+  private static final String RATE_LIMITED = "# Rate limit exceeded, try again later";
+  private static final String TLS_OK = "TLS OK";
+  private static final String TLS_REQUIRED = "# TLS is required, send STARTTLS first";
+
+  private final MuninCommandProcessor commandProcessor;
+  private final ClientRateLimiter.Limits limits;
+  private final Set<Capability> capabilities = EnumSet.noneOf(Capability.class);
+
+  // the node selected by the last list command, serving config, fetch and spoolfetch
+  private MuninCommandProcessor node;
+
+  private boolean tlsOffered;
+  private boolean tlsRequired;
+  private boolean tlsStarted;
+  private boolean startTls;
+
+  MuninSession(final MuninCommandProcessor commandProcessor) {
+    this(commandProcessor, null);
+  }
+
+  /**
+   * @param limits The rate limits of the client, or null if it is not limited.
+   */
+  MuninSession(final MuninCommandProcessor commandProcessor,
+               final ClientRateLimiter.Limits limits) {
+    this.commandProcessor = commandProcessor;
+    this.limits = limits;
+    this.node = commandProcessor;
+  }
+
+  /**
+   * Serve STARTTLS on this session, for transports able to secure the connection.
+   *
+   * @param required Whether clients must start TLS before any other command.
+   */
+  void offerTls(final boolean required) {
+    this.tlsOffered = true;
+    this.tlsRequired = required;
+  }
+
+  /**
+   * @return True once after STARTTLS was accepted. The transport must then write the pending
+   *         output, drop any input buffered after the command and run the TLS handshake.
+   */
+  boolean takeStartTls() {
+    boolean requested = startTls;
+    startTls = false;
+    return requested;
+  }
+
+  /**
+   * Write the greeting sent when a client connects.
+   */
+  void banner(final MuninOutput out) {
+    String hostname = commandProcessor.getHostname().getHostname();
+    out.append("# Spotify munin node at ").append(String.valueOf(hostname)).endLine();
+  }
+
+  /**
+   * Process one line of client input.
+   *
+   * @param rawLine The line, without the line terminator.
+   * @param out Where to write the response.
+   * @throws QuitException If the client asked to close the connection.
+   */
+  void processLine(final String rawLine, final MuninOutput out) throws QuitException {
+    String line = rawLine.trim();
+    LOG.debug("> " + line);
+    if (line.length() == 0) {
+      return;
+    }
+
+    String[] lineTokens = line.split(" ");
+    String command = lineTokens[0];
+    List<String> args = new ArrayList<String>();
+    if (lineTokens.length > 1) {
+      args = asList(lineTokens).subList(1, lineTokens.length);
+    }
+
+    if (limits != null && !command.equals("quit") && !limits.tryCommand()) {
+      if (command.equals("fetch") && capabilities.contains(Capability.BINARY)) {
+        // binary clients expect a frame, an empty one tells them there are no values
+        BinaryFrame.writeEmpty(out);
+        return;
+      }
+      out.append(RATE_LIMITED).endLine();
+      if (isMultiLine(command)) {
+        // terminate the response the client is waiting for
+        out.append('.').endLine();
+      }
+      return;
+    }
+
+    if (tlsOffered && !tlsStarted) {
+      if (command.equalsIgnoreCase("starttls")) {
+        out.append(TLS_OK).endLine();
+        tlsStarted = true;
+        startTls = true;
+        return;
+      } else if (tlsRequired && !command.equals("quit")) {
+        out.append(TLS_REQUIRED).endLine();
+        if (isMultiLine(command)) {
+          out.append('.').endLine();
+        }
+        return;
+      }
+    }
+
+    if (command.equals("list")) {
+      MuninCommandProcessor selected =
+          args.isEmpty() ? null : commandProcessor.getNode(args.get(0));
+      node = selected != null ? selected : commandProcessor;
+    }
+
+    try {
+      if (isNodeCommand(command)) {
+        node.processCommand(command, args, capabilities, out);
+      } else {
+        commandProcessor.processCommand(command, args, capabilities, out);
+      }
+    } catch (UnknownCommandException e) {
+      out.append(UNKNOWN_COMMAND).endLine();
+    }
+  }
+
+  private static boolean isNodeCommand(final String command) {
+    return command.equals("config") || command.equals("fetch") || command.equals("spoolfetch");
+  }
+
+  private static boolean isMultiLine(final String command) {
+    return command.equals("config") || command.equals("fetch") || command.equals("nodes")
+        || command.equals("spoolfetch");
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+/**
+ * History of sampled values per graph and field, served with {@code spoolfetch}. Samples are
+ * recorded by a single background thread, while any number of connections read them.
+ */
+final class MuninSpool {
+
+  private static final Logger LOG = Logger.getLogger(MuninSpool.class);
+
+  private final long defaultRate;
+  private final int samplesPerField;
+  private final int maxFields;
+
+  // graph name -> field name -> history
+  private final ConcurrentMap<String, ConcurrentMap<String, SpoolRing>> rings =
+      new ConcurrentHashMap<String, ConcurrentMap<String, SpoolRing>>();
+
+  // only touched by the sampling thread
+  private int fields;
+  private boolean warnedFull;
+
+  private ScheduledExecutorService scheduler;
+
+  MuninSpool(final MuninSpoolConfig config) {
+    Validate.notNull(config);
+    this.defaultRate = TimeUnit.MILLISECONDS.toSeconds(config.getIntervalMillis());
+    this.samplesPerField = config.getSamplesPerField();
+    this.maxFields = config.getMaxFields();
+  }
+
+  /**
+   * @return How often graphs without an update rate are sampled, in seconds.
+   */
+  long getDefaultRate() {
+    return defaultRate;
+  }
+
+  /**
+   * Start running the sampler every second, starting right away. The sampler picks the graphs
+   * that are due in each tick.
+   */
+  synchronized void start(final Runnable sampler) {
+    Validate.isTrue(scheduler == null, "Spool already started");
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        Thread thread = new Thread(r, "munin-spool");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    scheduler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sampler.run();
+        } catch (RuntimeException e) {
+          // an exception would cancel all further sampling
+          LOG.warn("Failed to sample munin graphs", e);
+        }
+      }
+    }, 0, 1, TimeUnit.SECONDS);
+  }
+
+  synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  void record(final String graphName, final String fieldName, final long time,
+              final double value) {
+    ConcurrentMap<String, SpoolRing> graphRings = rings.get(graphName);
+    if (graphRings == null) {
+      graphRings = new ConcurrentHashMap<String, SpoolRing>();
+      rings.put(graphName, graphRings);
+    }
+
+    SpoolRing ring = graphRings.get(fieldName);
+    if (ring == null) {
+      if (fields >= maxFields) {
+        if (!warnedFull) {
+          LOG.warn("Spooling at most " + maxFields + " fields, not spooling " + fieldName);
+          warnedFull = true;
+        }
+        return;
+      }
+      ring = new SpoolRing(samplesPerField);
+      graphRings.put(fieldName, ring);
+      fields++;
+    }
+    ring.add(time, value);
+  }
+
+  /**
+   * Drop the history of fields of a graph that were not sampled since a point in time, e.g.
+   * because their metric was removed.
+   */
+  void evictBefore(final String graphName, final long time) {
+    Map<String, SpoolRing> graphRings = rings.get(graphName);
+    if (graphRings != null) {
+      evict(graphRings.values().iterator(), time);
+    }
+  }
+
+  /**
+   * Drop the history of all graphs but the given ones.
+   */
+  void retainGraphs(final Set<String> graphNames) {
+    Iterator<Map.Entry<String, ConcurrentMap<String, SpoolRing>>> graphs =
+        rings.entrySet().iterator();
+    while (graphs.hasNext()) {
+      Map.Entry<String, ConcurrentMap<String, SpoolRing>> graph = graphs.next();
+      if (!graphNames.contains(graph.getKey())) {
+        evict(graph.getValue().values().iterator(), Long.MAX_VALUE);
+        graphs.remove();
+      }
+    }
+  }
+
+  private void evict(final Iterator<SpoolRing> graphRings, final long before) {
+    while (graphRings.hasNext()) {
+      if (graphRings.next().getLastTime() < before) {
+        graphRings.remove();
+        fields--;
+        warnedFull = false;
+      }
+    }
+  }
+
+  /**
+   * Write the spooled values of a graph newer than a point in time.
+   */
+  void writeSince(final String graphName, final long since, final MuninOutput out) {
+    Map<String, SpoolRing> graphRings = rings.get(graphName);
+    if (graphRings != null) {
+      for (Map.Entry<String, SpoolRing> entry : graphRings.entrySet()) {
+        entry.getValue().writeSince(entry.getKey(), since, out);
+      }
+    }
+  }
+
+  int getFieldCount() {
+    return fields;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Configuration for spooling, sampling all graphs in the background so that a munin master can
+ * pull the history using {@code spoolfetch}. Graphs are sampled at their update rate, see
+ * {@link MuninGraph.Builder#updateRate(int)}, or else at the spool interval. Each sample takes 16
+ * bytes. The buffer of a field is allocated in full when the field is first sampled, so a spool
+ * takes at most {@code maxFields * samplesPerField * 16} bytes.
+ */
+public class MuninSpoolConfig {
+
+  private static final long DEFAULT_INTERVAL_MILLIS = 10000;
+  private static final int DEFAULT_SAMPLES_PER_FIELD = 360;
+  private static final int DEFAULT_MAX_FIELDS = 1024;
+
+  private long intervalMillis;
+  private int samplesPerField;
+  private int maxFields;
+
+  public MuninSpoolConfig() {
+    this.intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    this.samplesPerField = DEFAULT_SAMPLES_PER_FIELD;
+    this.maxFields = DEFAULT_MAX_FIELDS;
+  }
+
+  /**
+   * Get how often graphs without an update rate are sampled. Defaults to 10 seconds
+   * @return The interval in milliseconds
+   */
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * Set how often graphs without an update rate are sampled.
+   * @param interval The interval, in whole seconds and at least one second
+   * @param unit The unit of the interval
+   * @return This config
+   */
+  public MuninSpoolConfig withInterval(final long interval, final TimeUnit unit) {
+    Validate.notNull(unit);
+    Validate.isTrue(unit.toMillis(interval) >= 1000, "Interval must be at least one second");
+    Validate.isTrue(unit.toMillis(interval) % 1000 == 0, "Interval must be whole seconds");
+    this.intervalMillis = unit.toMillis(interval);
+    return this;
+  }
+
+  /**
+   * Get the number of samples kept per field. Defaults to 360, an hour at the default interval.
+   * How long a history this keeps depends on the update rate of the graph
+   * @return The number of samples
+   */
+  public int getSamplesPerField() {
+    return samplesPerField;
+  }
+
+  /**
+   * Set the number of samples kept per field. Older samples are overwritten.
+   * @param samplesPerField The number of samples, must be positive
+   * @return This config
+   */
+  public MuninSpoolConfig withSamplesPerField(final int samplesPerField) {
+    Validate.isTrue(samplesPerField > 0, "Samples per field must be positive");
+    this.samplesPerField = samplesPerField;
+    return this;
+  }
+
+  /**
+   * Get the maximum number of fields spooled. Defaults to 1024
+   * @return The maximum number of fields
+   */
+  public int getMaxFields() {
+    return maxFields;
+  }
+
+  /**
+   * Set the maximum number of fields spooled. Fields beyond the limit are not spooled.
+   * @param maxFields The maximum number of fields, must be positive
+   * @return This config
+   */
+  public MuninSpoolConfig withMaxFields(final int maxFields) {
+    Validate.isTrue(maxFields > 0, "Max fields must be positive");
+    this.maxFields = maxFields;
+    return this;
+  }
+}
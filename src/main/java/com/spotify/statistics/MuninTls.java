@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Secures connections after STARTTLS, as configured by a {@link MuninTlsConfig}, and counts the
+ * handshakes in {@link MuninServerStats}.
+ */
+class MuninTls {
+
+  // set on every session once established, kept by sessions resumed from TLS 1.3 tickets
+  private static final String ESTABLISHED = MuninTls.class.getName() + ".established";
+  // bounds the ids remembered when the session cache is unbounded
+  private static final int MAX_SESSION_IDS = 10000;
+
+  private final MuninTlsConfig config;
+  private final MuninServerStats stats;
+  // the ids of sessions established, kept by sessions resumed with TLS 1.2
+  private final Map<ByteBuffer, Boolean> sessionIds;
+
+  MuninTls(final MuninTlsConfig config, final MuninServerStats stats) {
+    this.config = config;
+    this.stats = stats;
+    SSLSessionContext sessions = config.getSslContext().getServerSessionContext();
+    sessions.setSessionCacheSize(config.getSessionCacheSize());
+    sessions.setSessionTimeout(config.getSessionTimeoutSeconds());
+
+    final int maxIds = config.getSessionCacheSize() > 0
+        ? config.getSessionCacheSize() : MAX_SESSION_IDS;
+    this.sessionIds = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Boolean> eldest) {
+        return size() > maxIds;
+      }
+    };
+  }
+
+  boolean isRequired() {
+    return config.isRequired();
+  }
+
+  /**
+   * Run the server side of the TLS handshake on a connection.
+   *
+   * @return The secured channel.
+   */
+  TlsChannel start(final SocketChannel channel) throws IOException {
+    SSLContext context = config.getSslContext();
+    SocketAddress remote = channel.getRemoteAddress();
+    SSLEngine engine = remote instanceof InetSocketAddress
+        ? context.createSSLEngine(((InetSocketAddress) remote).getHostString(),
+                                  ((InetSocketAddress) remote).getPort())
+        : context.createSSLEngine();
+    engine.setUseClientMode(false);
+    engine.setNeedClientAuth(config.isNeedClientAuth());
+
+    TlsChannel tls = new TlsChannel(channel, engine);
+    try {
+      tls.handshake();
+    } catch (IOException e) {
+      stats.tlsHandshakeFailed();
+      throw e;
+    }
+    stats.tlsHandshakeCompleted(established(engine.getSession()));
+    return tls;
+  }
+
+  /**
+   * Record a session as established.
+   *
+   * @return True if the session was established by an earlier handshake, i.e. was resumed.
+   */
+  private boolean established(final SSLSession session) {
+    // TLS 1.3 resumes with a new session id, but the values of the session are kept
+    boolean resumed = session.getValue(ESTABLISHED) != null;
+    session.putValue(ESTABLISHED, Boolean.TRUE);
+    synchronized (sessionIds) {
+      ByteBuffer id = ByteBuffer.wrap(session.getId().clone());
+      resumed |= sessionIds.put(id, Boolean.TRUE) != null;
+    }
+    return resumed;
+  }
+}
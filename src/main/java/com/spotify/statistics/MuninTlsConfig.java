@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Configuration for serving munin's STARTTLS command, see
+ * {@link MuninServerConfig#withTls(MuninTlsConfig)}.
+ *
+ */
+public class MuninTlsConfig {
+
+  private static final int DEFAULT_SESSION_CACHE_SIZE = 1024;
+  private static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 3600;
+
+  private final SSLContext sslContext;
+  private int sessionCacheSize;
+  private int sessionTimeoutSeconds;
+  private boolean required;
+  private boolean needClientAuth;
+
+  /**
+   * @param sslContext The context holding the key and certificate of the node, and the trusted
+   *                   certificates of masters if client authentication is needed
+   */
+  public MuninTlsConfig(final SSLContext sslContext) {
+    Validate.notNull(sslContext);
+    this.sslContext = sslContext;
+    this.sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+    this.sessionTimeoutSeconds = DEFAULT_SESSION_TIMEOUT_SECONDS;
+  }
+
+  /**
+   * Get the context TLS connections are created from.
+   * @return The SSL context
+   */
+  public SSLContext getSslContext() {
+    return sslContext;
+  }
+
+  /**
+   * Get how many TLS sessions are kept for resumption. Defaults to 1024
+   * @return The session cache size
+   */
+  public int getSessionCacheSize() {
+    return sessionCacheSize;
+  }
+
+  /**
+   * Set how many TLS sessions are kept, so that masters reconnecting for the next poll resume
+   * their session rather than doing a full handshake. Applies to the server sessions of the
+   * whole SSL context.
+   * @param size The number of sessions, must be positive
+   * @return This config
+   */
+  public MuninTlsConfig withSessionCacheSize(final int size) {
+    Validate.isTrue(size > 0, "Session cache size must be positive");
+    this.sessionCacheSize = size;
+    return this;
+  }
+
+  /**
+   * Get how long TLS sessions can be resumed. Defaults to 1 hour
+   * @return The session timeout in seconds
+   */
+  public int getSessionTimeoutSeconds() {
+    return sessionTimeoutSeconds;
+  }
+
+  /**
+   * Set how long TLS sessions can be resumed. Should be well over the poll interval of the
+   * masters, 5 minutes by default in munin.
+   * @param timeout The timeout, at least 1 second
+   * @param unit The unit of the timeout
+   * @return This config
+   */
+  public MuninTlsConfig withSessionTimeout(final long timeout, final TimeUnit unit) {
+    Validate.notNull(unit);
+    long seconds = unit.toSeconds(timeout);
+    Validate.isTrue(seconds > 0 && seconds <= Integer.MAX_VALUE, "Timeout out of range");
+    this.sessionTimeoutSeconds = (int) seconds;
+    return this;
+  }
+
+  /**
+   * Get whether clients must start TLS before any other command. Defaults to false
+   * @return True if TLS is required
+   */
+  public boolean isRequired() {
+    return required;
+  }
+
+  /**
+   * Set whether clients must start TLS before any other command. Commands sent before STARTTLS
+   * are then answered with a protocol comment instead.
+   * @param required True to require TLS
+   * @return This config
+   */
+  public MuninTlsConfig withRequired(final boolean required) {
+    this.required = required;
+    return this;
+  }
+
+  /**
+   * Get whether masters must authenticate with a certificate. Defaults to false
+   * @return True if client authentication is needed
+   */
+  public boolean isNeedClientAuth() {
+    return needClientAuth;
+  }
+
+  /**
+   * Set whether masters must authenticate with a certificate trusted by the SSL context, like
+   * munin's paranoid TLS mode.
+   * @param needClientAuth True to need client authentication
+   * @return This config
+   */
+  public MuninTlsConfig withNeedClientAuth(final boolean needClientAuth) {
+    this.needClientAuth = needClientAuth;
+    return this;
+  }
+}
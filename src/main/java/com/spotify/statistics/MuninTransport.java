@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+/**
+ * How {@link MuninServer} serves accepted connections.
+ */
+public enum MuninTransport {
+  /**
+   * One handler thread per connection, doing blocking reads and writes. This is the default.
+   */
+  BLOCKING,
+
+  /**
+   * A small, fixed number of event loop threads multiplexing all connections using a
+   * {@link java.nio.channels.Selector}.
+   */
+  SELECTOR
+}
@@ -15,6 +15,7 @@
  */
 package com.spotify.statistics;
 
+import java.text.FieldPosition;
 import java.text.NumberFormat;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
@@ -33,6 +34,30 @@ public final class NumberUtil {
     }
   };
 
+  // scratch space for formatting into a MuninOutput without creating strings
+  private static ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  private static final class Scratch {
+    private final StringBuffer buffer = new StringBuffer(32);
+    private final FieldPosition field = new FieldPosition(0);
+
+    private StringBuffer format(final Object value) {
+      buffer.setLength(0);
+      return formatters.get().format(value, buffer, field);
+    }
+
+    private StringBuffer format(final double value) {
+      buffer.setLength(0);
+      return formatters.get().format(value, buffer, field);
+    }
+  }
+
   private static String toString(final Double value) {
     if (Double.isNaN(value) || Double.isInfinite(value)) {
       // http://munin-monitoring.org/wiki/network-protocol
@@ -75,6 +100,38 @@ public final class NumberUtil {
     }
   }
   
+  /**
+   * Append a value formatted like {@link #toString(Object)} without creating intermediate
+   * strings for numbers.
+   * @param out Where to append the value
+   * @param value The value, can be of any type or null
+   */
+  static void append(final MuninOutput out, final Object value) {
+    if (value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Byte) {
+      out.append(((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      append(out, ((Number) value).doubleValue());
+    } else if (value instanceof Number) {
+      out.append(scratches.get().format(value));
+    } else {
+      out.append(String.valueOf(value));
+    }
+  }
+
+  /**
+   * Append a double like {@link #append(MuninOutput, Object)}, without boxing it.
+   * @param out Where to append the value
+   * @param value The value, NaN and infinity are written as unknown
+   */
+  static void append(final MuninOutput out, final double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      out.append('U');
+    } else {
+      out.append(scratches.get().format(value));
+    }
+  }
+
   /**
    * Convert given number form nanoseconds to unit
    * @param ns The number in nanoseconds
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Reads the hostname the kernel was given, i.e. what gethostname(2) returns, from
+ * /proc/sys/kernel/hostname. Only available on Linux, but needs no DNS lookup.
+ */
+public class ProcHostname implements Hostname {
+
+  private static final File DEFAULT_PATH = new File("/proc/sys/kernel/hostname");
+
+  private final File path;
+
+  public ProcHostname() {
+    this(DEFAULT_PATH);
+  }
+
+  ProcHostname(final File path) {
+    this.path = path;
+  }
+
+  /**
+   * @return true if the hostname can be read from /proc on this host
+   */
+  public static boolean isAvailable() {
+    return DEFAULT_PATH.canRead();
+  }
+
+  @Override
+  public String getHostname() {
+    try {
+      String hostname = Files.toString(path, Charsets.US_ASCII).trim();
+      if (hostname.isEmpty()) {
+        throw new RuntimeException("Empty hostname in " + path);
+      }
+      return hostname;
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to read hostname from " + path, e);
+    }
+  }
+}
@@ -139,11 +139,29 @@ public interface Property {
       return type;
     }
 
+    /**
+     * @return True if the property is read from a snapshot of the timer, rather than its counters.
+     */
+    public boolean usesSnapshot() {
+      switch (this) {
+        case COUNT:
+        case ONE_MINUTE_RATE:
+        case FIVE_MINUTE_RATE:
+        case FIFTEEN_MINUTE_RATE:
+        case MEAN_RATE:
+          return false;
+        default:
+          return true;
+      }
+    }
+
+    /**
+     * @param snapshot A snapshot of the timer shared with other properties, or null to take one
+     *                 if needed.
+     */
     public Number getNumber(final Metric metric, final Snapshot snapshot, final TimeUnit rateUnit, final TimeUnit durationUnit) {
       if (metric instanceof Timer) {
         Timer timer = (Timer) metric;
-        
-        Snapshot timerSnahpshot = timer.getSnapshot();
         switch(this) {
           case COUNT:
             return timer.getCount();
@@ -153,14 +171,20 @@ public interface Property {
             return timer.getFiveMinuteRate();
           case FIFTEEN_MINUTE_RATE:
             return timer.getFifteenMinuteRate();
+          case MEAN_RATE:
+            return timer.getMeanRate();
+          default:
+            break;
+        }
+
+        Snapshot timerSnahpshot = snapshot != null ? snapshot : timer.getSnapshot();
+        switch(this) {
           case MAX:
             return convertFromNS(timerSnahpshot.getMax(), durationUnit);
           case MIN:
             return convertFromNS(timerSnahpshot.getMin(), durationUnit);
           case MEAN:
             return convertFromNS(timerSnahpshot.getMean(), durationUnit);
-          case MEAN_RATE:
-            return timer.getMeanRate();
           case STD_DEV:
             return convertFromNS(timerSnahpshot.getStdDev(), durationUnit);
           case MEDIAN:
@@ -249,13 +273,26 @@ public interface Property {
       return type;
     }
 
+    /**
+     * @return True if the property is read from a snapshot of the histogram, rather than its count.
+     */
+    public boolean usesSnapshot() {
+      return this != COUNT;
+    }
+
+    /**
+     * @param snapshot A snapshot of the histogram shared with other properties, or null to take one
+     *                 if needed.
+     */
     public Number getNumber(final Metric metric, final Snapshot snapshot, final TimeUnit rateUnit, final TimeUnit durationUnit) {
       if (metric instanceof Histogram) {
         Histogram histogram = (Histogram) metric;
-        Snapshot histogramSnapshot = histogram.getSnapshot();
+        if (this == COUNT) {
+          return histogram.getCount();
+        }
+
+        Snapshot histogramSnapshot = snapshot != null ? snapshot : histogram.getSnapshot();
         switch(this) {
-          case COUNT:
-            return histogram.getCount();
           case MAX:
             return histogramSnapshot.getMax();
           case MIN:
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.spotify.statistics.client.MuninClient;
+import com.spotify.statistics.client.MuninClientConfig;
+import com.spotify.statistics.client.MuninValues;
+
+/**
+ * A munin node behind a {@link MuninProxy}, polled over persistent connections. The config of
+ * each service is cached until the services of the node, or the fields fetched from the service,
+ * change. Other changes, e.g. to the label or type of a field, are picked up by
+ * {@link #refreshConfigs()}.
+ */
+final class ProxyChild {
+
+  private final InetSocketAddress address;
+  private final MuninClient client;
+  private final Timer latency;
+  private final Meter errors;
+  private final ConcurrentMap<String, CachedConfig> configs =
+      new ConcurrentHashMap<String, CachedConfig>();
+  // services seen to be multigraphs in their config or values
+  private final Set<String> multigraphs =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private volatile List<String> services = Collections.emptyList();
+
+  ProxyChild(final InetSocketAddress address, final MuninClientConfig clientConfig,
+             final MetricRegistry metrics) {
+    this.address = address;
+    this.client = new MuninClient(address, clientConfig);
+    String name = address.getHostString() + ":" + address.getPort();
+    this.latency = metrics.timer(MetricRegistry.name("munin-proxy", name, "latency"));
+    this.errors = metrics.meter(MetricRegistry.name("munin-proxy", name, "errors"));
+  }
+
+  List<String> list() throws IOException {
+    Timer.Context time = latency.time();
+    try {
+      List<String> listed = client.list();
+      if (!listed.equals(services)) {
+        configs.clear();
+        services = listed;
+      }
+      return listed;
+    } catch (IOException e) {
+      errors.mark();
+      throw e;
+    } finally {
+      time.stop();
+    }
+  }
+
+  /**
+   * @return The config lines of a service, without values.
+   */
+  List<String> config(final String service) throws IOException {
+    CachedConfig cached = configs.get(service);
+    if (cached != null) {
+      return cached.lines;
+    }
+
+    cached = readConfig(service);
+    configs.put(service, cached);
+    if (cached.multigraph) {
+      multigraphs.add(service);
+    }
+    return cached.lines;
+  }
+
+  /**
+   * @return True if the config of any service is cached, see {@link #refreshConfigs()}.
+   */
+  boolean hasCachedConfigs() {
+    return !configs.isEmpty();
+  }
+
+  /**
+   * Read the cached configs again, replacing those that changed. Run in the background when the
+   * services are listed, so that config is still answered from the cache.
+   */
+  void refreshConfigs() throws IOException {
+    for (Map.Entry<String, CachedConfig> entry : configs.entrySet()) {
+      CachedConfig refreshed = readConfig(entry.getKey());
+      // unless invalidated meanwhile
+      if (!refreshed.lines.equals(entry.getValue().lines)
+          && configs.replace(entry.getKey(), entry.getValue(), refreshed)) {
+        if (refreshed.multigraph) {
+          multigraphs.add(entry.getKey());
+        } else {
+          multigraphs.remove(entry.getKey());
+        }
+      }
+    }
+  }
+
+  private CachedConfig readConfig(final String service) throws IOException {
+    Timer.Context time = latency.time();
+    try {
+      return new CachedConfig(service, client.config(service));
+    } catch (IOException e) {
+      errors.mark();
+      throw e;
+    } finally {
+      time.stop();
+    }
+  }
+
+  /**
+   * @return True if the service was seen to be a multigraph, by fetching it or its config.
+   */
+  boolean isMultigraph(final String service) {
+    return multigraphs.contains(service);
+  }
+
+  MuninValues fetch(final String service) throws IOException {
+    return fetch(Collections.singletonList(service)).get(0);
+  }
+
+  List<MuninValues> fetch(final List<String> fetched) throws IOException {
+    Timer.Context time = latency.time();
+    List<MuninValues> values;
+    try {
+      values = client.fetch(fetched);
+    } catch (IOException e) {
+      errors.mark();
+      throw e;
+    } finally {
+      time.stop();
+    }
+
+    for (MuninValues serviceValues : values) {
+      if (isMultigraph(serviceValues)) {
+        multigraphs.add(serviceValues.getService());
+      } else {
+        multigraphs.remove(serviceValues.getService());
+      }
+      CachedConfig cached = configs.get(serviceValues.getService());
+      if (cached != null && !cached.hasFields(serviceValues)) {
+        configs.remove(serviceValues.getService());
+      }
+    }
+    return values;
+  }
+
+  static boolean isMultigraph(final MuninValues values) {
+    for (int i = 0; i < values.size(); i++) {
+      if (!values.getGraph(i).equals(values.getService())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void close() {
+    client.close();
+  }
+
+  @Override
+  public String toString() {
+    return address.getHostString() + ":" + address.getPort();
+  }
+
+  private static final class CachedConfig {
+    private final List<String> lines;
+    // graph.field of each field with a label
+    private final Set<String> fields = new HashSet<String>();
+    private final boolean multigraph;
+
+    private CachedConfig(final String service, final List<String> config) {
+      // values included with dirtyconfig are stale by the time the config is served again
+      List<String> lines = new ArrayList<String>(config.size());
+      String graph = service;
+      boolean multigraph = false;
+      for (String line : config) {
+        if (line.contains(".value ")) {
+          continue;
+        }
+        if (line.startsWith("multigraph ")) {
+          multigraph = true;
+          graph = line.substring("multigraph ".length());
+        }
+        int label = line.indexOf(".label ");
+        if (label > 0) {
+          fields.add(graph + '.' + line.substring(0, label));
+        }
+        lines.add(line);
+      }
+      this.lines = Collections.unmodifiableList(lines);
+      this.multigraph = multigraph;
+    }
+
+    /**
+     * @return True if the values are of exactly the fields of this config.
+     */
+    private boolean hasFields(final MuninValues values) {
+      if (values.size() != fields.size()) {
+        return false;
+      }
+      for (int i = 0; i < values.size(); i++) {
+        if (!fields.contains(values.getGraph(i) + '.' + values.getField(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
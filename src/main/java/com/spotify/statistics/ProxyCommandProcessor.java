@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.spotify.statistics.client.MuninValues;
+
+/**
+ * Serves the merged services of the nodes behind a {@link MuninProxy}. Listing the services
+ * starts fetching all of them from all nodes concurrently, so that the fetches a munin master
+ * sends next are answered from values already received. The cached config of the nodes is read
+ * again in the background, to pick up changed fields.
+ */
+final class ProxyCommandProcessor implements MuninCommandProcessor {
+
+  private static final Logger LOG = Logger.getLogger(ProxyCommandProcessor.class);
+
+  private final Hostname hostname;
+  private final List<ProxyChild> children;
+  private final ExecutorService executor;
+  private final long prefetchWindowNanos;
+
+  // service -> the node serving it, null until the services have been listed
+  private volatile Map<String, ProxyChild> owners;
+  private volatile FetchRound round;
+
+  ProxyCommandProcessor(final Hostname hostname, final List<ProxyChild> children,
+                        final ExecutorService executor, final long prefetchWindowMillis) {
+    this.hostname = hostname;
+    this.children = children;
+    this.executor = executor;
+    this.prefetchWindowNanos = TimeUnit.MILLISECONDS.toNanos(prefetchWindowMillis);
+  }
+
+  @Override
+  public Hostname getHostname() {
+    return hostname;
+  }
+
+  @Override
+  public MuninCommandProcessor getNode(final String nodeHostname) {
+    // the services of all nodes are served as one node
+    return nodeHostname.equals(hostname.getHostname()) ? this : null;
+  }
+
+  @Override
+  public void processCommand(final String command, final List<String> args,
+                             final Set<Capability> capabilities, final MuninOutput out)
+    throws QuitException, UnknownCommandException {
+
+    final boolean multigraph = capabilities.contains(Capability.MULTIGRAPH);
+    if (command.equals("list")) {
+      processListCommand(multigraph, out);
+    } else if (command.equals("fetch")) {
+      processFetchCommand(args, multigraph, out);
+    } else if (command.equals("config")) {
+      processConfigCommand(args, multigraph, out);
+    } else if (command.equals("cap")) {
+      processCapCommand(args, capabilities, out);
+    } else if (command.equals("nodes")) {
+      out.append(hostname.getHostname()).endLine();
+      out.append('.').endLine();
+    } else if (command.equals("version")) {
+      out.append("metrics-munin-reporter munin node on ").append(hostname.getHostname()).endLine();
+    } else if (command.equals("quit")) {
+      throw new QuitException();
+    } else {
+      throw new UnknownCommandException();
+    }
+  }
+
+  private void processCapCommand(final List<String> args, final Set<Capability> capabilities,
+                                 final MuninOutput out) {
+    // services are passed through as the nodes serve them to a multigraph capable client, other
+    // clients do not get multigraph services
+    capabilities.clear();
+    if (args.contains(Capability.MULTIGRAPH.getProtocolName())) {
+      capabilities.add(Capability.MULTIGRAPH);
+    }
+    out.append("cap ").append(Capability.MULTIGRAPH.getProtocolName()).endLine();
+  }
+
+  private void processListCommand(final boolean multigraph, final MuninOutput out) {
+    // the proxy serves a single node, whatever name the master knows it by
+    Map<String, ProxyChild> listed = refresh();
+    Set<String> sortedNames = new TreeSet<String>(listed.keySet());
+    if (!multigraph) {
+      // which services are multigraphs is learnt from their values
+      awaitRound(round);
+      for (Map.Entry<String, ProxyChild> entry : listed.entrySet()) {
+        if (entry.getValue().isMultigraph(entry.getKey())) {
+          sortedNames.remove(entry.getKey());
+        }
+      }
+    }
+    boolean first = true;
+    for (String name : sortedNames) {
+      if (!first) {
+        out.append(' ');
+      }
+      out.append(name);
+      first = false;
+    }
+    out.endLine();
+  }
+
+  private void processConfigCommand(final List<String> args, final boolean multigraph,
+                                    final MuninOutput out) {
+    ProxyChild child = findChild(args);
+    if (child == null || !multigraph && child.isMultigraph(args.get(0))) {
+      unknownService(out);
+      return;
+    }
+
+    try {
+      List<String> lines = child.config(args.get(0));
+      if (!multigraph && child.isMultigraph(args.get(0))) {
+        unknownService(out);
+        return;
+      }
+      for (String line : lines) {
+        out.append(line).endLine();
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to get config of " + args.get(0) + " from " + child, e);
+      out.append("# failed to get config from ").append(child.toString()).endLine();
+    }
+    out.append('.').endLine();
+  }
+
+  private void processFetchCommand(final List<String> args, final boolean multigraph,
+                                   final MuninOutput out) {
+    ProxyChild child = findChild(args);
+    if (child == null || !multigraph && child.isMultigraph(args.get(0))) {
+      unknownService(out);
+      return;
+    }
+
+    String service = args.get(0);
+    MuninValues values = prefetched(child, service);
+    if (values == null) {
+      try {
+        values = child.fetch(service);
+      } catch (IOException e) {
+        LOG.warn("Failed to fetch " + service + " from " + child, e);
+        out.append("# failed to fetch from ").append(child.toString()).endLine();
+        out.append('.').endLine();
+        return;
+      }
+    }
+    if (!multigraph && ProxyChild.isMultigraph(values)) {
+      unknownService(out);
+      return;
+    }
+
+    String graph = service;
+    for (int i = 0; i < values.size(); i++) {
+      if (!values.getGraph(i).equals(graph)) {
+        graph = values.getGraph(i);
+        out.append("multigraph ").append(graph).endLine();
+      }
+      out.append(values.getField(i)).append(".value ");
+      if (values.isIntegral(i)) {
+        // exact, even beyond the integers a double holds
+        out.append(values.getLong(i)).endLine();
+      } else {
+        out.appendNumber(values.getValue(i)).endLine();
+      }
+    }
+    out.append('.').endLine();
+  }
+
+  /**
+   * @return The values of the service from the current fetch round, or null if there are none.
+   *         The values are only served once, later fetches go to the node.
+   */
+  private MuninValues prefetched(final ProxyChild child, final String service) {
+    FetchRound current = round;
+    if (current == null || System.nanoTime() - current.startedNanos > prefetchWindowNanos
+        || !current.taken.add(service)) {
+      return null;
+    }
+
+    Future<List<MuninValues>> fetch = current.fetches.get(child);
+    if (fetch == null) {
+      return null;
+    }
+    try {
+      for (MuninValues values : fetch.get()) {
+        if (values.getService().equals(service)) {
+          return values;
+        }
+      }
+    } catch (ExecutionException e) {
+      LOG.debug("Prefetch from " + child + " failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  /**
+   * Wait for the fetches of a round to finish, failed or not.
+   */
+  private static void awaitRound(final FetchRound current) {
+    if (current == null) {
+      return;
+    }
+    for (Future<List<MuninValues>> fetch : current.fetches.values()) {
+      try {
+        fetch.get();
+      } catch (ExecutionException e) {
+        // the fetch is retried when served
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private ProxyChild findChild(final List<String> args) {
+    if (args.isEmpty()) {
+      return null;
+    }
+    Map<String, ProxyChild> current = owners;
+    if (current == null) {
+      current = refresh();
+    }
+    return current.get(args.get(0));
+  }
+
+  /**
+   * List the services of all nodes concurrently and start fetching them.
+   *
+   * @return The node serving each service.
+   */
+  private Map<String, ProxyChild> refresh() {
+    Map<ProxyChild, Future<List<String>>> lists =
+        new LinkedHashMap<ProxyChild, Future<List<String>>>();
+    for (final ProxyChild child : children) {
+      lists.put(child, executor.submit(new Callable<List<String>>() {
+        @Override
+        public List<String> call() throws IOException {
+          return child.list();
+        }
+      }));
+    }
+
+    Map<String, ProxyChild> listed = new HashMap<String, ProxyChild>();
+    Map<ProxyChild, List<String>> served = new LinkedHashMap<ProxyChild, List<String>>();
+    for (Map.Entry<ProxyChild, Future<List<String>>> entry : lists.entrySet()) {
+      ProxyChild child = entry.getKey();
+      List<String> services = new ArrayList<String>();
+      try {
+        for (String service : entry.getValue().get()) {
+          if (listed.containsKey(service)) {
+            LOG.warn("Service " + service + " of " + child + " is already served by "
+                     + listed.get(service));
+          } else {
+            listed.put(service, child);
+            services.add(service);
+          }
+        }
+      } catch (ExecutionException e) {
+        LOG.warn("Failed to list services of " + child, e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      served.put(child, services);
+    }
+
+    owners = listed;
+    round = startRound(served);
+    return listed;
+  }
+
+  private FetchRound startRound(final Map<ProxyChild, List<String>> served) {
+    FetchRound started = new FetchRound();
+    for (final Map.Entry<ProxyChild, List<String>> entry : served.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        started.fetches.put(entry.getKey(), executor.submit(new Callable<List<MuninValues>>() {
+          @Override
+          public List<MuninValues> call() throws IOException {
+            return entry.getKey().fetch(entry.getValue());
+          }
+        }));
+      }
+    }
+    // queued behind the fetches, so that they are not delayed
+    for (final ProxyChild child : served.keySet()) {
+      if (child.hasCachedConfigs()) {
+        executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              child.refreshConfigs();
+            } catch (IOException e) {
+              LOG.warn("Failed to refresh config from " + child, e);
+            }
+          }
+        });
+      }
+    }
+    return started;
+  }
+
+  private static void unknownService(final MuninOutput out) {
+    out.append("# unknown service").endLine();
+    out.append('.').endLine();
+  }
+
+  /**
+   * Fetches of all services, started together when the services were listed.
+   */
+  private static final class FetchRound {
+    private final long startedNanos = System.nanoTime();
+    private final Map<ProxyChild, Future<List<MuninValues>>> fetches =
+        new HashMap<ProxyChild, Future<List<MuninValues>>>();
+    private final Set<String> taken =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  }
+}
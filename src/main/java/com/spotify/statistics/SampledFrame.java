@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The values of all fields sampled at one point in time, as columns with one slot per field that
+ * was sampled. Integral values are kept in a {@code long[]}, all others in a {@code double[]}, so
+ * that fetch serves them without boxing. The slots of a graph follow the order of its plan, and
+ * each slot records the field id it was sampled for, so fields are still found after others were
+ * added to or removed from the graph, and fields added since the sample are read live instead.
+ *
+ * <p>Filled by the sampling thread, then published by {@link MetricsCommandProcessor} through a
+ * volatile field and never written again. A new frame is made for every sample, so readers always
+ * see consistent values no matter how long they hold on to a frame.
+ */
+final class SampledFrame {
+
+  private static final byte ABSENT = 0;
+  private static final byte INTEGRAL = 1;
+  private static final byte DOUBLE = 2;
+
+  // graph name -> graph index
+  private final Map<String, Integer> graphs;
+  // graph index -> the slot of its first field
+  private final int[] starts;
+  private int graphCount;
+  private final int[] ids;
+  private final byte[] kinds;
+  private final long[] longs;
+  private final double[] doubles;
+  private int size;
+
+  /**
+   * @param graphCount The number of graphs to be sampled.
+   * @param fieldCount The number of fields to be sampled, across all graphs.
+   */
+  SampledFrame(final int graphCount, final int fieldCount) {
+    graphs = new HashMap<String, Integer>(graphCount * 2);
+    starts = new int[graphCount];
+    ids = new int[fieldCount];
+    kinds = new byte[fieldCount];
+    longs = new long[fieldCount];
+    doubles = new double[fieldCount];
+  }
+
+  /**
+   * Start the fields of a graph, to be put in the order of its plan.
+   */
+  void startGraph(final String graphName) {
+    graphs.put(graphName, graphCount);
+    starts[graphCount++] = size;
+  }
+
+  /**
+   * @param value The sampled value, or null if the field could not be sampled.
+   */
+  void put(final int fieldId, final Number value) {
+    ids[size] = fieldId;
+    if (value == null) {
+      kinds[size] = ABSENT;
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+               || value instanceof Byte) {
+      longs[size] = value.longValue();
+      kinds[size] = INTEGRAL;
+    } else {
+      doubles[size] = value.doubleValue();
+      kinds[size] = DOUBLE;
+    }
+    size++;
+  }
+
+  /**
+   * @return The index of a graph, or -1 if the graph was not sampled.
+   */
+  int graph(final String graphName) {
+    Integer graph = graphs.get(graphName);
+    return graph != null ? graph : -1;
+  }
+
+  /**
+   * @param graph The index of the graph, see {@link #graph(String)}.
+   * @param index The index of the field in the current plan of the graph.
+   * @return The slot of the field if it was sampled, else -1, e.g. for fields added since.
+   */
+  int slot(final int graph, final int index, final int fieldId) {
+    if (graph < 0) {
+      return -1;
+    }
+    final int start = starts[graph];
+    final int end = graph + 1 < graphCount ? starts[graph + 1] : size;
+    int slot = start + index;
+    if (slot >= end || ids[slot] != fieldId) {
+      // the plan changed since the sample, search the graph
+      slot = -1;
+      for (int i = start; i < end; i++) {
+        if (ids[i] == fieldId) {
+          slot = i;
+          break;
+        }
+      }
+    }
+    return slot >= 0 && kinds[slot] != ABSENT ? slot : -1;
+  }
+
+  boolean isIntegral(final int slot) {
+    return kinds[slot] == INTEGRAL;
+  }
+
+  long getLong(final int slot) {
+    return longs[slot];
+  }
+
+  double getDouble(final int slot) {
+    return doubles[slot];
+  }
+
+  /**
+   * @return The value of a sampled field, boxed for callers that need a {@link Number}.
+   */
+  Number get(final int slot) {
+    return kinds[slot] == INTEGRAL ? (Number) longs[slot] : (Number) doubles[slot];
+  }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serves any number of munin connections from a single thread using non-blocking channels.
+ * Accepted channels are handed over using {@link #register(SocketChannel, ClientRateLimiter.Limits)}.
+ */
+class SelectorEventLoop implements Runnable {
+
+  private static final Logger LOG = Logger.getLogger(SelectorEventLoop.class);
+
+  private final MuninCommandProcessor commandProcessor;
+  private final ConnectionTracker connections;
+  private final BufferPool bufferPool;
+  private final ConnectionTimeouts timeouts;
+  private final int outputHighWaterMark;
+  private final MuninServerStats stats;
+  private final Selector selector;
+  // connections are served one at a time, so they can all share one read buffer
+  private final ByteBuffer readBuffer;
+  private final Queue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+  private volatile boolean stopped = false;
+  private boolean draining = false;
+
+  SelectorEventLoop(final MuninCommandProcessor commandProcessor,
+                    final ConnectionTracker connections,
+                    final BufferPool bufferPool,
+                    final ConnectionTimeouts timeouts,
+                    final int outputHighWaterMark,
+                    final MuninServerStats stats) throws IOException {
+    this.commandProcessor = commandProcessor;
+    this.connections = connections;
+    this.bufferPool = bufferPool;
+    this.timeouts = timeouts;
+    this.outputHighWaterMark = outputHighWaterMark;
+    this.stats = stats;
+    this.readBuffer = bufferPool.acquire();
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Hand over an accepted channel to be served by this event loop. Can be called from any thread.
+   */
+  void register(final SocketChannel channel, final ClientRateLimiter.Limits limits) {
+    pending.add(new Connection(channel, limits));
+    selector.wakeup();
+  }
+
+  /**
+   * Run a task on the event loop thread. Can be called from any thread.
+   */
+  void execute(final Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Stop serving new commands. Idle connections are closed right away, connections with output
+   * still to be written are closed once it is written. Can be called from any thread.
+   */
+  void drain() {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        draining = true;
+        for (SelectionKey key : selector.keys()) {
+          ((Connection) key.attachment()).drain();
+        }
+      }
+    });
+  }
+
+  /**
+   * Stop the event loop, closing all connections. Can be called from any thread.
+   */
+  void shutdown() {
+    stopped = true;
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!stopped) {
+        selector.select();
+        runTasks();
+        registerPending();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.writable();
+            }
+          } catch (IOException e) {
+            LOG.debug("Connection error, closing.", e);
+            connection.close();
+          } catch (RuntimeException e) {
+            LOG.error("Munin connection failed", e);
+            connection.close();
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOG.error("Munin event loop failed", e);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        ((Connection) key.attachment()).close();
+      }
+      Connection connection;
+      while ((connection = pending.poll()) != null) {
+        connection.close();
+      }
+      closeQuietly(selector);
+      bufferPool.release(readBuffer);
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  private void registerPending() {
+    Connection connection;
+    while ((connection = pending.poll()) != null) {
+      if (draining) {
+        connection.close();
+        continue;
+      }
+      try {
+        connection.open();
+      } catch (IOException e) {
+        LOG.debug("Failed to set up connection, closing.", e);
+        connection.close();
+      }
+    }
+  }
+
+  private static void closeQuietly(final Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  private final class Connection implements ConnectionTimeouts.Watched {
+
+    private final SocketChannel channel;
+    private final LineDecoder decoder = new LineDecoder();
+    private final MuninSession session;
+    private final AsciiResponseEncoder output = new AsciiResponseEncoder(bufferPool);
+
+    private SelectionKey key;
+    private ConnectionTimeouts.Watch watch;
+    // input not yet served, kept while output above the high-water mark is written
+    private ByteBuffer unread;
+    private boolean closeAfterFlush = false;
+    private boolean closed = false;
+    private volatile long lastActivityNanos = System.nanoTime();
+    private volatile boolean serving = false;
+
+    private Connection(final SocketChannel channel, final ClientRateLimiter.Limits limits) {
+      this.channel = channel;
+      this.session = new MuninSession(commandProcessor, limits);
+    }
+
+    private void open() throws IOException {
+      channel.configureBlocking(false);
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+      watch = timeouts.watch(this);
+      session.banner(output);
+      flush();
+    }
+
+    private void read() throws IOException {
+      readBuffer.clear();
+      int read = channel.read(readBuffer);
+      if (read < 0) {
+        close();
+        return;
+      }
+      lastActivityNanos = System.nanoTime();
+
+      readBuffer.flip();
+      serve(readBuffer);
+      flush();
+    }
+
+    /**
+     * Serve the complete commands of the input. Once the output exceeds the high-water mark, the
+     * rest of the input is kept, to be served when the output has been written.
+     */
+    private void serve(final ByteBuffer in) throws IOException {
+      serving = true;
+      try {
+        String line;
+        while (!closeAfterFlush && !draining && (line = decoder.decode(in)) != null) {
+          try {
+            session.processLine(line, output);
+          } catch (QuitException e) {
+            closeAfterFlush = true;
+          }
+          if (outputHighWaterMark > 0 && output.pendingBytes() > outputHighWaterMark
+              && in.hasRemaining()) {
+            unread = ByteBuffer.allocate(in.remaining());
+            unread.put(in).flip();
+            return;
+          }
+        }
+      } finally {
+        serving = false;
+      }
+    }
+
+    /**
+     * Continue writing when the channel became writable. A client whose socket was reported
+     * writable but takes none of the output above the high-water mark is dropped.
+     */
+    private void writable() throws IOException {
+      long pending = output.pendingBytes();
+      if (outputHighWaterMark > 0 && pending > outputHighWaterMark
+          && !output.writeTo(channel) && output.pendingBytes() == pending) {
+        LOG.debug("Munin client not reading its responses, closing.");
+        stats.slowClientDropped();
+        close();
+        return;
+      }
+      flush();
+    }
+
+    private void flush() throws IOException {
+      while (true) {
+        long pending = output.pendingBytes();
+        boolean done = output.writeTo(channel);
+        if (output.pendingBytes() != pending) {
+          lastActivityNanos = System.nanoTime();
+        }
+        if (!done) {
+          // socket buffer is full, continue when the channel becomes writable. No further
+          // commands are read until then.
+          key.interestOps(SelectionKey.OP_WRITE);
+          watch.writeStarted();
+          return;
+        }
+        watch.writeFinished();
+
+        if (unread == null || closeAfterFlush || draining) {
+          break;
+        }
+        ByteBuffer in = unread;
+        unread = null;
+        serve(in);
+      }
+
+      if (closeAfterFlush || draining) {
+        close();
+      } else {
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    @Override
+    public long lastActivityNanos() {
+      return serving ? System.nanoTime() : lastActivityNanos;
+    }
+
+    @Override
+    public void expire() {
+      execute(new Runnable() {
+        @Override
+        public void run() {
+          close();
+        }
+      });
+    }
+
+    private void drain() {
+      if (output.isEmpty()) {
+        close();
+      } else {
+        closeAfterFlush = true;
+      }
+    }
+
+    private void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (watch != null) {
+        watch.cancel();
+      }
+      if (key != null) {
+        key.cancel();
+      }
+      closeQuietly(channel);
+      output.release();
+      connections.release();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+/**
+ * Fixed size history of one field, kept in preallocated primitive arrays. Once full, each new
+ * sample overwrites the oldest.
+ */
+final class SpoolRing {
+
+  // doubles hold integral values exactly up to 2^53
+  private static final double MAX_EXACT = 9007199254740992d;
+
+  private final long[] times;
+  private final double[] values;
+  private int next;
+  private int size;
+
+  SpoolRing(final int capacity) {
+    this.times = new long[capacity];
+    this.values = new double[capacity];
+  }
+
+  synchronized void add(final long time, final double value) {
+    times[next] = time;
+    values[next] = value;
+    next = (next + 1) % times.length;
+    if (size < times.length) {
+      size++;
+    }
+  }
+
+  /**
+   * Write all samples newer than a point in time as munin spooled values, i.e.
+   * {@code <field>.value <time>:<value>}, oldest first.
+   */
+  synchronized void writeSince(final String fieldName, final long since, final MuninOutput out) {
+    int first = (next - size + times.length) % times.length;
+    for (int i = 0; i < size; i++) {
+      int index = (first + i) % times.length;
+      if (times[index] > since) {
+        out.append(fieldName).append(".value ").append(times[index]).append(':');
+        appendValue(values[index], out);
+        out.endLine();
+      }
+    }
+  }
+
+  /**
+   * @return The time of the latest sample, or {@link Long#MIN_VALUE} if there is none.
+   */
+  synchronized long getLastTime() {
+    return size == 0 ? Long.MIN_VALUE : times[(next - 1 + times.length) % times.length];
+  }
+
+  private static void appendValue(final double value, final MuninOutput out) {
+    if (value == Math.rint(value) && Math.abs(value) <= MAX_EXACT) {
+      out.append((long) value);
+    } else {
+      out.appendNumber(value);
+    }
+  }
+}
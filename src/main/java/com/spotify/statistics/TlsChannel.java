@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * A blocking socket channel secured by an {@link SSLEngine}, taking over a connection after
+ * STARTTLS. Reads return decrypted bytes and writes encrypt, so the handler serves commands the
+ * same way as over the plain channel.
+ *
+ * <p>Not thread-safe, used by the handler thread of the connection only.
+ */
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final SocketChannel channel;
+  private final SSLEngine engine;
+  // received bytes not yet unwrapped, in write mode
+  private ByteBuffer netIn;
+  // wrapped bytes to send, in write mode
+  private ByteBuffer netOut;
+  // unwrapped bytes not yet read, in write mode
+  private ByteBuffer appIn;
+
+  TlsChannel(final SocketChannel channel, final SSLEngine engine) {
+    this.channel = channel;
+    this.engine = engine;
+    this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+  }
+
+  SSLEngine getEngine() {
+    return engine;
+  }
+
+  /**
+   * Run the handshake to completion.
+   */
+  void handshake() throws IOException {
+    engine.beginHandshake();
+    drive(engine.getHandshakeStatus());
+  }
+
+  @Override
+  public int read(final ByteBuffer dst) throws IOException {
+    while (appIn.position() == 0) {
+      if (!unwrap()) {
+        return -1;
+      }
+    }
+    appIn.flip();
+    int n = Math.min(appIn.remaining(), dst.remaining());
+    ByteBuffer slice = appIn.duplicate();
+    slice.limit(slice.position() + n);
+    dst.put(slice);
+    appIn.position(appIn.position() + n);
+    appIn.compact();
+    return n;
+  }
+
+  @Override
+  public int write(final ByteBuffer src) throws IOException {
+    return (int) write(new ByteBuffer[] {src}, 0, 1);
+  }
+
+  @Override
+  public long write(final ByteBuffer[] srcs) throws IOException {
+    return write(srcs, 0, srcs.length);
+  }
+
+  @Override
+  public long write(final ByteBuffer[] srcs, final int offset, final int length)
+      throws IOException {
+    long written = 0;
+    while (hasRemaining(srcs, offset, length)) {
+      SSLEngineResult result = wrap(srcs, offset, length);
+      written += result.bytesConsumed();
+      drive(result.getHandshakeStatus());
+    }
+    return written;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  /**
+   * Send close_notify and close the connection.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      engine.closeOutbound();
+      while (!engine.isOutboundDone()) {
+        wrap(new ByteBuffer[] {EMPTY}, 0, 1);
+      }
+    } catch (IOException ignored) {
+      // the connection is closed anyway
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Advance the handshake until the engine has nothing left to exchange, also for handshake
+   * messages after the initial handshake, e.g. TLS 1.3 session tickets.
+   */
+  private void drive(final HandshakeStatus initial) throws IOException {
+    HandshakeStatus status = initial;
+    while (true) {
+      switch (status) {
+        case NEED_WRAP:
+          status = wrap(new ByteBuffer[] {EMPTY}, 0, 1).getHandshakeStatus();
+          break;
+        case NEED_UNWRAP:
+          if (!unwrap()) {
+            throw new EOFException("Connection closed during TLS handshake");
+          }
+          status = engine.getHandshakeStatus();
+          break;
+        case NEED_TASK:
+          Runnable task;
+          while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+          }
+          status = engine.getHandshakeStatus();
+          break;
+        default:
+          return;
+      }
+    }
+  }
+
+  private SSLEngineResult wrap(final ByteBuffer[] srcs, final int offset, final int length)
+      throws IOException {
+    while (true) {
+      SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+      switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+          netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+          break;
+        case CLOSED:
+          flush();
+          if (result.bytesProduced() == 0 && hasRemaining(srcs, offset, length)) {
+            throw new SSLException("TLS connection closed");
+          }
+          return result;
+        default:
+          flush();
+          return result;
+      }
+    }
+  }
+
+  /**
+   * Unwrap one record, reading from the channel as needed.
+   *
+   * @return false if the peer closed the connection.
+   */
+  private boolean unwrap() throws IOException {
+    while (true) {
+      netIn.flip();
+      SSLEngineResult result;
+      try {
+        result = engine.unwrap(netIn, appIn);
+      } finally {
+        netIn.compact();
+      }
+      switch (result.getStatus()) {
+        case BUFFER_UNDERFLOW:
+          if (netIn.remaining() == 0) {
+            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+          }
+          if (channel.read(netIn) < 0) {
+            return false;
+          }
+          break;
+        case BUFFER_OVERFLOW:
+          appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+          break;
+        case CLOSED:
+          return false;
+        default:
+          if (result.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING
+              && result.getHandshakeStatus() != HandshakeStatus.FINISHED
+              && result.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP) {
+            drive(result.getHandshakeStatus());
+          }
+          return true;
+      }
+    }
+  }
+
+  private void flush() throws IOException {
+    netOut.flip();
+    while (netOut.hasRemaining()) {
+      channel.write(netOut);
+    }
+    netOut.clear();
+  }
+
+  private static ByteBuffer grow(final ByteBuffer buffer, final int size) {
+    ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, size));
+    buffer.flip();
+    grown.put(buffer);
+    return grown;
+  }
+
+  private static boolean hasRemaining(final ByteBuffer[] buffers, final int offset,
+                                      final int length) {
+    for (int i = offset; i < offset + length; i++) {
+      if (buffers[i].hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
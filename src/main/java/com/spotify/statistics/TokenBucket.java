@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * A lock-free token bucket, refilled at a steady rate up to a burst size. Rather than counting
+ * tokens, it keeps the time at which the bucket would be full again and moves it forward by one
+ * token interval per token taken, so taking a token is a single compare-and-set.
+ */
+class TokenBucket {
+
+  private final long intervalNanos;
+  private final long toleranceNanos;
+  // when the bucket will be full again, in System.nanoTime()
+  private final AtomicLong fullAt;
+
+  /**
+   * @param ratePerSecond Tokens added per second.
+   * @param burst The size of the bucket, i.e. how many tokens can be taken at once.
+   */
+  TokenBucket(final double ratePerSecond, final int burst) {
+    Validate.isTrue(ratePerSecond > 0, "Rate must be positive");
+    Validate.isTrue(burst > 0, "Burst must be positive");
+    this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+    this.toleranceNanos = intervalNanos * (burst - 1);
+    this.fullAt = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * @return true if a token was taken, false if the bucket is empty.
+   */
+  boolean tryAcquire() {
+    final long now = System.nanoTime();
+    while (true) {
+      long current = fullAt.get();
+      long start = current - now < 0 ? now : current;
+      if (start - now > toleranceNanos) {
+        return false;
+      }
+      if (fullAt.compareAndSet(current, start + intervalNanos)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @return true if no tokens have been taken for long enough for the bucket to be full.
+   */
+  boolean isFull(final long nowNanos) {
+    return fullAt.get() - nowNanos <= 0;
+  }
+}
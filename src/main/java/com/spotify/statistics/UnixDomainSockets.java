@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+/**
+ * Unix domain socket channels, available from Java 16. Looked up reflectively to keep running on
+ * older JVMs.
+ */
+final class UnixDomainSockets {
+
+  private static final ProtocolFamily UNIX = findUnixProtocolFamily();
+  private static final Method NEW_ADDRESS = findMethod("java.net.UnixDomainSocketAddress", "of",
+                                                       Path.class);
+  private static final Method OPEN_SERVER = findMethod("java.nio.channels.ServerSocketChannel",
+                                                       "open", ProtocolFamily.class);
+  private static final Method OPEN_CLIENT = findMethod("java.nio.channels.SocketChannel",
+                                                       "open", ProtocolFamily.class);
+
+  // the file type bits of unix:mode
+  private static final int S_IFMT = 0170000;
+  private static final int S_IFSOCK = 0140000;
+
+  /**
+   * @return true if this JVM supports unix domain socket channels
+   */
+  static boolean isSupported() {
+    return UNIX != null && NEW_ADDRESS != null && OPEN_SERVER != null && OPEN_CLIENT != null;
+  }
+
+  /**
+   * Open a server channel listening on a socket file. A socket file left behind by a process that
+   * did not shut down cleanly is replaced. Anything else at the path, or a socket file that is
+   * still accepting connections, fails the bind.
+   */
+  static ServerSocketChannel bind(final Path path, final int backlog) throws IOException {
+    if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+      if (!isSocket(path)) {
+        throw new FileAlreadyExistsException(path.toString(), null, "Not a socket file");
+      }
+      if (isListening(path)) {
+        throw new FileAlreadyExistsException(path.toString(), null, "Socket file in use");
+      }
+      Files.deleteIfExists(path);
+    }
+    ServerSocketChannel channel = (ServerSocketChannel) invoke(OPEN_SERVER, UNIX);
+    try {
+      channel.bind(address(path), backlog);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * Open a blocking channel connected to a socket file.
+   */
+  static SocketChannel connect(final Path path) throws IOException {
+    SocketChannel channel = (SocketChannel) invoke(OPEN_CLIENT, UNIX);
+    try {
+      channel.connect(address(path));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * @return The identity of the file at a path: its inode, or null if not known, along with its
+   *         modification time, as the inode of a removed file is soon reused.
+   */
+  static Object fileKey(final Path path) throws IOException {
+    BasicFileAttributes attributes =
+        Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    return attributes.fileKey() != null
+        ? Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime())
+        : null;
+  }
+
+  /**
+   * Remove a socket file, unless the path no longer holds it, e.g. because another process bound
+   * a socket at the same path since.
+   *
+   * @param fileKey The identity of the file when bound, see {@link #fileKey(Path)}.
+   */
+  static void unlink(final Path path, final Object fileKey) throws IOException {
+    try {
+      Object current = fileKey(path);
+      if (fileKey != null ? fileKey.equals(current) : current == null && isSocket(path)) {
+        Files.deleteIfExists(path);
+      }
+    } catch (NoSuchFileException e) {
+      // already gone
+    }
+  }
+
+  private static boolean isSocket(final Path path) throws IOException {
+    try {
+      int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+      return (mode & S_IFMT) == S_IFSOCK;
+    } catch (UnsupportedOperationException e) {
+      // no unix view, sockets are at least neither files, directories nor links
+      return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)
+          .isOther();
+    } catch (IllegalArgumentException e) {
+      return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)
+          .isOther();
+    }
+  }
+
+  private static boolean isListening(final Path path) {
+    try {
+      connect(path).close();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static SocketAddress address(final Path path) throws IOException {
+    return (SocketAddress) invoke(NEW_ADDRESS, path);
+  }
+
+  private static Object invoke(final Method method, final Object arg) throws IOException {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("Unix domain sockets are not supported by this JVM");
+    }
+    try {
+      return method.invoke(null, arg);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static ProtocolFamily findUnixProtocolFamily() {
+    for (StandardProtocolFamily family : StandardProtocolFamily.values()) {
+      if (family.name().equals("UNIX")) {
+        return family;
+      }
+    }
+    return null;
+  }
+
+  private static Method findMethod(final String className, final String name,
+                                   final Class<?> parameterType) {
+    try {
+      return Class.forName(className).getMethod(name, parameterType);
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private UnixDomainSockets() {
+    // don't allow initialization
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streams output to a writer. The first write error is kept and rethrown by {@link #flush()},
+ * later output is dropped.
+ */
+class WriterOutput implements MuninOutput {
+
+  private final Writer writer;
+  private IOException error;
+
+  WriterOutput(final Writer writer) {
+    this.writer = writer;
+  }
+
+  @Override
+  public MuninOutput append(final CharSequence s) {
+    if (error == null) {
+      try {
+        writer.append(s);
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public MuninOutput append(final char c) {
+    if (error == null) {
+      try {
+        writer.append(c);
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public MuninOutput append(final long value) {
+    return append(Long.toString(value));
+  }
+
+  @Override
+  public MuninOutput appendNumber(final Object value) {
+    NumberUtil.append(this, value);
+    return this;
+  }
+
+  @Override
+  public MuninOutput append(final byte[] bytes, final int offset, final int length) {
+    throw new UnsupportedOperationException("Binary output is only written to connections");
+  }
+
+  @Override
+  public void endLine() {
+    append('\n');
+  }
+
+  void flush() throws IOException {
+    if (error == null) {
+      writer.flush();
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+}
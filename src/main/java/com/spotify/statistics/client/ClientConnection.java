@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics.client;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A connection to a munin node, with capabilities negotiated when connecting. Commands are
+ * buffered until flushed, so that several can be sent in a single write.
+ */
+final class ClientConnection implements Closeable {
+
+  private static final String CAP = "cap";
+  static final String BINARY_FETCH = "binaryfetch";
+
+  // the capabilities the client understands
+  private static final String[] CAPABILITIES = {"multigraph", "dirtyconfig"};
+
+  private final Socket socket;
+  private final OutputStream out;
+  private final ResponseReader reader;
+  private final Set<String> capabilities;
+  // the binary fetch ids of the fields of each service. Ids are only valid for the node process
+  // that assigned them, and a new process means a new connection, so they are learned again on
+  // every connection
+  private final Map<String, FieldTable> fieldTables = new HashMap<String, FieldTable>();
+
+  ClientConnection(final InetSocketAddress address, final MuninClientConfig config)
+      throws IOException {
+    this.socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(address, config.getConnectTimeoutMillis());
+      socket.setSoTimeout(config.getReadTimeoutMillis());
+      this.out = new BufferedOutputStream(socket.getOutputStream());
+      this.reader = new ResponseReader(socket.getInputStream(),
+                                       config.getMaxResponseBytes());
+
+      reader.readLine();
+      if (!reader.isComment()) {
+        throw new IOException("Unexpected munin banner: " + reader.line());
+      }
+      this.capabilities = negotiate(config.isBinaryFetch());
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  private Set<String> negotiate(final boolean binaryFetch) throws IOException {
+    StringBuilder command = new StringBuilder(CAP);
+    for (String capability : CAPABILITIES) {
+      command.append(' ').append(capability);
+    }
+    if (binaryFetch) {
+      command.append(' ').append(BINARY_FETCH);
+    }
+    send(command.toString());
+    flush();
+
+    // nodes that do not support cap answer with a comment
+    reader.readLine();
+    Set<String> negotiated = new HashSet<String>();
+    if (reader.regionMatches(0, CAP + " ")) {
+      for (String supported : reader.string(CAP.length() + 1, reader.length()).split(" ")) {
+        for (String capability : CAPABILITIES) {
+          if (capability.equals(supported)) {
+            negotiated.add(capability);
+          }
+        }
+        if (binaryFetch && BINARY_FETCH.equals(supported)) {
+          negotiated.add(BINARY_FETCH);
+        }
+      }
+    }
+    return Collections.unmodifiableSet(negotiated);
+  }
+
+  Set<String> getCapabilities() {
+    return capabilities;
+  }
+
+  boolean isBinaryFetch() {
+    return capabilities.contains(BINARY_FETCH);
+  }
+
+  void send(final String command) throws IOException {
+    out.write(command.getBytes(ResponseReader.CHARSET));
+    out.write('\n');
+  }
+
+  void send(final String command, final String arg) throws IOException {
+    out.write(command.getBytes(ResponseReader.CHARSET));
+    out.write(' ');
+    out.write(arg.getBytes(ResponseReader.CHARSET));
+    out.write('\n');
+  }
+
+  void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * @return The field ids of a service learned on this connection, or null if not known yet.
+   */
+  FieldTable fieldTable(final String service) {
+    return fieldTables.get(service);
+  }
+
+  void putFieldTable(final String service, final FieldTable table) {
+    fieldTables.put(service, table);
+  }
+
+  void removeFieldTable(final String service) {
+    fieldTables.remove(service);
+  }
+
+  ResponseReader reader() {
+    return reader;
+  }
+
+  @Override
+  public void close() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // nothing to do, the connection is dropped anyway
+    }
+  }
+}
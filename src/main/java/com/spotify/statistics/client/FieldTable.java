@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The fields of a service by binary fetch id, learned from the {@code .id} lines of its config.
+ * Ids are assigned by the node across all services and grow as metrics come and go, so the ids of
+ * a service are kept sorted and looked up by binary search.
+ *
+ * <p>Ids are only valid for the node process that assigned them, so tables are kept per
+ * connection, see {@link ClientConnection#fieldTable(String)}.
+ */
+final class FieldTable {
+
+  private static final String MULTIGRAPH = "multigraph ";
+  private static final String ID = ".id";
+
+  // sorted, with the graph and field of each id at the same index
+  private final int[] ids;
+  private final String[] graphs;
+  private final String[] fields;
+
+  private FieldTable(final int[] ids, final String[] graphs, final String[] fields) {
+    this.ids = ids;
+    this.graphs = graphs;
+    this.fields = fields;
+  }
+
+  /**
+   * Read the config response of a service.
+   */
+  static FieldTable read(final String service, final ResponseReader reader) throws IOException {
+    List<Entry> entries = new ArrayList<Entry>();
+    String graph = service;
+
+    while (true) {
+      reader.readLine();
+      if (reader.isEnd()) {
+        break;
+      } else if (reader.regionMatches(0, MULTIGRAPH)) {
+        graph = reader.string(MULTIGRAPH.length(), reader.length());
+        continue;
+      }
+
+      int space = reader.indexOf(' ', 0);
+      int nameEnd = space - ID.length();
+      if (space < 0 || !reader.regionMatches(nameEnd, ID)) {
+        continue;
+      }
+      int id;
+      try {
+        id = Integer.parseInt(reader.string(space + 1, reader.length()));
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid munin field id: " + reader.line());
+      }
+      entries.add(new Entry(id, graph, reader.string(0, nameEnd)));
+    }
+
+    Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+    Arrays.sort(sorted);
+    int[] ids = new int[sorted.length];
+    String[] graphs = new String[sorted.length];
+    String[] fields = new String[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      ids[i] = sorted[i].id;
+      graphs[i] = sorted[i].graph;
+      fields[i] = sorted[i].field;
+    }
+    return new FieldTable(ids, graphs, fields);
+  }
+
+  int size() {
+    return ids.length;
+  }
+
+  /**
+   * @return The index of a field id, or -1 if the id is not part of the service.
+   */
+  int indexOf(final long id) {
+    if (id < 0 || id > Integer.MAX_VALUE) {
+      return -1;
+    }
+    int index = Arrays.binarySearch(ids, (int) id);
+    return index >= 0 ? index : -1;
+  }
+
+  String field(final int index) {
+    return fields[index];
+  }
+
+  String graph(final int index) {
+    return graphs[index];
+  }
+
+  private static final class Entry implements Comparable<Entry> {
+
+    private final int id;
+    private final String graph;
+    private final String field;
+
+    private Entry(final int id, final String graph, final String field) {
+      this.id = id;
+      this.graph = graph;
+      this.field = field;
+    }
+
+    @Override
+    public int compareTo(final Entry other) {
+      return id < other.id ? -1 : (id == other.id ? 0 : 1);
+    }
+  }
+}
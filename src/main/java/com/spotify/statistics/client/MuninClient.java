@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+/**
+ * Client for the munin node protocol, e.g. to poll a {@code MuninReporter} from an aggregator.
+ * Connections are pooled and negotiate the multigraph and dirtyconfig capabilities when opened.
+ * Fetched values are parsed into primitive arrays, reusing field names between fetches of the
+ * same service. With {@link MuninClientConfig#withBinaryFetch(boolean)}, values are fetched in
+ * binary from nodes supporting it, using field ids learned from the config of each service on
+ * each connection.
+ *
+ * <p>Thread safe, each command uses a pooled connection of its own.
+ */
+public class MuninClient implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(MuninClient.class);
+
+  private static final String MULTIGRAPH = "multigraph ";
+  private static final String VALUE = ".value";
+
+  // value tags of binary fetch frames
+  private static final byte INTEGRAL = 0;
+  private static final byte DOUBLE = 1;
+
+  private final InetSocketAddress address;
+  private final MuninClientConfig config;
+  private final Semaphore permits;
+  private final BlockingQueue<ClientConnection> idle = new LinkedBlockingQueue<ClientConnection>();
+  // the last values of each service, to reuse the names of graphs and fields
+  private final ConcurrentMap<String, MuninValues> lastValues =
+      new ConcurrentHashMap<String, MuninValues>();
+
+  private volatile boolean closed;
+
+  /**
+   * @param address The address of the munin node.
+   */
+  public MuninClient(final InetSocketAddress address) {
+    this(address, new MuninClientConfig());
+  }
+
+  /**
+   * @param address The address of the munin node.
+   * @param config  How to connect to the node.
+   */
+  public MuninClient(final InetSocketAddress address, final MuninClientConfig config) {
+    Validate.notNull(address);
+    Validate.notNull(config);
+    this.address = address;
+    this.config = config;
+    this.permits = new Semaphore(config.getMaxConnections());
+  }
+
+  /**
+   * @return The capabilities supported by both the client and the node, e.g. {@code multigraph}.
+   */
+  public Set<String> getCapabilities() throws IOException {
+    return execute(new Command<Set<String>>() {
+      @Override
+      public Set<String> execute(final ClientConnection connection) {
+        return connection.getCapabilities();
+      }
+    });
+  }
+
+  /**
+   * @return The hostnames of the nodes served.
+   */
+  public List<String> nodes() throws IOException {
+    return execute(new Command<List<String>>() {
+      @Override
+      public List<String> execute(final ClientConnection connection) throws IOException {
+        connection.send("nodes");
+        connection.flush();
+        return readLines(connection.reader());
+      }
+    });
+  }
+
+  /**
+   * @return The services of the node. Multigraphs are listed as single services.
+   */
+  public List<String> list() throws IOException {
+    return execute(new Command<List<String>>() {
+      @Override
+      public List<String> execute(final ClientConnection connection) throws IOException {
+        connection.send("list");
+        connection.flush();
+        ResponseReader reader = connection.reader();
+        reader.readLine();
+        if (reader.length() == 0) {
+          return Collections.emptyList();
+        }
+        return Arrays.asList(reader.line().split(" "));
+      }
+    });
+  }
+
+  /**
+   * @param service The service to get the config of.
+   * @return The config lines. With dirtyconfig these include the current values.
+   */
+  public List<String> config(final String service) throws IOException {
+    Validate.notEmpty(service);
+    return execute(new Command<List<String>>() {
+      @Override
+      public List<String> execute(final ClientConnection connection) throws IOException {
+        connection.send("config", service);
+        connection.flush();
+        return readLines(connection.reader());
+      }
+    });
+  }
+
+  /**
+   * @param service The service to fetch.
+   * @return The values of the service, empty if the service is unknown.
+   */
+  public MuninValues fetch(final String service) throws IOException {
+    return fetch(Collections.singletonList(service)).get(0);
+  }
+
+  /**
+   * Fetch several services, sending all fetch commands in a single write on one connection and
+   * reading the responses in order.
+   *
+   * @param services The services to fetch.
+   * @return The values of each service, in the same order.
+   */
+  public List<MuninValues> fetch(final List<String> services) throws IOException {
+    Validate.notNull(services);
+    for (String service : services) {
+      Validate.notEmpty(service);
+    }
+    return execute(new Command<List<MuninValues>>() {
+      @Override
+      public List<MuninValues> execute(final ClientConnection connection) throws IOException {
+        if (connection.isBinaryFetch()) {
+          return fetchBinary(services, connection);
+        }
+        for (String service : services) {
+          connection.send("fetch", service);
+        }
+        connection.flush();
+
+        List<MuninValues> fetched = new ArrayList<MuninValues>(services.size());
+        for (String service : services) {
+          fetched.add(readValues(service, connection.reader()));
+        }
+        return fetched;
+      }
+    });
+  }
+
+  /**
+   * Close all connections. Connections in use are closed once their command completes.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    closeIdle();
+  }
+
+  private MuninValues readValues(final String service, final ResponseReader reader)
+      throws IOException {
+    MuninValues previous = lastValues.get(service);
+    MuninValues values = new MuninValues(service, previous != null ? previous.size() : 0);
+    String graph = service;
+
+    while (true) {
+      reader.readLine();
+      if (reader.isEnd()) {
+        break;
+      } else if (reader.isComment()) {
+        continue;
+      }
+
+      String cached;
+      if (reader.regionMatches(0, MULTIGRAPH)) {
+        cached = previous != null ? previous.graphOrNull(values.size()) : null;
+        int from = MULTIGRAPH.length();
+        graph = reader.regionEquals(from, reader.length(), cached)
+            ? cached : reader.string(from, reader.length());
+        continue;
+      }
+
+      int space = reader.indexOf(' ', 0);
+      int nameEnd = space - VALUE.length();
+      if (space < 0 || !reader.regionMatches(nameEnd, VALUE)) {
+        // not a value line
+        continue;
+      }
+      cached = previous != null ? previous.fieldOrNull(values.size()) : null;
+      String field = reader.regionEquals(0, nameEnd, cached) ? cached : reader.string(0, nameEnd);
+      if (reader.isLong(space + 1, reader.length())) {
+        values.addLong(graph, field, reader.parseLong(space + 1, reader.length()));
+      } else {
+        values.add(graph, field, reader.parseDouble(space + 1, reader.length()));
+      }
+    }
+
+    lastValues.put(service, values);
+    return values;
+  }
+
+  /**
+   * Fetch in binary, first getting the config of services whose field ids are not known yet. All
+   * commands go out in a single write.
+   */
+  private List<MuninValues> fetchBinary(final List<String> services,
+                                        final ClientConnection connection) throws IOException {
+    List<String> unknown = new ArrayList<String>();
+    for (String service : services) {
+      if (connection.fieldTable(service) == null && !unknown.contains(service)) {
+        unknown.add(service);
+        connection.send("config", service);
+      }
+    }
+    for (String service : services) {
+      connection.send("fetch", service);
+    }
+    connection.flush();
+
+    ResponseReader reader = connection.reader();
+    for (String service : unknown) {
+      connection.putFieldTable(service, FieldTable.read(service, reader));
+    }
+    List<MuninValues> fetched = new ArrayList<MuninValues>(services.size());
+    for (String service : services) {
+      fetched.add(readBinaryValues(service, connection));
+    }
+    return fetched;
+  }
+
+  private MuninValues readBinaryValues(final String service, final ClientConnection connection)
+      throws IOException {
+    ResponseReader reader = connection.reader();
+    FieldTable table = connection.fieldTable(service);
+    MuninValues values = new MuninValues(service, table != null ? table.size() : 0);
+    boolean stale = false;
+
+    reader.readFrame();
+    while (reader.hasRemaining()) {
+      long id = reader.readVarint();
+      byte tag = reader.readByte();
+      int index = table != null ? table.indexOf(id) : -1;
+      if (index < 0) {
+        stale = true;
+      }
+      if (tag == INTEGRAL) {
+        long zigzag = reader.readVarint();
+        if (index >= 0) {
+          values.addLong(table.graph(index), table.field(index), (zigzag >>> 1) ^ -(zigzag & 1));
+        }
+      } else if (tag == DOUBLE) {
+        double value = reader.readRawDouble();
+        if (index >= 0) {
+          values.add(table.graph(index), table.field(index), value);
+        }
+      } else {
+        throw new IOException("Unknown value tag in munin frame: " + tag);
+      }
+    }
+
+    if (stale) {
+      // fields were added since the config was read, get it again on the next fetch
+      connection.removeFieldTable(service);
+    }
+    return values;
+  }
+
+  private static List<String> readLines(final ResponseReader reader) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    while (true) {
+      reader.readLine();
+      if (reader.isEnd()) {
+        return lines;
+      }
+      lines.add(reader.line());
+    }
+  }
+
+  private <T> T execute(final Command<T> command) throws IOException {
+    if (closed) {
+      throw new IOException("Munin client closed");
+    }
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a munin connection");
+    }
+
+    try {
+      ClientConnection connection = idle.poll();
+      if (connection != null) {
+        boolean released = false;
+        try {
+          T result = command.execute(connection);
+          release(connection);
+          released = true;
+          return result;
+        } catch (IOException e) {
+          // the node may have closed the idle connection, retry once on a new one
+          LOG.debug("Pooled munin connection failed, reconnecting", e);
+        } finally {
+          if (!released) {
+            connection.close();
+          }
+        }
+      }
+
+      connection = new ClientConnection(address, config);
+      boolean released = false;
+      try {
+        T result = command.execute(connection);
+        release(connection);
+        released = true;
+        return result;
+      } finally {
+        if (!released) {
+          connection.close();
+        }
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  private void release(final ClientConnection connection) {
+    idle.offer(connection);
+    if (closed) {
+      closeIdle();
+    }
+  }
+
+  private void closeIdle() {
+    ClientConnection connection;
+    while ((connection = idle.poll()) != null) {
+      connection.close();
+    }
+  }
+
+  private interface Command<T> {
+    T execute(ClientConnection connection) throws IOException;
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Configuration for how a {@link MuninClient} connects to a munin node.
+ *
+ */
+public class MuninClientConfig {
+
+  private static final int DEFAULT_MAX_CONNECTIONS = 4;
+  private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 1000;
+  private static final int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+  private static final int DEFAULT_MAX_RESPONSE_BYTES = 16 * 1024 * 1024;
+
+  private int maxConnections;
+  private int connectTimeoutMillis;
+  private int readTimeoutMillis;
+  private int maxResponseBytes;
+  private boolean binaryFetch;
+
+  public MuninClientConfig() {
+    this.maxConnections = DEFAULT_MAX_CONNECTIONS;
+    this.connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    this.readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    this.maxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+  }
+
+  /**
+   * Get the maximum number of connections opened to the node. Defaults to 4
+   * @return The maximum number of connections
+   */
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Set the maximum number of connections opened to the node. Callers wait for a connection when
+   * all are in use. Idle connections are kept open for reuse.
+   * @param maxConnections The maximum number of connections, must be positive
+   * @return This config
+   */
+  public MuninClientConfig withMaxConnections(final int maxConnections) {
+    Validate.isTrue(maxConnections > 0, "Max connections must be positive");
+    this.maxConnections = maxConnections;
+    return this;
+  }
+
+  /**
+   * Get the timeout for connecting to the node. Defaults to 1 second
+   * @return The timeout in milliseconds
+   */
+  public int getConnectTimeoutMillis() {
+    return connectTimeoutMillis;
+  }
+
+  /**
+   * Set the timeout for connecting to the node.
+   * @param timeout The timeout, must be positive
+   * @param unit The unit of the timeout
+   * @return This config
+   */
+  public MuninClientConfig withConnectTimeout(final long timeout, final TimeUnit unit) {
+    this.connectTimeoutMillis = toMillis(timeout, unit);
+    return this;
+  }
+
+  /**
+   * Get the timeout for reading a response. Defaults to 10 seconds
+   * @return The timeout in milliseconds
+   */
+  public int getReadTimeoutMillis() {
+    return readTimeoutMillis;
+  }
+
+  /**
+   * Set the timeout for reading from the node, after which the command fails.
+   * @param timeout The timeout, must be positive
+   * @param unit The unit of the timeout
+   * @return This config
+   */
+  public MuninClientConfig withReadTimeout(final long timeout, final TimeUnit unit) {
+    this.readTimeoutMillis = toMillis(timeout, unit);
+    return this;
+  }
+
+  /**
+   * Get the maximum size of a response line or binary fetch frame. Defaults to 16 MB
+   * @return The maximum size in bytes
+   */
+  public int getMaxResponseBytes() {
+    return maxResponseBytes;
+  }
+
+  /**
+   * Set the maximum size of a response line or binary fetch frame. A node sending more fails the
+   * command, rather than making the client buffer it all.
+   * @param maxResponseBytes The maximum size in bytes, must be positive
+   * @return This config
+   */
+  public MuninClientConfig withMaxResponseBytes(final int maxResponseBytes) {
+    Validate.isTrue(maxResponseBytes > 0, "Max response bytes must be positive");
+    this.maxResponseBytes = maxResponseBytes;
+    return this;
+  }
+
+  /**
+   * Get whether values are fetched in binary. Defaults to false
+   * @return True if binary fetch is used with nodes supporting it
+   */
+  public boolean isBinaryFetch() {
+    return binaryFetch;
+  }
+
+  /**
+   * Set whether to fetch values in binary from nodes announcing the binaryfetch capability. Field
+   * ids are then learned from the config of each service and fetch responses carry raw values
+   * rather than text. Nodes without the capability are fetched from as usual.
+   * @param binaryFetch True to use binary fetch
+   * @return This config
+   */
+  public MuninClientConfig withBinaryFetch(final boolean binaryFetch) {
+    this.binaryFetch = binaryFetch;
+    return this;
+  }
+
+  private static int toMillis(final long timeout, final TimeUnit unit) {
+    Validate.notNull(unit);
+    long millis = unit.toMillis(timeout);
+    Validate.isTrue(millis > 0 && millis <= Integer.MAX_VALUE, "Timeout out of range");
+    return (int) millis;
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics.client;
+
+import java.util.Arrays;
+
+/**
+ * The values of a fetch response, as parallel arrays indexed by field. For multigraph services,
+ * each field also has the graph it belongs to. Integral values are also kept exactly, as doubles
+ * only hold integers up to 2^53.
+ */
+public class MuninValues {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final String service;
+  private String[] graphs;
+  private String[] fields;
+  private double[] values;
+  private long[] longs;
+  private boolean[] integral;
+  private int size;
+
+  MuninValues(final String service, final int capacity) {
+    this.service = service;
+    int initial = Math.max(capacity, INITIAL_CAPACITY);
+    this.graphs = new String[initial];
+    this.fields = new String[initial];
+    this.values = new double[initial];
+    this.longs = new long[initial];
+    this.integral = new boolean[initial];
+  }
+
+  /**
+   * @return The service that was fetched
+   */
+  public String getService() {
+    return service;
+  }
+
+  /**
+   * @return The number of fields
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param i The index of the field
+   * @return The graph of the field, the service itself unless it is a multigraph
+   */
+  public String getGraph(final int i) {
+    checkIndex(i);
+    return graphs[i];
+  }
+
+  /**
+   * @param i The index of the field
+   * @return The munin name of the field
+   */
+  public String getField(final int i) {
+    checkIndex(i);
+    return fields[i];
+  }
+
+  /**
+   * @param i The index of the field
+   * @return The value of the field, NaN if the node reported it as unknown
+   */
+  public double getValue(final int i) {
+    checkIndex(i);
+    return values[i];
+  }
+
+  /**
+   * @param i The index of the field
+   * @return True if the node reported an integral value, available exactly from
+   *         {@link #getLong(int)}
+   */
+  public boolean isIntegral(final int i) {
+    checkIndex(i);
+    return integral[i];
+  }
+
+  /**
+   * @param i The index of the field
+   * @return The value of an integral field, other values rounded towards zero
+   */
+  public long getLong(final int i) {
+    checkIndex(i);
+    return integral[i] ? longs[i] : (long) values[i];
+  }
+
+  /**
+   * Look up the value of a field by name, for the first graph having a field with that name.
+   * @param field The munin name of the field
+   * @return The value, or NaN if there is no such field
+   */
+  public double getValue(final String field) {
+    for (int i = 0; i < size; i++) {
+      if (fields[i].equals(field)) {
+        return values[i];
+      }
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * Copy the values into an array, e.g. to keep them after the next fetch.
+   * @return The values, indexed by field
+   */
+  public double[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+
+  void add(final String graph, final String field, final double value) {
+    grow();
+    graphs[size] = graph;
+    fields[size] = field;
+    values[size] = value;
+    integral[size] = false;
+    size++;
+  }
+
+  void addLong(final String graph, final String field, final long value) {
+    grow();
+    graphs[size] = graph;
+    fields[size] = field;
+    values[size] = value;
+    longs[size] = value;
+    integral[size] = true;
+    size++;
+  }
+
+  private void grow() {
+    if (size == values.length) {
+      graphs = Arrays.copyOf(graphs, size * 2);
+      fields = Arrays.copyOf(fields, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+      longs = Arrays.copyOf(longs, size * 2);
+      integral = Arrays.copyOf(integral, size * 2);
+    }
+  }
+
+  /**
+   * @return The graph at an index, or null if there is none, to reuse names between fetches.
+   */
+  String graphOrNull(final int i) {
+    return i < size ? graphs[i] : null;
+  }
+
+  String fieldOrNull(final int i) {
+    return i < size ? fields[i] : null;
+  }
+
+  private void checkIndex(final int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("Field " + i + " of " + size);
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("MuninValues{service='").append(service).append('\'');
+    for (int i = 0; i < size; i++) {
+      sb.append(", ").append(graphs[i]).append('.').append(fields[i]).append('=');
+      if (integral[i]) {
+        sb.append(longs[i]);
+      } else {
+        sb.append(values[i]);
+      }
+    }
+    return sb.append('}').toString();
+  }
+}
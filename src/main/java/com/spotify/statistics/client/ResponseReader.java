@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads munin responses line by line straight from the received bytes. The current line is only
+ * exposed as a region of the buffer, so that values can be parsed without creating strings.
+ * Binary fetch frames are read the same way, with the frame taking the place of the line.
+ */
+final class ResponseReader {
+
+  static final Charset CHARSET = Charset.forName("UTF-8");
+
+  // larger values are not exactly represented by a double
+  private static final long MAX_EXACT = 1L << 53;
+  // the digits of Long.MAX_VALUE, longer integers do not fit and shorter ones always do
+  private static final int MAX_LONG_DIGITS = 19;
+  private static final double[] POWERS_OF_TEN = new double[19];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private final InputStream in;
+  // the largest line or frame accepted
+  private final int maxLength;
+  private byte[] buffer = new byte[8192];
+  private int limit;
+  private int lineStart;
+  private int lineEnd;
+  // where the next line starts
+  private int next;
+  // the read position within a binary frame
+  private int position;
+
+  ResponseReader(final InputStream in, final int maxLength) {
+    this.in = in;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Read the next line, without the line terminator.
+   *
+   * @throws EOFException If the connection was closed.
+   */
+  void readLine() throws IOException {
+    int scanned = next;
+    while (true) {
+      for (int i = scanned; i < limit; i++) {
+        if (buffer[i] == '\n') {
+          lineStart = next;
+          lineEnd = i > lineStart && buffer[i - 1] == '\r' ? i - 1 : i;
+          next = i + 1;
+          return;
+        }
+      }
+      if (limit - next > maxLength) {
+        throw new IOException("Munin response line longer than " + maxLength + " bytes");
+      }
+      scanned = limit;
+      scanned -= fill();
+    }
+  }
+
+  /**
+   * Read the next binary fetch frame, a 4 byte big-endian length followed by that many bytes. The
+   * records of the frame are then read with {@link #readVarint()}, {@link #readByte()} and
+   * {@link #readRawDouble()}.
+   *
+   * @throws EOFException If the connection was closed.
+   * @throws IOException If the frame is longer than the maximum length.
+   */
+  void readFrame() throws IOException {
+    require(4);
+    int length = ((buffer[next] & 0xff) << 24) | ((buffer[next + 1] & 0xff) << 16)
+                 | ((buffer[next + 2] & 0xff) << 8) | (buffer[next + 3] & 0xff);
+    if (length < 0 || length > maxLength) {
+      throw new IOException("Invalid munin frame length: " + length);
+    }
+    require(4 + length);
+    lineStart = next + 4;
+    lineEnd = lineStart + length;
+    next = lineEnd;
+    position = lineStart;
+  }
+
+  /**
+   * @return True if the frame has more bytes to read.
+   */
+  boolean hasRemaining() {
+    return position < lineEnd;
+  }
+
+  byte readByte() throws IOException {
+    if (position >= lineEnd) {
+      throw new IOException("Truncated munin frame");
+    }
+    return buffer[position++];
+  }
+
+  /**
+   * @return An unsigned LEB128 varint.
+   */
+  long readVarint() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = readByte();
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in munin frame");
+  }
+
+  /**
+   * @return A double from 8 big-endian bytes of its IEEE-754 representation.
+   */
+  double readRawDouble() throws IOException {
+    long bits = 0;
+    for (int i = 0; i < 8; i++) {
+      bits = (bits << 8) | (readByte() & 0xff);
+    }
+    return Double.longBitsToDouble(bits);
+  }
+
+  /**
+   * @return True if the line ends a multi-line response.
+   */
+  boolean isEnd() {
+    return lineEnd - lineStart == 1 && buffer[lineStart] == '.';
+  }
+
+  boolean isComment() {
+    return lineEnd > lineStart && buffer[lineStart] == '#';
+  }
+
+  int length() {
+    return lineEnd - lineStart;
+  }
+
+  /**
+   * @return The position of a byte in the line, or -1 if it is not found.
+   */
+  int indexOf(final char c, final int from) {
+    for (int i = lineStart + from; i < lineEnd; i++) {
+      if (buffer[i] == c) {
+        return i - lineStart;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return True if a region of the line holds the given ASCII string.
+   */
+  boolean regionMatches(final int from, final String s) {
+    if (from < 0 || from + s.length() > length()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      if (buffer[lineStart + from + i] != s.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return True if a region of the line is exactly the given ASCII string.
+   */
+  boolean regionEquals(final int from, final int to, final String s) {
+    return s != null && to - from == s.length() && regionMatches(from, s);
+  }
+
+  String string(final int from, final int to) {
+    return new String(buffer, lineStart + from, to - from, CHARSET);
+  }
+
+  String line() {
+    return string(0, length());
+  }
+
+  /**
+   * @return True if a region of the line is an integer within the range of a long, to be read
+   *         exactly with {@link #parseLong(int, int)} rather than as a double.
+   */
+  boolean isLong(final int from, final int to) {
+    int i = lineStart + from;
+    int end = lineStart + to;
+    if (i < end && buffer[i] == '-') {
+      i++;
+    }
+    int digits = end - i;
+    if (digits == 0 || digits > MAX_LONG_DIGITS) {
+      return false;
+    }
+    for (; i < end; i++) {
+      if (buffer[i] < '0' || buffer[i] > '9') {
+        return false;
+      }
+    }
+    if (digits == MAX_LONG_DIGITS) {
+      // may be out of range
+      try {
+        Long.parseLong(string(from, to));
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parse a region of the line checked by {@link #isLong(int, int)}.
+   */
+  long parseLong(final int from, final int to) {
+    int i = lineStart + from;
+    int end = lineStart + to;
+    boolean negative = buffer[i] == '-';
+    if (negative) {
+      i++;
+    }
+    if (end - i == MAX_LONG_DIGITS) {
+      return Long.parseLong(string(from, to));
+    }
+    long value = 0;
+    for (; i < end; i++) {
+      value = value * 10 + (buffer[i] - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Parse a region of the line as a munin value. Plain decimals are parsed in place, anything else
+   * falls back to {@link Double#parseDouble(String)}.
+   *
+   * @return The value, NaN for munin's unknown value {@code U}.
+   */
+  double parseDouble(final int from, final int to) {
+    int i = lineStart + from;
+    int end = lineStart + to;
+    if (end - i == 1 && buffer[i] == 'U') {
+      return Double.NaN;
+    }
+
+    boolean negative = i < end && buffer[i] == '-';
+    if (negative) {
+      i++;
+    }
+    long mantissa = 0;
+    int fractionDigits = -1;
+    int digits = 0;
+    for (; i < end; i++) {
+      byte b = buffer[i];
+      if (b >= '0' && b <= '9') {
+        mantissa = mantissa * 10 + (b - '0');
+        digits++;
+        if (fractionDigits >= 0) {
+          fractionDigits++;
+        }
+      } else if (b == '.' && fractionDigits < 0) {
+        fractionDigits = 0;
+      } else {
+        digits = -1;
+        break;
+      }
+      if (mantissa > MAX_EXACT || fractionDigits >= POWERS_OF_TEN.length) {
+        digits = -1;
+        break;
+      }
+    }
+
+    if (digits <= 0) {
+      try {
+        return Double.parseDouble(string(from, to));
+      } catch (NumberFormatException e) {
+        return Double.NaN;
+      }
+    }
+    // both are exact, so the division is correctly rounded
+    double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+    return negative ? -value : value;
+  }
+
+  /**
+   * Read until at least a number of bytes after the current line are buffered.
+   */
+  private void require(final int bytes) throws IOException {
+    while (limit - next < bytes) {
+      fill();
+    }
+  }
+
+  /**
+   * Read more data, making room in the buffer first.
+   *
+   * @return The number of bytes the buffer was shifted by.
+   */
+  private int fill() throws IOException {
+    int shift = next;
+    if (shift > 0) {
+      System.arraycopy(buffer, next, buffer, 0, limit - next);
+      limit -= next;
+      next = 0;
+    }
+    if (limit == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+    int read = in.read(buffer, limit, buffer.length - limit);
+    if (read < 0) {
+      throw new EOFException("Connection closed by munin node");
+    }
+    limit += read;
+    return shift;
+  }
+}
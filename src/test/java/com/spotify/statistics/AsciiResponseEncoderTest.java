@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import org.junit.Test;
+
+public class AsciiResponseEncoderTest {
+
+  // small buffers to make output span several of them
+  private final BufferPool pool = new BufferPool(4, 2);
+  private final AsciiResponseEncoder sut = new AsciiResponseEncoder(pool);
+  private final CollectingChannel channel = new CollectingChannel(Integer.MAX_VALUE);
+
+  @Test
+  public void testLines() throws Exception {
+    sut.append("foo.value ").append(123).endLine();
+    sut.append("bar.value ").append(-45L).endLine();
+    sut.append("max.value ").append(Long.MIN_VALUE).endLine();
+    sut.append('.').endLine();
+
+    assertEquals(61, sut.pendingBytes());
+    assertTrue(sut.writeTo(channel));
+    assertTrue(sut.isEmpty());
+    assertEquals("foo.value 123\nbar.value -45\nmax.value -9223372036854775808\n.\n",
+                 channel.toString());
+  }
+
+  @Test
+  public void testNumbers() throws Exception {
+    sut.appendNumber(1.5).append(' ').appendNumber(Double.NaN).append(' ').appendNumber(7)
+       .endLine();
+
+    assertTrue(sut.writeTo(channel));
+    assertEquals("1.5 U 7\n", channel.toString());
+  }
+
+  @Test
+  public void testNonAscii() throws Exception {
+    String label = "räksmörgås € 😀";
+    sut.append(label).endLine();
+
+    assertTrue(sut.writeTo(channel));
+    assertEquals(label + "\n", channel.toString());
+  }
+
+  @Test
+  public void testPartialWrites() throws Exception {
+    CollectingChannel slowChannel = new CollectingChannel(3);
+    sut.append("list of things").endLine();
+
+    assertFalse(sut.writeTo(slowChannel));
+    assertEquals(12, sut.pendingBytes());
+    while (!sut.writeTo(slowChannel)) {
+      slowChannel.allow(3);
+    }
+    assertEquals("list of things\n", slowChannel.toString());
+  }
+
+  /**
+   * Channel accepting a limited number of bytes, like a socket with a full send buffer.
+   */
+  private static class CollectingChannel implements GatheringByteChannel {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private long allowed;
+
+    private CollectingChannel(final long allowed) {
+      this.allowed = allowed;
+    }
+
+    private void allow(final long more) {
+      allowed += more;
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) {
+      long written = 0;
+      for (int i = offset; i < offset + length; i++) {
+        written += write(srcs[i]);
+      }
+      return written;
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+      int written = 0;
+      while (src.hasRemaining() && allowed > 0) {
+        bytes.write(src.get());
+        allowed--;
+        written++;
+      }
+      return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public String toString() {
+      return new String(bytes.toByteArray(), MuninSession.CHARSET);
+    }
+  }
+}
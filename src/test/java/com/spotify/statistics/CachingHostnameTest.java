@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CachingHostnameTest {
+
+  private final Hostname delegate = mock(Hostname.class);
+
+  @Test
+  public void testServesCachedValue() {
+    when(delegate.getHostname()).thenReturn("host1");
+    CachingHostname sut = new CachingHostname(delegate);
+
+    assertEquals("host1", sut.getHostname());
+    assertEquals("host1", sut.getHostname());
+    verify(delegate, times(1)).getHostname();
+    sut.stop();
+  }
+
+  @Test
+  public void testRefreshes() throws Exception {
+    when(delegate.getHostname()).thenReturn("host1").thenReturn("host2");
+    CachingHostname sut = new CachingHostname(delegate, 10, TimeUnit.MILLISECONDS);
+
+    assertEquals("host1", sut.getHostname());
+    for (int i = 0; i < 100 && !sut.getHostname().equals("host2"); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals("host2", sut.getHostname());
+    sut.stop();
+  }
+
+  @Test
+  public void testKeepsLastGoodValue() throws Exception {
+    when(delegate.getHostname())
+        .thenReturn("host1")
+        .thenThrow(new RuntimeException("DNS down"))
+        .thenReturn("");
+    CachingHostname sut = new CachingHostname(delegate, 10, TimeUnit.MILLISECONDS);
+
+    Thread.sleep(100);
+    assertEquals("host1", sut.getHostname());
+    sut.stop();
+  }
+
+  @Test
+  public void testFallbackUntilResolved() {
+    when(delegate.getHostname()).thenThrow(new RuntimeException("DNS down"));
+    CachingHostname sut = new CachingHostname(delegate);
+
+    assertEquals("localhost", sut.getHostname());
+    sut.stop();
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+public class ClientRateLimiterTest {
+
+  private final MuninServerStats stats = new MuninServerStats();
+
+  @Test
+  public void testNotLimitedWithoutRates() throws Exception {
+    ClientRateLimiter sut = new ClientRateLimiter(0, 1, 0, 1, stats);
+    assertNull(sut.limits(address(1)));
+  }
+
+  @Test
+  public void testSharesBucketsPerAddress() throws Exception {
+    ClientRateLimiter sut = new ClientRateLimiter(0, 1, 0.001, 2, stats);
+    ClientRateLimiter.Limits first = sut.limits(address(1));
+    ClientRateLimiter.Limits second = sut.limits(address(1));
+    ClientRateLimiter.Limits other = sut.limits(address(2));
+
+    assertTrue(first.tryCommand());
+    assertTrue(second.tryCommand());
+    assertFalse(first.tryCommand());
+    assertFalse(second.tryCommand());
+    assertTrue(other.tryCommand());
+    assertEquals(2, stats.getThrottledCommands());
+  }
+
+  @Test
+  public void testBoundsTrackedClients() throws Exception {
+    ClientRateLimiter sut = new ClientRateLimiter(0.001, 1, 0, 1, stats);
+    for (int i = 0; i < ClientRateLimiter.MAX_TRACKED_CLIENTS + 100; i++) {
+      assertTrue(sut.limits(address(i)).tryConnect());
+    }
+    assertEquals(ClientRateLimiter.MAX_TRACKED_CLIENTS, sut.trackedClients());
+  }
+
+  @Test
+  public void testOpenConnectionsShareBucketsAfterEviction() throws Exception {
+    ClientRateLimiter sut = new ClientRateLimiter(1000, 1000, 0.001, 1, stats);
+    ClientRateLimiter.Limits open = sut.limits(address(0));
+    assertTrue(open.tryConnect());
+
+    // forget the address while a connection from it is still open
+    for (int i = 1; i <= ClientRateLimiter.MAX_TRACKED_CLIENTS; i++) {
+      sut.limits(address(i)).tryConnect();
+    }
+    ClientRateLimiter.Limits reconnected = sut.limits(address(0));
+    assertTrue(reconnected.tryConnect());
+    assertTrue(reconnected.tryCommand());
+    // the open connection uses the same buckets, so gets no extra allowance
+    assertFalse(open.tryCommand());
+  }
+
+  private static InetAddress address(final int client) throws Exception {
+    return InetAddress.getByAddress(
+        new byte[] {10, (byte) (client >> 16), (byte) (client >> 8), (byte) client});
+  }
+}
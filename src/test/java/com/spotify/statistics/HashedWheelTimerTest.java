@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+  // a small wheel so that timeouts span several rounds
+  private final HashedWheelTimer timer =
+      new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 8);
+
+  @After
+  public void tearDown() {
+    timer.stop();
+  }
+
+  @Test
+  public void testExpires() throws Exception {
+    final CountDownLatch expired = new CountDownLatch(1);
+    long start = System.nanoTime();
+    timer.newTimeout(countDown(expired), 200, TimeUnit.MILLISECONDS);
+
+    assertTrue(expired.await(5, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+  }
+
+  @Test
+  public void testManyTimeouts() throws Exception {
+    final CountDownLatch expired = new CountDownLatch(1000);
+    for (int i = 0; i < 1000; i++) {
+      timer.newTimeout(countDown(expired), i % 300, TimeUnit.MILLISECONDS);
+    }
+    assertTrue(expired.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    final AtomicInteger runs = new AtomicInteger();
+    final CountDownLatch expired = new CountDownLatch(1);
+    HashedWheelTimer.Timeout cancelled = timer.newTimeout(new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+      }
+    }, 50, TimeUnit.MILLISECONDS);
+    assertTrue(cancelled.cancel());
+    assertFalse(cancelled.cancel());
+
+    HashedWheelTimer.Timeout later = timer.newTimeout(countDown(expired), 100,
+                                                      TimeUnit.MILLISECONDS);
+    assertTrue(expired.await(5, TimeUnit.SECONDS));
+    assertFalse(later.cancel());
+    assertEquals(0, runs.get());
+  }
+
+  private static Runnable countDown(final CountDownLatch latch) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    };
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class LineDecoderTest {
+
+  private final LineDecoder sut = new LineDecoder();
+
+  @Test
+  public void testCompleteLines() throws Exception {
+    ByteBuffer in = ascii("list\nfetch foo\r\n");
+
+    assertEquals("list", sut.decode(in));
+    assertEquals("fetch foo", sut.decode(in));
+    assertNull(sut.decode(in));
+  }
+
+  @Test
+  public void testPartialLine() throws Exception {
+    assertNull(sut.decode(ascii("fet")));
+    assertEquals("fetch foo", sut.decode(ascii("ch foo\n")));
+  }
+
+  @Test(expected = IOException.class)
+  public void testLineTooLong() throws Exception {
+    sut.decode(ByteBuffer.allocate(LineDecoder.MAX_LINE_LENGTH + 1));
+  }
+
+  private static ByteBuffer ascii(final String s) {
+    return ByteBuffer.wrap(s.getBytes(MuninSession.CHARSET));
+  }
+}
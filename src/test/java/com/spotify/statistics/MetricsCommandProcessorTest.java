@@ -17,13 +17,23 @@ package com.spotify.statistics;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -35,8 +45,13 @@ import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
 import com.spotify.statistics.Property.GaugeProperty;
+import com.spotify.statistics.Property.HistogramProperty;
+import com.spotify.statistics.Property.TimerProperty;
 
 public class MetricsCommandProcessorTest {
 
@@ -454,4 +469,460 @@ public class MetricsCommandProcessorTest {
     MetricsCommandProcessor sut = new MetricsCommandProcessor(metricsRegistry, new StaticMuninGraphProvider(new ArrayList<MuninGraph>()), hostname, rateUnit, durationUnit);
     sut.processCommand("dummy", NO_ARGS);
   }
+
+  @Test
+  public void testCap() throws Exception {
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(metricsRegistry, new StaticMuninGraphProvider(new ArrayList<MuninGraph>()), hostname, rateUnit, durationUnit);
+    Set<Capability> capabilities = EnumSet.noneOf(Capability.class);
+    assertEquals(asList("cap multigraph dirtyconfig binaryfetch"),
+                 process(sut, "cap", asList("multigraph", "unknown"), capabilities));
+    assertEquals(EnumSet.of(Capability.MULTIGRAPH), capabilities);
+  }
+
+  @Test
+  public void testListMultigraph() throws Exception {
+    MetricsCommandProcessor sut = multigraphProcessor();
+
+    assertEquals(asList("all other"), process(sut, "list", NO_ARGS, EnumSet.of(Capability.MULTIGRAPH)));
+    assertEquals(asList("graph1 graph2 other"), sut.processCommand("list", NO_ARGS));
+  }
+
+  @Test
+  public void testConfigMultigraph() throws Exception {
+    MetricsCommandProcessor sut = multigraphProcessor();
+
+    assertEquals(asList(
+        "multigraph graph1",
+        "graph_title t1",
+        "graph_category c",
+        "graph_vlabel ",
+        "gr_c1__count.label gr.c1",
+        "gr_c1__count.type DERIVE",
+        "gr_c1__count.min 0",
+        "multigraph graph2",
+        "graph_title t2",
+        "graph_category c",
+        "graph_vlabel ",
+        "gr_c2__count.label gr.c2",
+        "gr_c2__count.type DERIVE",
+        "gr_c2__count.min 0",
+        "."
+    ), process(sut, "config", asList("all"), EnumSet.of(Capability.MULTIGRAPH)));
+  }
+
+  @Test
+  public void testFetchMultigraph() throws Exception {
+    MetricsCommandProcessor sut = multigraphProcessor();
+
+    assertEquals(asList(
+        "multigraph graph1",
+        "gr_c1__count.value 1",
+        "multigraph graph2",
+        "gr_c2__count.value 2",
+        "."
+    ), process(sut, "fetch", asList("all"), EnumSet.of(Capability.MULTIGRAPH)));
+
+    // without multigraph support, the contained graphs are served one by one
+    assertEquals(asList("# unknown service", "."), sut.processCommand("fetch", asList("all")));
+    assertEquals(asList("gr_c2__count.value 2", "."), sut.processCommand("fetch", asList("graph2")));
+  }
+
+  @Test
+  public void testDirtyConfig() throws Exception {
+    metricsRegistry.counter("gr.c1").inc(3);
+    MuninGraph graph = new MuninGraph.Builder("graph1", "c", "t1").dataSource("gr.c1").build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(graph)),
+        hostname, rateUnit, durationUnit);
+
+    assertEquals(asList(
+        "graph_title t1",
+        "graph_category c",
+        "graph_vlabel ",
+        "gr_c1__count.label gr.c1",
+        "gr_c1__count.type DERIVE",
+        "gr_c1__count.min 0",
+        "gr_c1__count.value 3",
+        "."
+    ), process(sut, "config", asList("graph1"), EnumSet.of(Capability.DIRTYCONFIG)));
+  }
+
+  @Test
+  public void testFetchPlansFollowRegistry() throws Exception {
+    MetricRegistry registry = spy(new MetricRegistry());
+    registry.counter("gr.c1").inc();
+    MuninGraph graph = new MuninGraph.Builder("graph1", "c", "t1")
+        .dataSource("gr.c1").dataSource("gr.c2").build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        registry, new StaticMuninGraphProvider(asList(graph)), hostname, rateUnit, durationUnit);
+
+    assertEquals(asList("gr_c1__count.value 1", "."), sut.processCommand("fetch", asList("graph1")));
+    assertEquals(asList("gr_c1__count.value 1", "."), sut.processCommand("fetch", asList("graph1")));
+    // compiled once, not looked up again
+    verify(registry, times(1)).getMetrics();
+
+    registry.counter("gr.c2").inc(2);
+    assertEquals(asList("gr_c1__count.value 1", "gr_c2__count.value 2", "."),
+                 sut.processCommand("fetch", asList("graph1")));
+
+    registry.remove("gr.c1");
+    assertEquals(asList("gr_c2__count.value 2", "."), sut.processCommand("fetch", asList("graph1")));
+  }
+
+  @Test
+  public void testCloseStopsFollowingRegistry() throws Exception {
+    MetricRegistry registry = spy(new MetricRegistry());
+    registry.counter("gr.c1").inc();
+    MuninGraph graph = new MuninGraph.Builder("graph1", "c", "t1")
+        .dataSource("gr.c1").dataSource("gr.c2").build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        registry, new StaticMuninGraphProvider(asList(graph)), hostname, rateUnit, durationUnit);
+    verify(registry, never()).addListener(any(MetricRegistryListener.class));
+
+    sut.processCommand("fetch", asList("graph1"));
+    verify(registry, times(1)).addListener(any(MetricRegistryListener.class));
+
+    sut.close();
+    verify(registry, times(1)).removeListener(any(MetricRegistryListener.class));
+    // still served, from plans compiled on every use
+    registry.counter("gr.c2").inc(2);
+    assertEquals(asList("gr_c1__count.value 1", "gr_c2__count.value 2", "."),
+                 sut.processCommand("fetch", asList("graph1")));
+    verify(registry, times(1)).addListener(any(MetricRegistryListener.class));
+  }
+
+  @Test
+  public void testReleasesIdsOfRemovedFields() throws Exception {
+    metricsRegistry.counter("gr.c1");
+    metricsRegistry.counter("gr.c2");
+    MuninGraph graph = new MuninGraph.Builder("graph1", "c", "t1")
+        .dataSource("gr.c1").dataSource("gr.c2").build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(graph)),
+        hostname, rateUnit, durationUnit);
+    EnumSet<Capability> binary = EnumSet.of(Capability.BINARY);
+
+    List<String> config = process(sut, "config", asList("graph1"), binary);
+    assertTrue(config.contains("gr_c1__count.id 0"));
+    assertTrue(config.contains("gr_c2__count.id 1"));
+
+    metricsRegistry.remove("gr.c2");
+    process(sut, "config", asList("graph1"), binary);
+    metricsRegistry.counter("gr.c2");
+    config = process(sut, "config", asList("graph1"), binary);
+    assertTrue(config.contains("gr_c1__count.id 0"));
+    // ids are never reused
+    assertTrue(config.contains("gr_c2__count.id 2"));
+  }
+
+  @Test
+  public void testOneSnapshotPerFetch() throws Exception {
+    final AtomicInteger snapshots = new AtomicInteger();
+    Timer timer = metricsRegistry.register("gr.t1", new Timer() {
+      @Override
+      public Snapshot getSnapshot() {
+        snapshots.incrementAndGet();
+        return super.getSnapshot();
+      }
+    });
+    Histogram histogram = metricsRegistry.register("gr.h1", new Histogram(new UniformReservoir()) {
+      @Override
+      public Snapshot getSnapshot() {
+        snapshots.incrementAndGet();
+        return super.getSnapshot();
+      }
+    });
+    timer.update(5, TimeUnit.MILLISECONDS);
+    histogram.update(7);
+    MuninGraph graph = new MuninGraph.Builder("graph1", "c", "t1")
+        .dataSource("gr.t1", "median", TimerProperty.MEDIAN)
+        .dataSource("gr.t1", "p95", TimerProperty.PERCENTILE95)
+        .dataSource("gr.t1", "p99", TimerProperty.PERCENTILE99)
+        .dataSource("gr.t1", "max", TimerProperty.MAX)
+        .dataSource("gr.t1", "count", TimerProperty.COUNT)
+        .dataSource("gr.h1", "median", HistogramProperty.MEDIAN)
+        .dataSource("gr.h1", "max", HistogramProperty.MAX)
+        .build();
+    MuninGraph counts = new MuninGraph.Builder("counts", "c", "t2")
+        .dataSource("gr.t1", "count", TimerProperty.COUNT)
+        .dataSource("gr.h1", "count", HistogramProperty.COUNT)
+        .build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(graph, counts)),
+        hostname, rateUnit, durationUnit);
+
+    List<String> values = sut.processCommand("fetch", asList("graph1"));
+    assertEquals(2, snapshots.get());
+    assertEquals("gr_h1__max.value 7", values.get(6));
+
+    sut.processCommand("fetch", asList("counts"));
+    assertEquals(2, snapshots.get());
+  }
+
+  @Test
+  public void testFetchServesSampledFrame() throws Exception {
+    final AtomicInteger reads = new AtomicInteger();
+    metricsRegistry.register("gr.g1", new Gauge<Double>() {
+      @Override
+      public Double getValue() {
+        return reads.incrementAndGet() / 2.0;
+      }
+    });
+    Counter counter = metricsRegistry.counter("gr.c1");
+    counter.inc(3);
+    MuninGraph graph = new MuninGraph.Builder("graph1", "c", "t1")
+        .dataSource("gr.g1")
+        .dataSource("gr.c1")
+        .build();
+    MuninGraph graph2 = new MuninGraph.Builder("graph2", "c", "t2").dataSource("gr.c2").build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(graph, graph2)),
+        hostname, rateUnit, durationUnit);
+
+    sut.sampleFrame();
+    assertEquals(1, reads.get());
+    counter.inc();
+
+    // values are from the sample, without reading the metrics
+    List<String> expected = asList("gr_g1__value_gauge.value 0.5", "gr_c1__count.value 3", ".");
+    assertEquals(expected, sut.processCommand("fetch", asList("graph1")));
+    assertEquals(expected, sut.processCommand("fetch", asList("graph1")));
+    assertEquals(1, reads.get());
+
+    sut.sampleFrame();
+    assertEquals(asList("gr_g1__value_gauge.value 1", "gr_c1__count.value 4", "."),
+                 sut.processCommand("fetch", asList("graph1")));
+
+    // fields added since the last sample are read when fetched
+    metricsRegistry.counter("gr.c2").inc(7);
+    assertEquals(asList("gr_c2__count.value 7", "."), sut.processCommand("fetch", asList("graph2")));
+  }
+
+  @Test
+  public void testSampledFrameSkipsFieldsAddedBetween() throws Exception {
+    Counter c1 = metricsRegistry.counter("gr.c1");
+    Counter c3 = metricsRegistry.counter("gr.c3");
+    c1.inc(1);
+    c3.inc(3);
+    MuninGraph graph = new MuninGraph.Builder("graph1", "c", "t1")
+        .dataSource("gr.c1").dataSource("gr.c2").dataSource("gr.c3").build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(graph)),
+        hostname, rateUnit, durationUnit);
+
+    sut.sampleFrame();
+    c1.inc();
+    c3.inc();
+    metricsRegistry.counter("gr.c2").inc(2);
+
+    // the new field moves the ones after it, which are still served from the sample
+    assertEquals(asList("gr_c1__count.value 1", "gr_c2__count.value 2", "gr_c3__count.value 3",
+                        "."),
+                 sut.processCommand("fetch", asList("graph1")));
+
+    metricsRegistry.remove("gr.c1");
+    assertEquals(asList("gr_c2__count.value 2", "gr_c3__count.value 3", "."),
+                 sut.processCommand("fetch", asList("graph1")));
+  }
+
+  @Test
+  public void testConfigAnnouncesFieldIds() throws Exception {
+    metricsRegistry.counter("gr.c1");
+    metricsRegistry.counter("gr.c2");
+    MuninGraph graph1 = new MuninGraph.Builder("graph1", "c", "t1").dataSource("gr.c1").build();
+    MuninGraph graph2 = new MuninGraph.Builder("graph2", "c", "t2").dataSource("gr.c2").build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(graph1, graph2)),
+        hostname, rateUnit, durationUnit);
+
+    List<String> config2 = process(sut, "config", asList("graph2"), EnumSet.of(Capability.BINARY));
+    List<String> config1 = process(sut, "config", asList("graph1"), EnumSet.of(Capability.BINARY));
+
+    assertTrue(config2.contains("gr_c2__count.id 0"));
+    assertTrue(config1.contains("gr_c1__count.id 1"));
+    // ids are stable
+    assertEquals(config2, process(sut, "config", asList("graph2"), EnumSet.of(Capability.BINARY)));
+  }
+
+  @Test
+  public void testSpoolfetch() throws Exception {
+    Counter counter = metricsRegistry.counter("gr.c1");
+    MuninGraph graph = new MuninGraph.Builder("graph1", "c", "t1").dataSource("gr.c1").build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(graph)),
+        hostname, rateUnit, durationUnit);
+    sut.setSpool(new MuninSpool(new MuninSpoolConfig().withSamplesPerField(2)));
+
+    counter.inc();
+    sut.sampleSpool(1000);
+    counter.inc();
+    sut.sampleSpool(1010);
+    counter.inc();
+    sut.sampleSpool(1020);
+
+    // the oldest sample was overwritten, only samples after the timestamp are served
+    assertEquals(asList(
+        "multigraph graph1",
+        "graph_title t1",
+        "graph_category c",
+        "graph_vlabel ",
+        "gr_c1__count.label gr.c1",
+        "gr_c1__count.type DERIVE",
+        "gr_c1__count.min 0",
+        "gr_c1__count.value 1020:3",
+        "."
+    ), sut.processCommand("spoolfetch", asList("1010")));
+    assertEquals("gr_c1__count.value 1010:2",
+                 sut.processCommand("spoolfetch", asList("0")).get(7));
+  }
+
+  @Test
+  public void testSpoolEvictsRemovedMetrics() throws Exception {
+    metricsRegistry.counter("gr.c1");
+    MuninGraph graph = new MuninGraph.Builder("graph1", "c", "t1").dataSource("gr.c1").build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(graph)),
+        hostname, rateUnit, durationUnit);
+    MuninSpool spool = new MuninSpool(new MuninSpoolConfig());
+    sut.setSpool(spool);
+
+    sut.sampleSpool(1000);
+    assertEquals(1, spool.getFieldCount());
+
+    metricsRegistry.remove("gr.c1");
+    sut.sampleSpool(1010);
+    assertEquals(0, spool.getFieldCount());
+  }
+
+  @Test
+  public void testSpoolMaxFields() throws Exception {
+    metricsRegistry.counter("gr.c1");
+    metricsRegistry.counter("gr.c2");
+    MuninGraph graph = new MuninGraph.Builder("graph1", "c", "t1")
+        .dataSource("gr.c1").dataSource("gr.c2").build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(graph)),
+        hostname, rateUnit, durationUnit);
+    MuninSpool spool = new MuninSpool(new MuninSpoolConfig().withMaxFields(1));
+    sut.setSpool(spool);
+
+    sut.sampleSpool(1000);
+    assertEquals(1, spool.getFieldCount());
+  }
+
+  @Test
+  public void testCapAnnouncesSpool() throws Exception {
+    MetricsCommandProcessor sut = multigraphProcessor();
+    sut.setSpool(new MuninSpool(new MuninSpoolConfig()));
+
+    assertEquals(asList("cap multigraph dirtyconfig spool binaryfetch"),
+                 process(sut, "cap", NO_ARGS, EnumSet.noneOf(Capability.class)));
+  }
+
+  @Test(expected=UnknownCommandException.class)
+  public void testSpoolfetchWithoutSpool() throws Exception {
+    multigraphProcessor().processCommand("spoolfetch", asList("0"));
+  }
+
+  @Test
+  public void testSpoolSamplesAtUpdateRate() throws Exception {
+    metricsRegistry.counter("gr.c1").inc();
+    metricsRegistry.counter("gr.c2").inc();
+    MuninGraph fast = new MuninGraph.Builder("fast", "c", "t1").dataSource("gr.c1")
+        .updateRate(5).build();
+    MuninGraph slow = new MuninGraph.Builder("slow", "c", "t2").dataSource("gr.c2").build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(fast, slow)),
+        hostname, rateUnit, durationUnit);
+    sut.setSpool(new MuninSpool(new MuninSpoolConfig()));
+
+    for (long time = 1000; time <= 1011; time++) {
+      sut.sampleSpool(time);
+    }
+
+    List<String> lines = process(sut, "spoolfetch", asList("0"), EnumSet.of(Capability.SPOOL));
+    List<String> values = new ArrayList<String>();
+    for (String line : lines) {
+      if (line.contains(".value ") || line.startsWith("update_rate")) {
+        values.add(line);
+      }
+    }
+    assertEquals(asList(
+        "update_rate 5",
+        "gr_c1__count.value 1000:1",
+        "gr_c1__count.value 1005:1",
+        "gr_c1__count.value 1010:1",
+        "gr_c2__count.value 1000:1",
+        "gr_c2__count.value 1010:1"
+    ), values);
+  }
+
+  @Test
+  public void testUpdateRateOnlyAnnouncedWhenSpooling() throws Exception {
+    metricsRegistry.counter("gr.c1");
+    MuninGraph fast = new MuninGraph.Builder("fast", "c", "t1").dataSource("gr.c1")
+        .updateRate(5).build();
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(fast)),
+        hostname, rateUnit, durationUnit);
+
+    // without a spool, the master would only get samples every 5 minutes
+    assertFalse(process(sut, "config", asList("fast"), EnumSet.of(Capability.SPOOL))
+                    .contains("update_rate 5"));
+
+    sut.setSpool(new MuninSpool(new MuninSpoolConfig()));
+    assertFalse(process(sut, "config", asList("fast"), EnumSet.noneOf(Capability.class))
+                    .contains("update_rate 5"));
+    assertTrue(process(sut, "config", asList("fast"), EnumSet.of(Capability.SPOOL))
+                   .contains("update_rate 5"));
+  }
+
+  @Test
+  public void testVirtualNodes() throws Exception {
+    MetricsCommandProcessor sut = new MetricsCommandProcessor(
+        metricsRegistry, new StaticMuninGraphProvider(asList(new MuninGraph("graph1", "c", "t"))),
+        hostname, rateUnit, durationUnit);
+    sut.addNode("tenant2", new MetricRegistry(),
+                new StaticMuninGraphProvider(asList(new MuninGraph("graph3", "c", "t"))));
+    sut.addNode("tenant1", new MetricRegistry(),
+                new StaticMuninGraphProvider(asList(new MuninGraph("graph2", "c", "t"))));
+
+    assertEquals(asList("somehost", "tenant1", "tenant2", "."),
+                 sut.processCommand("nodes", NO_ARGS));
+    assertEquals(asList("graph1"), sut.processCommand("list", asList("somehost")));
+    assertEquals(asList("graph2"), sut.processCommand("list", asList("tenant1")));
+    // masters may know the node by another name
+    assertEquals(asList("graph1"), sut.processCommand("list", asList("some.other.name")));
+
+    sut.removeNode("tenant2");
+    assertEquals(asList("somehost", "tenant1", "."), sut.processCommand("nodes", NO_ARGS));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testDuplicateVirtualNode() throws Exception {
+    MetricsCommandProcessor sut = multigraphProcessor();
+    MuninGraphProvider graphs = new StaticMuninGraphProvider(asList(new MuninGraph("g", "c", "t")));
+    sut.addNode("tenant1", new MetricRegistry(), graphs);
+    sut.addNode("tenant1", new MetricRegistry(), graphs);
+  }
+
+  private MetricsCommandProcessor multigraphProcessor() {
+    metricsRegistry.counter("gr.c1").inc(1);
+    metricsRegistry.counter("gr.c2").inc(2);
+    MuninGraph graph1 = new MuninGraph.Builder("graph1", "c", "t1").dataSource("gr.c1").build();
+    MuninGraph graph2 = new MuninGraph.Builder("graph2", "c", "t2").dataSource("gr.c2").build();
+    MuninGraph other = new MuninGraph("other", "c", "t");
+    return new MetricsCommandProcessor(
+        metricsRegistry,
+        new StaticMuninGraphProvider(asList(new MuninMultigraph("all", asList(graph1, graph2)), other)),
+        hostname, rateUnit, durationUnit);
+  }
+
+  private static List<String> process(final MetricsCommandProcessor sut, final String command,
+                                      final List<String> args,
+                                      final Set<Capability> capabilities) throws Exception {
+    ListOutput output = new ListOutput();
+    sut.processCommand(command, args, capabilities, output);
+    return output.getLines();
+  }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.spotify.statistics.client.MuninClient;
+import com.spotify.statistics.client.MuninClientConfig;
+import com.spotify.statistics.client.MuninValues;
+
+/**
+ * Compares the text and binary fetch protocols for a single large graph, half counters and half
+ * double gauges, using the munin client against a munin server over TCP loopback, reading the
+ * metrics on every fetch or serving a sampled frame. Run like {@link MuninTransportBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MuninBinaryFetchBenchmark {
+
+  @Param({"false", "true"})
+  public boolean binary;
+
+  @Param({"false", "true"})
+  public boolean sampled;
+
+  @Param({"100", "1000", "10000"})
+  public int fields;
+
+  private MuninServer server;
+  private MuninClient client;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    MuninGraph.Builder graph = new MuninGraph.Builder("large", "bench", "Benchmark");
+    for (int i = 0; i < fields; i++) {
+      if (i % 2 == 0) {
+        registry.counter("counter" + i).inc(i * 1000L);
+        graph.dataSource("counter" + i);
+      } else {
+        final double value = i / 7.0;
+        registry.register("gauge" + i, new Gauge<Double>() {
+          @Override
+          public Double getValue() {
+            return value;
+          }
+        });
+        graph.dataSource("gauge" + i);
+      }
+    }
+    MetricsCommandProcessor processor = new MetricsCommandProcessor(
+        registry, new StaticMuninGraphProvider(Collections.singletonList(graph.build())),
+        new Hostname() {
+          @Override
+          public String getHostname() {
+            return "localhost";
+          }
+        }, TimeUnit.SECONDS, TimeUnit.SECONDS);
+    if (sampled) {
+      processor.sampleFrame();
+    }
+
+    int port = MuninServerTest.findFreePort();
+    InetAddress loopback = InetAddress.getByName(null);
+    server = new MuninServer(processor, port, loopback, new MuninServerConfig());
+    server.start();
+    InetSocketAddress address = new InetSocketAddress(loopback, port);
+    MuninServerTest.awaitListening(address);
+    client = new MuninClient(address, new MuninClientConfig().withBinaryFetch(binary));
+    // learn the field ids outside of the measurement
+    client.fetch("large");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    client.close();
+    server.shutdown();
+  }
+
+  @Benchmark
+  public double fetch() throws IOException {
+    MuninValues values = client.fetch("large");
+    return values.getValue(values.size() - 1);
+  }
+}
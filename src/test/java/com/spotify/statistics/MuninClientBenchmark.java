@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+import com.spotify.statistics.client.MuninClient;
+import com.spotify.statistics.client.MuninValues;
+
+/**
+ * Compares fetching graphs one command at a time with pipelined fetches, using the munin client
+ * against a munin server over TCP loopback. Run like {@link MuninTransportBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MuninClientBenchmark {
+
+  @Param({"BLOCKING", "SELECTOR"})
+  public MuninTransport transport;
+
+  @Param({"20"})
+  public int graphs;
+
+  private MuninServer server;
+  private MuninClient client;
+  private final List<String> services = new ArrayList<String>();
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    List<MuninGraph> muninGraphs = new ArrayList<MuninGraph>();
+    for (int g = 0; g < graphs; g++) {
+      MuninGraph.Builder graph = new MuninGraph.Builder("graph" + g, "bench", "Benchmark");
+      for (int i = 0; i < 10; i++) {
+        registry.counter("counter" + g + "_" + i).inc(i);
+        graph.dataSource("counter" + g + "_" + i);
+      }
+      muninGraphs.add(graph.build());
+      services.add("graph" + g);
+    }
+    MetricsCommandProcessor processor = new MetricsCommandProcessor(
+        registry, new StaticMuninGraphProvider(muninGraphs),
+        new Hostname() {
+          @Override
+          public String getHostname() {
+            return "localhost";
+          }
+        }, TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    int port = MuninServerTest.findFreePort();
+    InetAddress loopback = InetAddress.getByName(null);
+    server = new MuninServer(processor, port, loopback,
+                             new MuninServerConfig().withTransport(transport));
+    server.start();
+    client = new MuninClient(new InetSocketAddress(loopback, port));
+    for (int i = 0; i < 50; i++) {
+      try {
+        client.list();
+        break;
+      } catch (IOException e) {
+        Thread.sleep(10);
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    client.close();
+    server.shutdown();
+  }
+
+  @Benchmark
+  public double fetchOneByOne() throws IOException {
+    double sum = 0;
+    for (String service : services) {
+      sum += client.fetch(service).getValue(0);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double fetchPipelined() throws IOException {
+    double sum = 0;
+    for (MuninValues values : client.fetch(services)) {
+      sum += values.getValue(0);
+    }
+    return sum;
+  }
+}
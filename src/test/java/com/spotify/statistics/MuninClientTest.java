@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSet;
+import com.spotify.statistics.client.MuninClient;
+import com.spotify.statistics.client.MuninClientConfig;
+import com.spotify.statistics.client.MuninValues;
+
+/**
+ * Tests the munin client against a munin server.
+ */
+public class MuninClientTest {
+
+  private final MetricRegistry registry = new MetricRegistry();
+  private MuninServer server;
+  private InetSocketAddress address;
+  private MuninClient sut;
+
+  @Before
+  public void setUp() throws Exception {
+    registry.counter("c1").inc(1);
+    registry.counter("c2").inc(2);
+    registry.counter("c3").inc(3);
+    registry.register("g1", new Gauge<Double>() {
+      @Override
+      public Double getValue() {
+        return -1.5;
+      }
+    });
+    MuninGraph graph1 = new MuninGraph.Builder("graph1", "c", "t").dataSource("c1").build();
+    MuninGraph graph2 = new MuninGraph.Builder("graph2", "c", "t")
+        .dataSource("c2").dataSource("c3").build();
+    MuninGraph graph3 = new MuninGraph.Builder("graph3", "c", "t").dataSource("g1").build();
+    MuninGraph multigraph = new MuninMultigraph("all", asList(graph1, graph2));
+    MetricsCommandProcessor processor = new MetricsCommandProcessor(
+        registry, new StaticMuninGraphProvider(asList(graph1, graph2, graph3, multigraph)),
+        new Hostname() {
+          @Override
+          public String getHostname() {
+            return "host1";
+          }
+        }, TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    int port = MuninServerTest.findFreePort();
+    InetAddress loopback = InetAddress.getByName(null);
+    server = new MuninServer(processor, port, loopback, new MuninServerConfig());
+    server.start();
+    address = new InetSocketAddress(loopback, port);
+    MuninServerTest.awaitListening(address);
+    sut = new MuninClient(address);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    sut.close();
+    server.shutdown();
+  }
+
+  @Test
+  public void testNegotiatesCapabilities() throws Exception {
+    assertEquals(ImmutableSet.of("multigraph", "dirtyconfig"), sut.getCapabilities());
+  }
+
+  @Test
+  public void testListAndNodes() throws Exception {
+    assertEquals(asList("all", "graph1", "graph2", "graph3"), sut.list());
+    assertEquals(asList("host1"), sut.nodes());
+  }
+
+  @Test
+  public void testFetch() throws Exception {
+    MuninValues values = sut.fetch("graph2");
+
+    assertEquals(2, values.size());
+    assertEquals("graph2", values.getGraph(0));
+    assertEquals("c2__count", values.getField(0));
+    assertEquals(2, values.getValue(0), 0);
+    assertEquals(3, values.getValue("c3__count"), 0);
+  }
+
+  @Test
+  public void testFetchUnknownService() throws Exception {
+    assertEquals(0, sut.fetch("dummy").size());
+  }
+
+  @Test
+  public void testFetchMultigraph() throws Exception {
+    MuninValues values = sut.fetch("all");
+
+    assertEquals(3, values.size());
+    assertEquals("graph1", values.getGraph(0));
+    assertEquals("graph2", values.getGraph(1));
+    assertEquals("graph2", values.getGraph(2));
+    assertEquals(1, values.getValue(0), 0);
+  }
+
+  @Test
+  public void testPipelinedFetch() throws Exception {
+    List<MuninValues> values = sut.fetch(asList("graph1", "dummy", "graph2"));
+
+    assertEquals(3, values.size());
+    assertEquals(1, values.get(0).getValue("c1__count"), 0);
+    assertEquals(0, values.get(1).size());
+    assertEquals(3, values.get(2).getValue("c3__count"), 0);
+  }
+
+  @Test
+  public void testReusesNamesAndConnections() throws Exception {
+    MuninValues first = sut.fetch("all");
+    long accepted = server.getStats().getAcceptedConnections();
+    registry.counter("c1").inc();
+    MuninValues second = sut.fetch("all");
+
+    assertEquals(2, second.getValue(0), 0);
+    assertSame(first.getGraph(0), second.getGraph(0));
+    assertSame(first.getField(0), second.getField(0));
+    assertEquals(accepted, server.getStats().getAcceptedConnections());
+  }
+
+  @Test
+  public void testBinaryFetch() throws Exception {
+    MuninClient binary = new MuninClient(address,
+                                         new MuninClientConfig().withBinaryFetch(true));
+    try {
+      assertTrue(binary.getCapabilities().contains("binaryfetch"));
+      assertEquals(sut.fetch("all").toString(), binary.fetch("all").toString());
+
+      List<MuninValues> values = binary.fetch(asList("graph1", "dummy", "graph2"));
+      assertEquals(1, values.get(0).getValue("c1__count"), 0);
+      assertEquals(0, values.get(1).size());
+      assertEquals(3, values.get(2).getValue("c3__count"), 0);
+    } finally {
+      binary.close();
+    }
+  }
+
+  @Test
+  public void testBinaryFetchValues() throws Exception {
+    registry.counter("c1").inc(-1000);
+    MuninClient binary = new MuninClient(address,
+                                         new MuninClientConfig().withBinaryFetch(true));
+    try {
+      MuninValues values = binary.fetch("graph3");
+      assertEquals(-1.5, values.getValue("g1__value_gauge"), 0);
+      assertEquals(-999, binary.fetch("graph1").getValue("c1__count"), 0);
+    } finally {
+      binary.close();
+    }
+  }
+
+  @Test
+  public void testBinaryFetchAfterNodeRestart() throws Exception {
+    MuninClient binary = new MuninClient(address,
+                                         new MuninClientConfig().withBinaryFetch(true));
+    try {
+      assertEquals(1, binary.fetch("graph1").getValue("c1__count"), 0);
+      assertEquals(3, binary.fetch("graph2").getValue("c3__count"), 0);
+
+      // the restarted node hands out ids in another order
+      server.shutdown();
+      MuninGraph graph2 = new MuninGraph.Builder("graph2", "c", "t")
+          .dataSource("c2").dataSource("c3").build();
+      MetricsCommandProcessor processor = new MetricsCommandProcessor(
+          registry, new StaticMuninGraphProvider(asList(graph2)),
+          new Hostname() {
+            @Override
+            public String getHostname() {
+              return "host1";
+            }
+          }, TimeUnit.SECONDS, TimeUnit.SECONDS);
+      processor.processCommand("config", asList("graph2"));
+      server = new MuninServer(processor, address.getPort(), address.getAddress(),
+                               new MuninServerConfig());
+      server.start();
+      MuninServerTest.awaitListening(address);
+
+      MuninValues values = binary.fetch("graph2");
+      assertEquals(2, values.getValue("c2__count"), 0);
+      assertEquals(3, values.getValue("c3__count"), 0);
+    } finally {
+      binary.close();
+    }
+  }
+
+  @Test
+  public void testDirtyConfig() throws Exception {
+    assertTrue(sut.config("graph1").contains("c1__count.value 1"));
+  }
+}
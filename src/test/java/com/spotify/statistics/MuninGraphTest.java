@@ -16,6 +16,7 @@
 package com.spotify.statistics;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -39,6 +40,20 @@ public class MuninGraphTest {
     assertEquals(expectedGraph, graph);
   }
 
+  @Test
+  public void testUpdateRate() throws Exception {
+    MuninGraph graph = new MuninGraph.Builder("n", "c", "t")
+        .updateRate(10)
+        .build();
+    assertEquals(10, graph.getUpdateRate());
+    assertFalse(new MuninGraph("n", "c", "t").equals(graph));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidUpdateRate() throws Exception {
+    new MuninGraph.Builder("n", "c", "t").updateRate(0);
+  }
+
   /**
    * Test {@link MuninGraph.Builder#dataSource(com.yammer.metrics.core.MetricName)}.
    */
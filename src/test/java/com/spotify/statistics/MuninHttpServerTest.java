@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.spotify.statistics.Property.GaugeProperty;
+
+public class MuninHttpServerTest {
+
+  private final MetricRegistry registry = new MetricRegistry();
+  private MuninHttpServer sut;
+
+  @Before
+  public void setUp() throws Exception {
+    registry.counter("c1").inc(3);
+    registry.register("g1", new Gauge<Double>() {
+      @Override
+      public Double getValue() {
+        return 0.5;
+      }
+    });
+    MuninGraph graph1 = new MuninGraph.Builder("graph1", "c", "Requests").dataSource("c1").build();
+    MuninGraph graph2 = new MuninGraph.Builder("graph2", "c", "Load \"now\"")
+        .dataSource("g1", "load").build();
+    MuninGraph graph3 = new MuninGraph.Builder("graph3", "c", "Load change")
+        .dataSource("g1", "load", GaugeProperty.VALUE_DERIVE).build();
+    MetricsCommandProcessor processor = new MetricsCommandProcessor(
+        registry, new StaticMuninGraphProvider(asList(
+            graph1, graph2, graph3, new MuninMultigraph("all", asList(graph1, graph2)))),
+        new Hostname() {
+          @Override
+          public String getHostname() {
+            return "host1";
+          }
+        }, TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    sut = new MuninHttpServer(processor, new InetSocketAddress(InetAddress.getByName(null), 0));
+    sut.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    sut.stop();
+  }
+
+  @Test
+  public void testPrometheus() throws Exception {
+    HttpURLConnection connection = open("/graphs/graph1", null);
+
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+    assertEquals("# HELP munin_counter_total Munin fields counting events.\n"
+                 + "# TYPE munin_counter_total counter\n"
+                 + "munin_counter_total{graph=\"graph1\",field=\"c1__count\",label=\"c1\"} 3\n",
+                 read(connection));
+  }
+
+  @Test
+  public void testPrometheusDeriveOfGaugeIsGauge() throws Exception {
+    // the gauge may decrease, which a prometheus counter must not
+    assertEquals("# HELP munin_gauge Munin fields that may go up and down.\n"
+                 + "# TYPE munin_gauge gauge\n"
+                 + "munin_gauge{graph=\"graph3\",field=\"g1__value_derive\",label=\"load\"} 0.5\n",
+                 read(open("/graphs/graph3", null)));
+  }
+
+  @Test
+  public void testPrometheusMetricsDefinedOnce() throws Exception {
+    String body = read(open("/graphs", null));
+
+    // counters and gauges of all graphs each form one metric, whatever the graph order
+    assertEquals(2, body.split("# TYPE munin_counter_total counter\n").length);
+    assertEquals(2, body.split("# TYPE munin_gauge gauge\n").length);
+    String gauges = body.substring(body.indexOf("# HELP munin_gauge"));
+    assertTrue(gauges.contains("munin_gauge{graph=\"graph2\",field=\"g1__value_gauge\""));
+    assertFalse(gauges.contains("munin_counter_total{"));
+  }
+
+  @Test
+  public void testPrometheusNamesDoNotCollide() throws Exception {
+    MetricRegistry collidingRegistry = new MetricRegistry();
+    collidingRegistry.counter("c").inc(1);
+    collidingRegistry.counter("b_c").inc(2);
+    MetricsCommandProcessor processor = new MetricsCommandProcessor(
+        collidingRegistry, new StaticMuninGraphProvider(asList(
+            new MuninGraph.Builder("a_b", "c", "t").dataSource("c").build(),
+            new MuninGraph.Builder("a", "c", "t").dataSource("b_c").build())),
+        new Hostname() {
+          @Override
+          public String getHostname() {
+            return "host1";
+          }
+        }, TimeUnit.SECONDS, TimeUnit.SECONDS);
+    MuninHttpServer server = new MuninHttpServer(
+        processor, new InetSocketAddress(InetAddress.getByName(null), 0));
+    server.start();
+    try {
+      String body = read((HttpURLConnection) new URL(
+          "http", "localhost", server.getPort(), "/graphs").openConnection());
+      assertTrue(body.contains("{graph=\"a_b\",field=\"c__count\",label=\"c\"} 1\n"));
+      assertTrue(body.contains("{graph=\"a\",field=\"b_c__count\",label=\"b_c\"} 2\n"));
+      assertEquals(2, body.split("# TYPE ").length);
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testSlowRequestDoesNotBlockOthers() throws Exception {
+    final CountDownLatch sampling = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    MetricRegistry slowRegistry = new MetricRegistry();
+    slowRegistry.counter("c1").inc();
+    slowRegistry.register("slow", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        sampling.countDown();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return 1;
+      }
+    });
+    MetricsCommandProcessor processor = new MetricsCommandProcessor(
+        slowRegistry, new StaticMuninGraphProvider(asList(
+            new MuninGraph.Builder("slow", "c", "t").dataSource("slow").build(),
+            new MuninGraph.Builder("fast", "c", "t").dataSource("c1").build())),
+        new Hostname() {
+          @Override
+          public String getHostname() {
+            return "host1";
+          }
+        }, TimeUnit.SECONDS, TimeUnit.SECONDS);
+    MuninHttpServer server = new MuninHttpServer(
+        processor, new InetSocketAddress(InetAddress.getByName(null), 0));
+    server.start();
+    try {
+      final URL slow = new URL("http", "localhost", server.getPort(), "/graphs/slow");
+      Thread scraper = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            read((HttpURLConnection) slow.openConnection());
+          } catch (Exception ignored) {
+          }
+        }
+      });
+      scraper.start();
+      assertTrue(sampling.await(5, TimeUnit.SECONDS));
+
+      URL fast = new URL("http", "localhost", server.getPort(), "/graphs/fast");
+      HttpURLConnection connection = (HttpURLConnection) fast.openConnection();
+      connection.setReadTimeout(2000);
+      assertTrue(read(connection)
+                     .contains("{graph=\"fast\",field=\"c1__count\",label=\"c1\"} 1\n"));
+      release.countDown();
+      scraper.join(5000);
+    } finally {
+      release.countDown();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testJson() throws Exception {
+    HttpURLConnection connection = open("/graphs/graph2", "application/json");
+
+    assertEquals(200, connection.getResponseCode());
+    assertTrue(connection.getContentType().startsWith("application/json"));
+    assertEquals("{\"hostname\":\"host1\",\"graphs\":[\n"
+                 + "{\"name\":\"graph2\",\"title\":\"Load \\\"now\\\"\",\"category\":\"c\","
+                 + "\"vlabel\":\"\",\"fields\":[{\"name\":\"g1__value_gauge\",\"label\":\"load\","
+                 + "\"type\":\"GAUGE\",\"value\":0.5}]}\n"
+                 + "]}\n", read(connection));
+  }
+
+  @Test
+  public void testFormatParameter() throws Exception {
+    HttpURLConnection connection = open("/graphs?format=json", "text/plain");
+
+    assertTrue(connection.getContentType().startsWith("application/json"));
+    String body = read(connection);
+    // graphs that are also part of the multigraph are served once
+    assertEquals(2, body.split("\"name\":\"graph1\"").length);
+    assertTrue(body.contains("\"name\":\"graph2\""));
+  }
+
+  @Test
+  public void testMultigraph() throws Exception {
+    String body = read(open("/graphs/all", null));
+
+    assertTrue(body.contains("{graph=\"graph1\",field=\"c1__count\",label=\"c1\"} 3\n"));
+    assertTrue(body.contains("{graph=\"graph2\",field=\"g1__value_gauge\",label=\"load\"} 0.5\n"));
+  }
+
+  @Test
+  public void testUnknownGraph() throws Exception {
+    assertEquals(404, open("/graphs/dummy", null).getResponseCode());
+    assertEquals(404, open("/graphsdummy", null).getResponseCode());
+  }
+
+  private HttpURLConnection open(final String path, final String accept) throws Exception {
+    URL url = new URL("http", "localhost", sut.getPort(), path);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    if (accept != null) {
+      connection.setRequestProperty("Accept", accept);
+    }
+    return connection;
+  }
+
+  private static String read(final HttpURLConnection connection) throws Exception {
+    InputStream in = connection.getInputStream();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) > 0) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toString("UTF-8");
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.spotify.statistics.client.MuninClient;
+import com.spotify.statistics.client.MuninValues;
+
+/**
+ * Tests the munin proxy in front of two munin servers standing in for reporters.
+ */
+public class MuninProxyTest {
+
+  private final InetAddress loopback;
+  private final MetricRegistry registry1 = new MetricRegistry();
+  private final MetricRegistry registry2 = new MetricRegistry();
+  private final MergingMuninGraphProvider graphs1 = new MergingMuninGraphProvider(
+      new ArrayList<MuninGraphProvider>());
+  private MuninGraphProvider graph1Provider;
+  private final List<MuninServer> nodes = new ArrayList<MuninServer>();
+  private final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+  private MuninProxy proxy;
+  private int port;
+  private MuninClient sut;
+
+  public MuninProxyTest() throws Exception {
+    loopback = InetAddress.getByName(null);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    registry1.counter("c1").inc(1);
+    registry1.counter("c2").inc(2);
+    registry2.counter("c3").inc(3);
+    MuninGraph graph1 = new MuninGraph.Builder("graph1", "c", "t").dataSource("c1").build();
+    MuninGraph graph2 = new MuninGraph.Builder("graph2", "c", "t").dataSource("c2").build();
+    graph1Provider = new StaticMuninGraphProvider(asList(graph1));
+    graphs1.addProvider(graph1Provider);
+    graphs1.addProvider(new StaticMuninGraphProvider(asList(
+        new MuninMultigraph("multi", asList(graph1, graph2)))));
+    MuninGraph graph3 = new MuninGraph.Builder("graph3", "c", "t").dataSource("c3").build();
+
+    startNode(registry1, graphs1);
+    startNode(registry2, new StaticMuninGraphProvider(asList(graph3)));
+
+    port = MuninServerTest.findFreePort();
+    proxy = new MuninProxy(port, loopback, addresses);
+    proxy.start();
+    MuninServerTest.awaitListening(new InetSocketAddress(loopback, port));
+    sut = new MuninClient(new InetSocketAddress(loopback, port));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    sut.close();
+    proxy.stop();
+    for (MuninServer node : nodes) {
+      node.shutdown();
+    }
+  }
+
+  @Test
+  public void testListsAllNodes() throws Exception {
+    assertEquals(asList("graph1", "graph3", "multi"), sut.list());
+  }
+
+  @Test
+  public void testFetch() throws Exception {
+    sut.list();
+
+    assertEquals(1, sut.fetch("graph1").getValue("c1__count"), 0);
+    assertEquals(3, sut.fetch("graph3").getValue("c3__count"), 0);
+    // after the prefetched values were served, fetches go to the node
+    registry2.counter("c3").inc();
+    assertEquals(4, sut.fetch("graph3").getValue("c3__count"), 0);
+  }
+
+  @Test
+  public void testFetchWithoutList() throws Exception {
+    assertEquals(3, sut.fetch("graph3").getValue("c3__count"), 0);
+    assertEquals(0, sut.fetch("dummy").size());
+  }
+
+  @Test
+  public void testFetchMultigraph() throws Exception {
+    MuninValues values = sut.fetch("multi");
+
+    assertEquals(2, values.size());
+    assertEquals("graph1", values.getGraph(0));
+    assertEquals("graph2", values.getGraph(1));
+    assertEquals(2, values.getValue("c2__count"), 0);
+  }
+
+  @Test
+  public void testHidesMultigraphsFromMastersWithoutMultigraph() throws Exception {
+    Socket master = new Socket(loopback, port);
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(master.getInputStream()));
+      Writer out = new OutputStreamWriter(master.getOutputStream());
+      assertTrue(in.readLine().startsWith("# Spotify munin node at"));
+
+      out.write("list\nfetch multi\nconfig multi\nfetch graph1\n");
+      out.flush();
+      assertEquals("graph1 graph3", in.readLine());
+      assertEquals("# unknown service", in.readLine());
+      assertEquals(".", in.readLine());
+      assertEquals("# unknown service", in.readLine());
+      assertEquals(".", in.readLine());
+      assertEquals("c1__count.value 1", in.readLine());
+      assertEquals(".", in.readLine());
+    } finally {
+      master.close();
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testRejectsSelectorTransport() throws Exception {
+    new MuninProxy(MuninServerTest.findFreePort(), loopback, addresses, new MuninProxyConfig(),
+                   new MuninServerConfig().withTransport(MuninTransport.SELECTOR));
+  }
+
+  @Test
+  public void testFetchesConcurrentlyWhenListing() throws Exception {
+    sut.list();
+    sut.fetch("graph1");
+    sut.fetch("multi");
+    sut.fetch("graph3");
+
+    // one list and one pipelined fetch of all services of the node
+    assertEquals(2, latency(0));
+    assertEquals(2, latency(1));
+  }
+
+  @Test
+  public void testCachesConfig() throws Exception {
+    sut.list();
+    // waits for the values fetched when listing
+    sut.fetch("graph1");
+    List<String> config = sut.config("graph1");
+    assertTrue(config.contains("c1__count.label c1"));
+    // values sent with dirtyconfig are not cached
+    assertEquals(0, countValues(config));
+    long polls = latency(0);
+
+    assertEquals(config, sut.config("graph1"));
+    assertEquals(polls, latency(0));
+  }
+
+  @Test
+  public void testRefreshesConfigWhenServicesChange() throws Exception {
+    sut.list();
+    sut.config("graph1");
+
+    graphs1.addProvider(new StaticMuninGraphProvider(asList(
+        new MuninGraph.Builder("graph4", "c", "t").dataSource("c1").build())));
+    assertEquals(asList("graph1", "graph3", "graph4", "multi"), sut.list());
+    sut.fetch("graph1");
+    long polls = latency(0);
+
+    sut.config("graph1");
+    assertEquals(polls + 1, latency(0));
+  }
+
+  @Test
+  public void testRefreshesConfigWhenFieldsChange() throws Exception {
+    sut.list();
+    sut.fetch("graph1");
+    assertTrue(sut.config("graph1").contains("c1__count.label c1"));
+
+    // as many fields as before
+    replaceGraph1(new MuninGraph.Builder("graph1", "c", "t").dataSource("c2").build());
+    sut.fetch("graph1");
+
+    assertTrue(sut.config("graph1").contains("c2__count.label c2"));
+  }
+
+  @Test
+  public void testRefreshesChangedConfigWhenListing() throws Exception {
+    sut.list();
+    sut.fetch("graph1");
+    assertTrue(sut.config("graph1").contains("c1__count.label c1"));
+
+    // the same fields, labelled differently
+    replaceGraph1(new MuninGraph.Builder("graph1", "c", "t").dataSource("c1", "renamed").build());
+    sut.list();
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!sut.config("graph1").contains("c1__count.label renamed")) {
+      assertTrue("config not refreshed", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testPassesIntegralValuesThroughExactly() throws Exception {
+    // not exactly represented by a double
+    registry1.counter("c1").inc(1L << 53);
+    sut.list();
+
+    MuninValues values = sut.fetch("graph1");
+    assertTrue(values.isIntegral(0));
+    assertEquals((1L << 53) + 1, values.getLong(0));
+  }
+
+  @Test
+  public void testServesRemainingNodes() throws Exception {
+    nodes.get(1).shutdown();
+
+    assertEquals(asList("graph1", "multi"), sut.list());
+    assertEquals(1, proxy.getMetrics().meter(metricName(1, "errors")).getCount());
+  }
+
+  private void startNode(final MetricRegistry registry, final MuninGraphProvider graphs)
+      throws Exception {
+    MetricsCommandProcessor processor = new MetricsCommandProcessor(
+        registry, graphs, new Hostname() {
+          @Override
+          public String getHostname() {
+            return "localhost";
+          }
+        }, TimeUnit.SECONDS, TimeUnit.SECONDS);
+    int port = MuninServerTest.findFreePort();
+    MuninServer node = new MuninServer(processor, port, loopback, new MuninServerConfig());
+    node.start();
+    InetSocketAddress address = new InetSocketAddress(loopback, port);
+    MuninServerTest.awaitListening(address);
+    nodes.add(node);
+    addresses.add(address);
+  }
+
+  private void replaceGraph1(final MuninGraph graph) {
+    graphs1.removeProvider(graph1Provider);
+    graph1Provider = new StaticMuninGraphProvider(asList(graph));
+    graphs1.addProvider(graph1Provider);
+  }
+
+  private long latency(final int node) {
+    return proxy.getMetrics().timer(metricName(node, "latency")).getCount();
+  }
+
+  private String metricName(final int node, final String name) {
+    InetSocketAddress address = addresses.get(node);
+    return MetricRegistry.name("munin-proxy", address.getHostString() + ":" + address.getPort(),
+                               name);
+  }
+
+  private static int countValues(final List<String> lines) {
+    int values = 0;
+    for (String line : lines) {
+      if (line.contains(".value ")) {
+        values++;
+      }
+    }
+    return values;
+  }
+}
@@ -16,22 +16,41 @@
 
 package com.spotify.statistics;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 
 public class MuninServerTest {
@@ -70,23 +89,758 @@ public class MuninServerTest {
     MuninServer sut = new MuninServer(commandProcessor, port, loopback);
     sut.start();
 
-    Socket client = null;
+    Socket client = connect(loopback, port);
+
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    String greeting = in.readLine();
+    assertTrue(greeting.startsWith("# Spotify munin node at"));
+
+    sut.shutdown();
+    client.close();
+  }
+
+  @Test
+  public void testSelectorServer() throws Exception {
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry,
+            new StaticMuninGraphProvider(Lists.newArrayList(new MuninGraph("graph1", "c", "t"))),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback,
+                                      new MuninServerConfig()
+                                          .withTransport(MuninTransport.SELECTOR)
+                                          .withEventLoops(2));
+    sut.start();
+
+    Socket client1 = connect(loopback, port);
+    Socket client2 = connect(loopback, port);
+
+    BufferedReader in1 = new BufferedReader(new InputStreamReader(client1.getInputStream()));
+    BufferedReader in2 = new BufferedReader(new InputStreamReader(client2.getInputStream()));
+    Writer out1 = new OutputStreamWriter(client1.getOutputStream());
+    Writer out2 = new OutputStreamWriter(client2.getOutputStream());
+
+    assertTrue(in1.readLine().startsWith("# Spotify munin node at"));
+    assertTrue(in2.readLine().startsWith("# Spotify munin node at"));
+
+    // the command is split over two writes to exercise partial line handling
+    out1.write("li");
+    out1.flush();
+    out2.write("fetch dummy\n");
+    out2.flush();
+    out1.write("st\nquit\n");
+    out1.flush();
+
+    assertEquals("graph1", in1.readLine());
+    assertNull(in1.readLine());
+
+    assertEquals("# unknown service", in2.readLine());
+    assertEquals(".", in2.readLine());
+
+    sut.shutdown();
+    client1.close();
+    client2.close();
+  }
+
+  @Test
+  public void testHandlerPool() throws Exception {
+    ExecutorService pool = MuninHandlerExecutors.fixedPool(2);
+    assertServesList(new MuninServerConfig().withHandlerExecutor(pool));
+    // created for the server, so shut down with it
+    assertTrue(pool.isShutdown());
+  }
+
+  @Test
+  public void testKeepsCallerHandlerExecutor() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    assertServesList(new MuninServerConfig().withHandlerExecutor(pool));
+    assertFalse(pool.isShutdown());
+    pool.shutdown();
+  }
+
+  @Test
+  public void testShutdownWhileStartingStopsEventLoops() throws Exception {
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry, new StaticMuninGraphProvider(Lists.<MuninGraph>newArrayList()),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+    final InetAddress loopback = InetAddress.getByName(null);
 
     for (int i = 0; i < 50; i++) {
+      MuninServer sut = new MuninServer(commandProcessor, findFreePort(), loopback,
+                                        new MuninServerConfig()
+                                            .withTransport(MuninTransport.SELECTOR)
+                                            .withShutdownTimeout(10, TimeUnit.MILLISECONDS));
+      sut.start();
+      sut.shutdown();
+      sut.join();
+    }
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      assertFalse(thread.getName(), thread.getName().startsWith("munin-node-loop-"));
+    }
+  }
+
+  @Test
+  public void testVirtualThreadHandlers() throws Exception {
+    assumeTrue(MuninHandlerExecutors.isVirtualThreadsSupported());
+
+    ExecutorService executor = MuninHandlerExecutors.virtualThreads();
+    assertServesList(new MuninServerConfig().withHandlerExecutor(executor));
+    executor.shutdown();
+  }
+
+  @Test
+  public void testConnectionLimit() throws Exception {
+    assertConnectionLimit(new MuninServerConfig().withMaxConnections(1).withBacklog(10));
+  }
+
+  @Test
+  public void testSelectorConnectionLimit() throws Exception {
+    assertConnectionLimit(new MuninServerConfig()
+                              .withTransport(MuninTransport.SELECTOR)
+                              .withMaxConnections(1));
+  }
+
+  @Test
+  public void testBoundedPoolRejects() throws Exception {
+    ExecutorService pool = MuninHandlerExecutors.boundedPool(1);
+    assertConnectionLimit(new MuninServerConfig().withHandlerExecutor(pool));
+    pool.shutdown();
+  }
+
+  private void assertConnectionLimit(final MuninServerConfig config) throws Exception {
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry,
+            new StaticMuninGraphProvider(Lists.<MuninGraph>newArrayList()),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback, config);
+    sut.start();
+
+    Socket client1 = connect(loopback, port);
+    BufferedReader in1 = new BufferedReader(new InputStreamReader(client1.getInputStream()));
+    assertTrue(in1.readLine().startsWith("# Spotify munin node at"));
+
+    Socket client2 = connect(loopback, port);
+    BufferedReader in2 = new BufferedReader(new InputStreamReader(client2.getInputStream()));
+    assertEquals("# Too many connections, try again later", in2.readLine());
+    assertNull(in2.readLine());
+
+    assertEquals(1, sut.getStats().getAcceptedConnections());
+    assertEquals(1, sut.getStats().getRejectedConnections());
+    assertEquals(1, sut.getStats().getActiveConnections());
+
+    sut.shutdown();
+    client1.close();
+    client2.close();
+  }
+
+  @Test
+  public void testShutdownClosesListener() throws Exception {
+    assertShutdownClosesListener(new MuninServerConfig());
+  }
+
+  @Test
+  public void testSelectorShutdownClosesListener() throws Exception {
+    assertShutdownClosesListener(new MuninServerConfig().withTransport(MuninTransport.SELECTOR));
+  }
+
+  private void assertShutdownClosesListener(final MuninServerConfig config) throws Exception {
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry,
+            new StaticMuninGraphProvider(Lists.<MuninGraph>newArrayList()),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback, config);
+    sut.start();
+
+    Socket client = connect(loopback, port);
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    assertTrue(in.readLine().startsWith("# Spotify munin node at"));
+
+    // the idle connection does not hold up shutdown
+    sut.shutdown();
+    assertFalse(sut.isAlive());
+    assertNull(in.readLine());
+    assertEquals(0, sut.getStats().getActiveConnections());
+    assertEquals(0, sut.getStats().getForciblyClosedConnections());
+    assertTrue(sut.getStats().getLastShutdownMillis() >= 0);
+
+    // the port is free to be bound again
+    new ServerSocket(port, 0, loopback).close();
+    client.close();
+  }
+
+  @Test
+  public void testShutdownDrainsFetch() throws Exception {
+    final CountDownLatch fetching = new CountDownLatch(1);
+    final MetricsCommandProcessor commandProcessor = slowFetchProcessor(fetching, 300);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback);
+    sut.start();
+
+    Socket client = connect(loopback, port);
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    Writer out = new OutputStreamWriter(client.getOutputStream());
+    assertTrue(in.readLine().startsWith("# Spotify munin node at"));
+
+    out.write("fetch slow\n");
+    out.flush();
+    fetching.await();
+
+    sut.shutdown();
+
+    assertEquals("gr_t_slow__value_gauge.value 1", in.readLine());
+    assertEquals(".", in.readLine());
+    assertNull(in.readLine());
+    assertEquals(0, sut.getStats().getForciblyClosedConnections());
+    client.close();
+  }
+
+  @Test
+  public void testShutdownForciblyClosesAfterTimeout() throws Exception {
+    final CountDownLatch fetching = new CountDownLatch(1);
+    final MetricsCommandProcessor commandProcessor = slowFetchProcessor(fetching, 2000);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback,
+                                      new MuninServerConfig()
+                                          .withShutdownTimeout(100, TimeUnit.MILLISECONDS));
+    sut.start();
+
+    Socket client = connect(loopback, port);
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    Writer out = new OutputStreamWriter(client.getOutputStream());
+    assertTrue(in.readLine().startsWith("# Spotify munin node at"));
+
+    out.write("fetch slow\n");
+    out.flush();
+    fetching.await();
+
+    sut.shutdown();
+
+    assertEquals(1, sut.getStats().getForciblyClosedConnections());
+    assertTrue(sut.getStats().getLastShutdownMillis() < 2000);
+    client.close();
+  }
+
+  @Test
+  public void testIdleTimeout() throws Exception {
+    assertIdleTimeout(new MuninServerConfig());
+  }
+
+  @Test
+  public void testSelectorIdleTimeout() throws Exception {
+    assertIdleTimeout(new MuninServerConfig().withTransport(MuninTransport.SELECTOR));
+  }
+
+  private void assertIdleTimeout(final MuninServerConfig config) throws Exception {
+    final CountDownLatch fetching = new CountDownLatch(1);
+    final MetricsCommandProcessor commandProcessor = slowFetchProcessor(fetching, 500);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback,
+                                      config.withIdleTimeout(200, TimeUnit.MILLISECONDS));
+    sut.start();
+
+    Socket client = connect(loopback, port);
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    Writer out = new OutputStreamWriter(client.getOutputStream());
+    assertTrue(in.readLine().startsWith("# Spotify munin node at"));
+
+    // a command taking longer than the idle timeout is not cut off
+    out.write("fetch slow\n");
+    out.flush();
+    assertTrue(in.readLine().endsWith(".value 1"));
+    assertEquals(".", in.readLine());
+
+    // but a silent client is
+    assertNull(in.readLine());
+    assertEquals(1, sut.getStats().getTimedOutConnections());
+
+    sut.shutdown();
+    client.close();
+  }
+
+  @Test
+  public void testSessionTimeout() throws Exception {
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry,
+            new StaticMuninGraphProvider(Lists.newArrayList(new MuninGraph("graph1", "c", "t"))),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback,
+                                      new MuninServerConfig()
+                                          .withIdleTimeout(10, TimeUnit.SECONDS)
+                                          .withSessionTimeout(300, TimeUnit.MILLISECONDS));
+    sut.start();
+
+    Socket client = connect(loopback, port);
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    Writer out = new OutputStreamWriter(client.getOutputStream());
+    assertTrue(in.readLine().startsWith("# Spotify munin node at"));
+
+    // an active client is closed once the session timeout has passed
+    long start = System.nanoTime();
+    String line = "";
+    while (line != null) {
+      out.write("list\n");
+      out.flush();
+      line = in.readLine();
+      Thread.sleep(20);
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+    assertEquals(1, sut.getStats().getTimedOutConnections());
+
+    sut.shutdown();
+    client.close();
+  }
+
+  @Test
+  public void testWriteTimeoutDropsSlowClient() throws Exception {
+    final MuninServerStats stats = assertDropsSlowClient(
+        new MuninServerConfig().withWriteTimeout(200, TimeUnit.MILLISECONDS));
+    // all buffers of the connection are returned
+    for (int i = 0; i < 100 && stats.getBufferedBytes() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, stats.getBufferedBytes());
+  }
+
+  @Test
+  public void testSelectorOutputHighWaterMarkDropsSlowClient() throws Exception {
+    assertDropsSlowClient(new MuninServerConfig()
+                              .withTransport(MuninTransport.SELECTOR)
+                              .withOutputHighWaterMark(64 * 1024)
+                              .withWriteTimeout(200, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testSelectorOutputHighWaterMarkStopsReading() throws Exception {
+    // a list response of about 2 MB
+    final List<MuninGraph> graphs = Lists.newArrayList();
+    final String padding = Strings.repeat("x", 100);
+    for (int i = 0; i < 20000; i++) {
+      graphs.add(new MuninGraph(padding + i, "c", "t"));
+    }
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry, new StaticMuninGraphProvider(graphs),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback,
+                                      new MuninServerConfig()
+                                          .withTransport(MuninTransport.SELECTOR)
+                                          .withOutputHighWaterMark(64 * 1024)
+                                          .withShutdownTimeout(100, TimeUnit.MILLISECONDS));
+    sut.start();
+
+    Socket client = connect(loopback, port);
+    Writer out = new OutputStreamWriter(client.getOutputStream());
+
+    // pipeline about 100 MB of responses and never read them
+    out.write(Strings.repeat("list\n", 50));
+    out.flush();
+    Thread.sleep(300);
+
+    // only the response being written is buffered, the client is kept
+    assertTrue(sut.getStats().getBufferedBytes() < 8 * 1024 * 1024);
+    assertEquals(0, sut.getStats().getDroppedSlowClients());
+
+    sut.shutdown();
+    client.close();
+  }
+
+  @Test
+  public void testSelectorOutputHighWaterMarkServesSlowReader() throws Exception {
+    final List<MuninGraph> graphs = Lists.newArrayList();
+    for (int i = 0; i < 2000; i++) {
+      registry.counter("counter" + i).inc(i);
+      graphs.add(new MuninGraph.Builder("graph" + i, "c", "t").dataSource("counter" + i).build());
+    }
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry,
+            new StaticMuninGraphProvider(Lists.<MuninGraph>newArrayList(
+                new MuninMultigraph("all", new StaticMuninGraphProvider(graphs)))),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback,
+                                      new MuninServerConfig()
+                                          .withTransport(MuninTransport.SELECTOR)
+                                          .withOutputHighWaterMark(16 * 1024));
+    sut.start();
+
+    Socket client = connect(loopback, port);
+    Writer out = new OutputStreamWriter(client.getOutputStream());
+    out.write("cap multigraph\nconfig all\nfetch all\nconfig all\nquit\n");
+    out.flush();
+
+    // responses far above the high-water mark, read slowly but completely
+    InputStream in = client.getInputStream();
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+    byte[] chunk = new byte[4096];
+    int read;
+    while ((read = in.read(chunk)) >= 0) {
+      received.write(chunk, 0, read);
+      Thread.sleep(1);
+    }
+    String response = received.toString("US-ASCII");
+    assertTrue(response.length() > 500 * 1024);
+    assertTrue(response.contains("multigraph graph1999\ngraph_title t\n"));
+    assertTrue(response.contains("counter1999__count.value 1999\n"));
+    // both configs and the fetch are complete
+    assertEquals(3, response.split("\n\\.\n", -1).length - 1);
+    assertTrue(response.endsWith("\n.\n"));
+    assertEquals(0, sut.getStats().getDroppedSlowClients());
+
+    sut.shutdown();
+    client.close();
+  }
+
+  @Test
+  public void testSelectorWriteTimeoutDropsSlowClient() throws Exception {
+    assertDropsSlowClient(new MuninServerConfig()
+                              .withTransport(MuninTransport.SELECTOR)
+                              .withWriteTimeout(200, TimeUnit.MILLISECONDS));
+  }
+
+  private MuninServerStats assertDropsSlowClient(final MuninServerConfig config) throws Exception {
+    // a list response of about 2 MB
+    final List<MuninGraph> graphs = Lists.newArrayList();
+    final String padding = Strings.repeat("x", 100);
+    for (int i = 0; i < 20000; i++) {
+      graphs.add(new MuninGraph(padding + i, "c", "t"));
+    }
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry, new StaticMuninGraphProvider(graphs),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback, config);
+    sut.start();
+
+    Socket client = connect(loopback, port);
+    Writer out = new OutputStreamWriter(client.getOutputStream());
+
+    // ask for far more than the socket buffers hold, and never read it
+    out.write(Strings.repeat("list\n", 50));
+    out.flush();
+
+    for (int i = 0; i < 500 && sut.getStats().getDroppedSlowClients() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, sut.getStats().getDroppedSlowClients());
+
+    sut.shutdown();
+    client.close();
+    return sut.getStats();
+  }
+
+  @Test
+  public void testCommandRateLimit() throws Exception {
+    assertCommandRateLimit(new MuninServerConfig());
+  }
+
+  @Test
+  public void testSelectorCommandRateLimit() throws Exception {
+    assertCommandRateLimit(new MuninServerConfig().withTransport(MuninTransport.SELECTOR));
+  }
+
+  private void assertCommandRateLimit(final MuninServerConfig config) throws Exception {
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry,
+            new StaticMuninGraphProvider(Lists.newArrayList(new MuninGraph("graph1", "c", "t"))),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback,
+                                      config.withCommandRateLimit(0.001, 2));
+    sut.start();
+
+    Socket client = connect(loopback, port);
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    Writer out = new OutputStreamWriter(client.getOutputStream());
+    assertTrue(in.readLine().startsWith("# Spotify munin node at"));
+
+    out.write("list\nlist\nfetch graph1\nlist\nquit\n");
+    out.flush();
+    assertEquals("graph1", in.readLine());
+    assertEquals("graph1", in.readLine());
+    // throttled multi-line responses are still terminated
+    assertEquals("# Rate limit exceeded, try again later", in.readLine());
+    assertEquals(".", in.readLine());
+    assertEquals("# Rate limit exceeded, try again later", in.readLine());
+    assertNull(in.readLine());
+    assertEquals(2, sut.getStats().getThrottledCommands());
+
+    sut.shutdown();
+    client.close();
+  }
+
+  @Test
+  public void testConnectionRateLimit() throws Exception {
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry,
+            new StaticMuninGraphProvider(Lists.<MuninGraph>newArrayList()),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback,
+                                      new MuninServerConfig().withConnectionRateLimit(0.001, 1));
+    sut.start();
+
+    Socket client1 = connect(loopback, port);
+    BufferedReader in1 = new BufferedReader(new InputStreamReader(client1.getInputStream()));
+    assertTrue(in1.readLine().startsWith("# Spotify munin node at"));
+
+    Socket client2 = connect(loopback, port);
+    BufferedReader in2 = new BufferedReader(new InputStreamReader(client2.getInputStream()));
+    assertEquals("# Connection rate limit exceeded, try again later", in2.readLine());
+    assertNull(in2.readLine());
+    assertEquals(1, sut.getStats().getThrottledConnections());
+
+    sut.shutdown();
+    client1.close();
+    client2.close();
+  }
+
+  private MetricsCommandProcessor slowFetchProcessor(final CountDownLatch fetching,
+                                                     final long fetchMillis) {
+    final String name = MetricRegistry.name("gr", "t", "slow");
+    registry.register(name, new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        fetching.countDown();
+        try {
+          Thread.sleep(fetchMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return 1;
+      }
+    });
+
+    MuninGraph graph = new MuninGraph.Builder("slow", "gr", "t").dataSource(name).build();
+    return new MetricsCommandProcessor(
+            registry, new StaticMuninGraphProvider(Lists.newArrayList(graph)),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testMultipleAcceptors() throws Exception {
+    assumeTrue(MuninServer.isReusePortSupported());
+    assertServesList(new MuninServerConfig().withAcceptors(3));
+  }
+
+  @Test
+  public void testSelectorMultipleAcceptors() throws Exception {
+    assumeTrue(MuninServer.isReusePortSupported());
+    assertServesList(new MuninServerConfig()
+                         .withTransport(MuninTransport.SELECTOR)
+                         .withEventLoops(2)
+                         .withAcceptors(2));
+  }
+
+  @Test
+  public void testUnixDomainSocket() throws Exception {
+    assumeTrue(MuninServer.isUnixDomainSocketSupported());
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry,
+            new StaticMuninGraphProvider(Lists.newArrayList(new MuninGraph("graph1", "c", "t"))),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final Path socketPath = Files.createTempDirectory("munin").resolve("munin.sock");
+    MuninServer sut = new MuninServer(commandProcessor, socketPath, new MuninServerConfig());
+    sut.start();
+
+    SocketChannel client = null;
+    for (int i = 0; i < 50 && client == null; i++) {
       try {
-        client = new Socket(loopback, port);
+        client = UnixDomainSockets.connect(socketPath);
       } catch (IOException e) {
         Thread.sleep(10);
       }
     }
-
     assertNotNull(client);
 
+    BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(client)));
+    Writer out = new OutputStreamWriter(Channels.newOutputStream(client));
+
+    assertTrue(in.readLine().startsWith("# Spotify munin node at"));
+    out.write("list\nquit\n");
+    out.flush();
+    assertEquals("graph1", in.readLine());
+    assertNull(in.readLine());
+
+    sut.shutdown();
+    client.close();
+    assertFalse(Files.exists(socketPath));
+    Files.delete(socketPath.getParent());
+  }
+
+  @Test
+  public void testPipelinedCommands() throws Exception {
+    assertServesPipelinedCommands(new MuninServerConfig());
+  }
+
+  @Test
+  public void testSelectorPipelinedCommands() throws Exception {
+    assertServesPipelinedCommands(new MuninServerConfig().withTransport(MuninTransport.SELECTOR));
+  }
+
+  @Test
+  public void testVirtualNodes() throws Exception {
+    Hostname hostname = mock(Hostname.class);
+    when(hostname.getHostname()).thenReturn("host1");
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry,
+            new StaticMuninGraphProvider(Lists.newArrayList(new MuninGraph("graph1", "c", "t"))),
+            hostname, TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    MetricRegistry tenantRegistry = new MetricRegistry();
+    tenantRegistry.counter("tenant.c1").inc(7);
+    commandProcessor.addNode("tenant1", tenantRegistry, new StaticMuninGraphProvider(
+        Lists.newArrayList(new MuninGraph.Builder("graph2", "c", "t")
+                               .dataSource("tenant.c1").build())));
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback, new MuninServerConfig());
+    sut.start();
+
+    Socket client = connect(loopback, port);
     BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-    String greeting = in.readLine();
-    assertTrue(greeting.startsWith("# Spotify munin node at"));
+    Writer out = new OutputStreamWriter(client.getOutputStream());
+
+    assertTrue(in.readLine().startsWith("# Spotify munin node at host1"));
+    out.write("nodes\nlist tenant1\nfetch graph2\nlist host1\nfetch graph2\nquit\n");
+    out.flush();
+    assertEquals("host1", in.readLine());
+    assertEquals("tenant1", in.readLine());
+    assertEquals(".", in.readLine());
+    assertEquals("graph2", in.readLine());
+    assertEquals("tenant_c1__count.value 7", in.readLine());
+    assertEquals(".", in.readLine());
+    assertEquals("graph1", in.readLine());
+    assertEquals("# unknown service", in.readLine());
+    assertEquals(".", in.readLine());
+    assertNull(in.readLine());
+
+    sut.shutdown();
+    client.close();
+  }
+
+  private void assertServesPipelinedCommands(final MuninServerConfig config) throws Exception {
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry,
+            new StaticMuninGraphProvider(Lists.newArrayList(new MuninGraph("graph1", "c", "t"))),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback, config);
+    sut.start();
+
+    Socket client = connect(loopback, port);
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    Writer out = new OutputStreamWriter(client.getOutputStream());
+
+    assertTrue(in.readLine().startsWith("# Spotify munin node at"));
+    // all commands in a single write, commands after quit are ignored
+    out.write("list\nfetch dummy\nbogus\nlist\nquit\nlist\n");
+    out.flush();
+    assertEquals("graph1", in.readLine());
+    assertEquals("# unknown service", in.readLine());
+    assertEquals(".", in.readLine());
+    assertTrue(in.readLine().startsWith("# Unknown command"));
+    assertEquals("graph1", in.readLine());
+    assertNull(in.readLine());
 
     sut.shutdown();
     client.close();
   }
+
+  private void assertServesList(final MuninServerConfig config) throws Exception {
+    final MetricsCommandProcessor commandProcessor = new MetricsCommandProcessor(
+            registry,
+            new StaticMuninGraphProvider(Lists.newArrayList(new MuninGraph("graph1", "c", "t"))),
+            mock(Hostname.class), TimeUnit.SECONDS, TimeUnit.SECONDS);
+
+    final int port = findFreePort();
+    final InetAddress loopback = InetAddress.getByName(null);
+
+    MuninServer sut = new MuninServer(commandProcessor, port, loopback, config);
+    sut.start();
+
+    Socket client = connect(loopback, port);
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    Writer out = new OutputStreamWriter(client.getOutputStream());
+
+    assertTrue(in.readLine().startsWith("# Spotify munin node at"));
+    out.write("list\nquit\n");
+    out.flush();
+    assertEquals("graph1", in.readLine());
+    assertNull(in.readLine());
+
+    sut.shutdown();
+    client.close();
+  }
+
+  static void awaitListening(final InetSocketAddress address) throws Exception {
+    for (int i = 0; i < 50; i++) {
+      try {
+        new Socket(address.getAddress(), address.getPort()).close();
+        return;
+      } catch (IOException e) {
+        Thread.sleep(10);
+      }
+    }
+    throw new IOException("Munin server not listening");
+  }
+
+  private static Socket connect(final InetAddress address, final int port) throws Exception {
+    Socket client = null;
+
+    for (int i = 0; i < 50 && client == null; i++) {
+      try {
+        client = new Socket(address, port);
+      } catch (IOException e) {
+        Thread.sleep(10);
+      }
+    }
+
+    assertNotNull(client);
+    return client;
+  }
 }
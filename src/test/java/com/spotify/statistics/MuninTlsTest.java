@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Tests STARTTLS against a self-signed certificate for localhost.
+ */
+public class MuninTlsTest {
+
+  private static final char[] PASSWORD = "changeit".toCharArray();
+
+  private MuninServer server;
+  private InetSocketAddress address;
+
+  @After
+  public void tearDown() throws Exception {
+    if (server != null) {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testStartTlsResumesSessions() throws Exception {
+    assertResumesSessions("TLSv1.3");
+  }
+
+  @Test
+  public void testStartTls12ResumesSessions() throws Exception {
+    assertResumesSessions("TLSv1.2");
+  }
+
+  private void assertResumesSessions(final String protocol) throws Exception {
+    start(new MuninTlsConfig(sslContext()));
+    SSLContext client = sslContext();
+    MuninServerStats stats = server.getStats();
+
+    for (int i = 0; i < 3; i++) {
+      Socket socket = connect();
+      assertEquals("TLS OK", command(socket, "starttls"));
+      SSLSocket tls = startTls(client, socket, protocol);
+      assertEquals(protocol, tls.getSession().getProtocol());
+      assertEquals("graph1", command(tls, "list"));
+      assertEquals("graph1", command(tls, "list"));
+      tls.close();
+      // the first connection does a full handshake, the following ones resume its session
+      assertEquals(i + 1, stats.getTlsHandshakes());
+      assertEquals(i, stats.getTlsResumptions());
+    }
+
+    // a client without a cached session gets a full handshake
+    Socket socket = connect();
+    assertEquals("TLS OK", command(socket, "starttls"));
+    SSLSocket tls = startTls(sslContext(), socket, protocol);
+    assertEquals("graph1", command(tls, "list"));
+    tls.close();
+    assertEquals(4, stats.getTlsHandshakes());
+    assertEquals(2, stats.getTlsResumptions());
+    assertEquals(0, stats.getTlsHandshakeFailures());
+  }
+
+  @Test
+  public void testTlsRequired() throws Exception {
+    start(new MuninTlsConfig(sslContext()).withRequired(true));
+
+    Socket socket = connect();
+    assertEquals("# TLS is required, send STARTTLS first", command(socket, "list"));
+    assertEquals("TLS OK", command(socket, "STARTTLS"));
+    SSLSocket tls = startTls(sslContext(), socket);
+    assertEquals("graph1", command(tls, "list"));
+    tls.close();
+  }
+
+  @Test
+  public void testStartTlsNotOffered() throws Exception {
+    start(null);
+
+    Socket socket = connect();
+    assertEquals("# Unknown command. Try cap, list, config, fetch or quit",
+                 command(socket, "starttls"));
+    socket.close();
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testSelectorTransportUnsupported() throws Exception {
+    new MuninServer(processor(), 0, InetAddress.getByName(null), new MuninServerConfig()
+        .withTransport(MuninTransport.SELECTOR)
+        .withTls(new MuninTlsConfig(sslContext())));
+  }
+
+  private void start(final MuninTlsConfig tls) throws Exception {
+    int port = MuninServerTest.findFreePort();
+    InetAddress loopback = InetAddress.getByName(null);
+    server = new MuninServer(processor(), port, loopback, new MuninServerConfig().withTls(tls));
+    server.start();
+    address = new InetSocketAddress(loopback, port);
+    MuninServerTest.awaitListening(address);
+  }
+
+  private static MetricsCommandProcessor processor() {
+    MetricRegistry registry = new MetricRegistry();
+    registry.counter("c1").inc();
+    MuninGraph graph1 = new MuninGraph.Builder("graph1", "c", "t").dataSource("c1").build();
+    return new MetricsCommandProcessor(
+        registry, new StaticMuninGraphProvider(asList(graph1)),
+        new Hostname() {
+          @Override
+          public String getHostname() {
+            return "host1";
+          }
+        }, TimeUnit.SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return A context trusting and presenting the test certificate.
+   */
+  private static SSLContext sslContext() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    InputStream in = MuninTlsTest.class.getResourceAsStream("/munin-tls.p12");
+    try {
+      keyStore.load(in, PASSWORD);
+    } finally {
+      in.close();
+    }
+    KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keys.init(keyStore, PASSWORD);
+    TrustManagerFactory trust =
+        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trust.init(keyStore);
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+    return context;
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket(address.getAddress(), address.getPort());
+    socket.setSoTimeout(5000);
+    readLine(socket.getInputStream());
+    return socket;
+  }
+
+  private SSLSocket startTls(final SSLContext context, final Socket socket) throws IOException {
+    return startTls(context, socket, null);
+  }
+
+  private SSLSocket startTls(final SSLContext context, final Socket socket,
+                             final String protocol) throws IOException {
+    SSLSocket tls = (SSLSocket) context.getSocketFactory().createSocket(
+        socket, "localhost", address.getPort(), true);
+    if (protocol != null) {
+      tls.setEnabledProtocols(new String[] {protocol});
+    }
+    tls.startHandshake();
+    return tls;
+  }
+
+  private static String command(final Socket socket, final String command) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    out.write((command + "\n").getBytes(MuninSession.CHARSET));
+    out.flush();
+    return readLine(socket.getInputStream());
+  }
+
+  /**
+   * Read a line byte by byte, so that nothing after it is consumed before TLS starts.
+   */
+  private static String readLine(final InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b < 0) {
+        throw new IOException("Connection closed");
+      }
+      line.write(b);
+    }
+    return new String(line.toByteArray(), MuninSession.CHARSET);
+  }
+}
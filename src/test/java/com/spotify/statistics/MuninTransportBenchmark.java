@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.statistics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+
+/**
+ * Compares fetch round trips over TCP loopback and unix domain sockets. Run with
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.openjdk.jmh.Main MuninTransportBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MuninTransportBenchmark {
+
+  private static final byte[] FETCH = "fetch graph\n".getBytes(MuninSession.CHARSET);
+
+  @Param({"tcp", "unix"})
+  public String socket;
+
+  @Param({"BLOCKING", "SELECTOR"})
+  public MuninTransport transport;
+
+  private MuninServer server;
+  private Path socketDir;
+  private SocketChannel client;
+  private final ByteBuffer in = ByteBuffer.allocate(8192);
+  private final ByteBuffer fetch = ByteBuffer.wrap(FETCH);
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    MuninGraph.Builder graph = new MuninGraph.Builder("graph", "bench", "Benchmark");
+    for (int i = 0; i < 10; i++) {
+      registry.counter("counter" + i).inc(i);
+      graph.dataSource("counter" + i);
+    }
+    MetricsCommandProcessor processor = new MetricsCommandProcessor(
+        registry, new StaticMuninGraphProvider(Lists.newArrayList(graph.build())),
+        new Hostname() {
+          @Override
+          public String getHostname() {
+            return "localhost";
+          }
+        }, TimeUnit.SECONDS, TimeUnit.SECONDS);
+    MuninServerConfig config = new MuninServerConfig().withTransport(transport);
+
+    if (socket.equals("unix")) {
+      socketDir = Files.createTempDirectory("munin-bench");
+      Path socketPath = socketDir.resolve("munin.sock");
+      server = new MuninServer(processor, socketPath, config);
+      server.start();
+      client = connect(socketPath, 0, null);
+    } else {
+      int port = MuninServerTest.findFreePort();
+      InetAddress loopback = InetAddress.getByName(null);
+      server = new MuninServer(processor, port, loopback, config);
+      server.start();
+      client = connect(null, port, loopback);
+    }
+
+    // banner
+    readLine();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    client.close();
+    server.shutdown();
+    if (socketDir != null) {
+      Files.delete(socketDir);
+    }
+  }
+
+  @Benchmark
+  public int fetch() throws IOException {
+    fetch.rewind();
+    while (fetch.hasRemaining()) {
+      client.write(fetch);
+    }
+    int lines = 0;
+    while (!readLine()) {
+      lines++;
+    }
+    return lines;
+  }
+
+  /**
+   * @return true if the line read ends a multi-line response
+   */
+  private boolean readLine() throws IOException {
+    int scanned = 0;
+    while (true) {
+      for (int i = scanned; i < in.position(); i++) {
+        if (in.get(i) == '\n') {
+          boolean end = i == 1 && in.get(0) == '.';
+          in.flip();
+          in.position(i + 1);
+          in.compact();
+          return end;
+        }
+      }
+      scanned = in.position();
+      if (client.read(in) < 0) {
+        throw new IOException("Connection closed");
+      }
+    }
+  }
+
+  private static SocketChannel connect(final Path socketPath, final int port,
+                                       final InetAddress address) throws Exception {
+    for (int i = 0; i < 50; i++) {
+      try {
+        if (socketPath != null) {
+          return UnixDomainSockets.connect(socketPath);
+        }
+        return SocketChannel.open(new InetSocketAddress(address, port));
+      } catch (IOException e) {
+        Thread.sleep(10);
+      }
+    }
+    throw new IOException("Failed to connect to munin server");
+  }
+}
@@ -86,4 +86,24 @@ public class NumberUtilTest {
   public void testNullObjectToString() {
     assertEquals(null, NumberUtil.toString(null));
   }
+
+  @Test
+  public void testAppendMatchesToString() {
+    Object[] values = {
+        1E-7, -1.23, 0.0, 1E12, Double.NaN, Float.NEGATIVE_INFINITY, 1E-7f,
+        123, -123L, Long.MAX_VALUE, Long.MIN_VALUE, (short) 7, new java.math.BigDecimal("1.5"),
+        "foo"
+    };
+    for (Object value : values) {
+      ListOutput out = new ListOutput() {
+        @Override
+        public MuninOutput appendNumber(final Object value) {
+          NumberUtil.append(this, value);
+          return this;
+        }
+      };
+      out.appendNumber(value).endLine();
+      assertEquals(NumberUtil.toString(value), out.getLines().get(0));
+    }
+  }
 }
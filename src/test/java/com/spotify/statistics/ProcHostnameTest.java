@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.statistics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class ProcHostnameTest {
+
+  @Test
+  public void testReadsHostname() throws Exception {
+    File file = File.createTempFile("hostname", null);
+    file.deleteOnExit();
+    Files.write("host1.example.com\n", file, Charsets.US_ASCII);
+
+    assertEquals("host1.example.com", new ProcHostname(file).getHostname());
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testMissingFile() {
+    new ProcHostname(new File("/does/not/exist")).getHostname();
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SpoolRingTest {
+
+  @Test
+  public void testWrapsAround() {
+    SpoolRing ring = new SpoolRing(3);
+    for (int i = 1; i <= 5; i++) {
+      ring.add(i, i * 10);
+    }
+
+    ListOutput out = new ListOutput();
+    ring.writeSince("f", 0, out);
+    assertEquals(asList("f.value 3:30", "f.value 4:40", "f.value 5:50"), out.getLines());
+    assertEquals(5, ring.getLastTime());
+  }
+
+  @Test
+  public void testWriteSince() {
+    SpoolRing ring = new SpoolRing(3);
+    ring.add(1, 1);
+    ring.add(2, 2);
+
+    ListOutput out = new ListOutput();
+    ring.writeSince("f", 1, out);
+    assertEquals(asList("f.value 2:2"), out.getLines());
+  }
+
+  @Test
+  public void testFormatsValues() {
+    SpoolRing ring = new SpoolRing(3);
+    ring.add(1, 0.5);
+    ring.add(2, Double.NaN);
+
+    ListOutput out = new ListOutput();
+    ring.writeSince("f", 0, out);
+    assertEquals(asList("f.value 1:0.5", "f.value 2:U"), out.getLines());
+  }
+
+  @Test
+  public void testEmpty() {
+    SpoolRing ring = new SpoolRing(3);
+
+    ListOutput out = new ListOutput();
+    ring.writeSince("f", 0, out);
+    assertEquals(0, out.getLines().size());
+    assertEquals(Long.MIN_VALUE, ring.getLastTime());
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+  @Test
+  public void testBurst() {
+    TokenBucket bucket = new TokenBucket(0.001, 3);
+    assertTrue(bucket.isFull(System.nanoTime()));
+    assertTrue(bucket.tryAcquire());
+    assertTrue(bucket.tryAcquire());
+    assertTrue(bucket.tryAcquire());
+    assertFalse(bucket.tryAcquire());
+    assertFalse(bucket.isFull(System.nanoTime()));
+  }
+
+  @Test
+  public void testRefill() throws Exception {
+    TokenBucket bucket = new TokenBucket(50, 1);
+    assertTrue(bucket.tryAcquire());
+    assertFalse(bucket.tryAcquire());
+    Thread.sleep(50);
+    assertTrue(bucket.tryAcquire());
+  }
+
+  @Test
+  public void testConcurrentAcquire() throws Exception {
+    final TokenBucket bucket = new TokenBucket(0.001, 1000);
+    final AtomicInteger acquired = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < 1000; j++) {
+            if (bucket.tryAcquire()) {
+              acquired.incrementAndGet();
+            }
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1000, acquired.get());
+  }
+}
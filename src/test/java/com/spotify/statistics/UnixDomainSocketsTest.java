@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UnixDomainSocketsTest {
+
+  private Path dir;
+  private Path path;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(UnixDomainSockets.isSupported());
+    dir = Files.createTempDirectory("munin");
+    path = dir.resolve("munin.sock");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (dir != null) {
+      Files.deleteIfExists(path);
+      Files.delete(dir);
+    }
+  }
+
+  @Test
+  public void testReplacesStaleSocketFile() throws Exception {
+    // closing the channel leaves the socket file behind, like a process that died
+    UnixDomainSockets.bind(path, 1).close();
+    assertTrue(Files.exists(path));
+
+    ServerSocketChannel channel = UnixDomainSockets.bind(path, 1);
+    UnixDomainSockets.connect(path).close();
+    channel.close();
+  }
+
+  @Test
+  public void testKeepsRegularFile() throws Exception {
+    Files.write(path, Arrays.asList("data"), MuninSession.CHARSET);
+    try {
+      UnixDomainSockets.bind(path, 1).close();
+      fail("bound over a regular file");
+    } catch (FileAlreadyExistsException expected) {
+      // expected
+    }
+    assertEquals(Arrays.asList("data"), Files.readAllLines(path, MuninSession.CHARSET));
+  }
+
+  @Test
+  public void testKeepsSocketInUse() throws Exception {
+    ServerSocketChannel channel = UnixDomainSockets.bind(path, 1);
+    try {
+      UnixDomainSockets.bind(path, 1).close();
+      fail("bound over a socket in use");
+    } catch (FileAlreadyExistsException expected) {
+      // expected
+    }
+    UnixDomainSockets.connect(path).close();
+    channel.close();
+  }
+
+  @Test
+  public void testUnlinksOnlyOwnSocketFile() throws Exception {
+    UnixDomainSockets.bind(path, 1).close();
+    Object created = UnixDomainSockets.fileKey(path);
+
+    // another server replaced the stale file since
+    ServerSocketChannel other = UnixDomainSockets.bind(path, 1);
+    UnixDomainSockets.unlink(path, created);
+    assertTrue(Files.exists(path));
+
+    UnixDomainSockets.unlink(path, UnixDomainSockets.fileKey(path));
+    assertFalse(Files.exists(path));
+    other.close();
+  }
+
+  @Test
+  public void testUnlinkIgnoresMissingFile() throws Exception {
+    UnixDomainSockets.unlink(path, null);
+    assertFalse(Files.exists(path));
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2012-2014 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.statistics.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class ResponseReaderTest {
+
+  private static final int MAX_LENGTH = 1024 * 1024;
+
+  @Test
+  public void testReadsLines() throws Exception {
+    ResponseReader sut = reader("# banner\r\nfoo.value 1\n.\n");
+
+    sut.readLine();
+    assertTrue(sut.isComment());
+    assertEquals("# banner", sut.line());
+    sut.readLine();
+    assertEquals("foo.value 1", sut.line());
+    assertFalse(sut.isEnd());
+    sut.readLine();
+    assertTrue(sut.isEnd());
+  }
+
+  @Test
+  public void testReadsLinesSplitOverReads() throws Exception {
+    // one byte per read
+    final byte[] bytes = "first\nsecond line\n".getBytes(ResponseReader.CHARSET);
+    ResponseReader sut = new ResponseReader(new InputStream() {
+      private int pos;
+
+      @Override
+      public int read() {
+        return pos < bytes.length ? bytes[pos++] : -1;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) {
+        if (pos == bytes.length) {
+          return -1;
+        }
+        b[off] = bytes[pos++];
+        return 1;
+      }
+    }, MAX_LENGTH);
+
+    sut.readLine();
+    assertEquals("first", sut.line());
+    sut.readLine();
+    assertEquals("second line", sut.line());
+  }
+
+  @Test
+  public void testReadsLongLines() throws Exception {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      line.append('x');
+    }
+    ResponseReader sut = reader(line + "\n");
+
+    sut.readLine();
+    assertEquals(line.toString(), sut.line());
+  }
+
+  @Test(expected = IOException.class)
+  public void testRejectsLinesOverMaxLength() throws Exception {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      line.append('x');
+    }
+    new ResponseReader(new ByteArrayInputStream((line + "\n").getBytes(ResponseReader.CHARSET)),
+                       1000).readLine();
+  }
+
+  @Test
+  public void testReadsFrames() throws Exception {
+    ResponseReader sut = new ResponseReader(
+        new ByteArrayInputStream(new byte[] {0, 0, 0, 2, 5, 6}), MAX_LENGTH);
+
+    sut.readFrame();
+    assertEquals(5, sut.readVarint());
+    assertEquals(6, sut.readByte());
+    assertFalse(sut.hasRemaining());
+  }
+
+  @Test(expected = IOException.class)
+  public void testRejectsFramesOverMaxLength() throws Exception {
+    // announces a frame of almost 2 GB, which must fail before buffering any of it
+    new ResponseReader(new ByteArrayInputStream(new byte[] {0x7f, -1, -1, -1, 0}), MAX_LENGTH)
+        .readFrame();
+  }
+
+  @Test(expected = EOFException.class)
+  public void testClosed() throws Exception {
+    reader("partial").readLine();
+  }
+
+  @Test
+  public void testRegions() throws Exception {
+    ResponseReader sut = reader("foo.value 42\n");
+    sut.readLine();
+
+    assertEquals(9, sut.indexOf(' ', 0));
+    assertEquals(-1, sut.indexOf('x', 0));
+    assertTrue(sut.regionMatches(3, ".value"));
+    assertFalse(sut.regionMatches(8, ".value"));
+    assertTrue(sut.regionEquals(0, 3, "foo"));
+    assertFalse(sut.regionEquals(0, 3, "fo"));
+    assertFalse(sut.regionEquals(0, 3, null));
+    assertEquals("foo", sut.string(0, 3));
+  }
+
+  @Test
+  public void testParseDouble() throws Exception {
+    assertParsed(42, "42");
+    assertParsed(-42, "-42");
+    assertParsed(0.1, "0.1");
+    assertParsed(-1.5, "-1.5");
+    assertParsed(123.456789012, "123.456789012");
+    assertParsed(1e20, "1E20");
+    assertParsed(12345678901234567890d, "12345678901234567890");
+    assertParsed(Double.NaN, "U");
+    assertParsed(Double.NaN, "bogus");
+  }
+
+  @Test
+  public void testParseLong() throws Exception {
+    assertParsedLong(42, "42");
+    assertParsedLong(-42, "-42");
+    assertParsedLong((1L << 53) + 1, "9007199254740993");
+    assertParsedLong(Long.MAX_VALUE, "9223372036854775807");
+    assertParsedLong(Long.MIN_VALUE, "-9223372036854775808");
+    assertNotLong("9223372036854775808");
+    assertNotLong("12345678901234567890");
+    assertNotLong("1.5");
+    assertNotLong("-");
+    assertNotLong("U");
+  }
+
+  private static void assertParsedLong(final long expected, final String value)
+      throws IOException {
+    ResponseReader sut = reader(value + "\n");
+    sut.readLine();
+    assertTrue(sut.isLong(0, sut.length()));
+    assertEquals(expected, sut.parseLong(0, sut.length()));
+  }
+
+  private static void assertNotLong(final String value) throws IOException {
+    ResponseReader sut = reader(value + "\n");
+    sut.readLine();
+    assertFalse(sut.isLong(0, sut.length()));
+  }
+
+  private static void assertParsed(final double expected, final String value) throws IOException {
+    ResponseReader sut = reader(value + "\n");
+    sut.readLine();
+    assertEquals(Double.valueOf(expected), Double.valueOf(sut.parseDouble(0, sut.length())));
+  }
+
+  private static ResponseReader reader(final String s) {
+    return new ResponseReader(new ByteArrayInputStream(s.getBytes(ResponseReader.CHARSET)),
+                              MAX_LENGTH);
+  }
+}